@@ -0,0 +1,14 @@
+package norswap.sigh;
+
+/**
+ * Thrown when a program executed with an allocation quota (by the {@link
+ * norswap.sigh.interpreter.Interpreter} or as code generated by the {@link
+ * norswap.sigh.bytecode.BytecodeCompiler}) has allocated more bytes than the quota allows.
+ *
+ * <p>Allocated sizes are estimated by {@link Allocations}.
+ */
+public final class AllocationQuotaExceededException extends RuntimeException {
+    public AllocationQuotaExceededException () {
+        super("allocation quota exceeded");
+    }
+}
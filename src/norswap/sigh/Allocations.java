@@ -0,0 +1,52 @@
+package norswap.sigh;
+
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.Type;
+
+/**
+ * Estimates the size in bytes of the values allocated by Sigh programs, for the purpose of
+ * allocation quotas (see {@link AllocationQuotaExceededException}).
+ *
+ * <p>Only array literals, structure instances and string concatenations are charged, each in bulk
+ * when created. The estimates are based on the Sigh type of the values and not on their actual
+ * representation, so that a quota behaves the same in every execution backend. They roughly
+ * correspond to the layout of the bytecode backend's values on a 64-bit JVM.
+ */
+public final class Allocations
+{
+    private Allocations () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Size of an object header (including the length field for arrays), padding included. */
+    public static final int HEADER = 16;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the size of an array with the given component type and length.
+     */
+    public static long arraySize (Type componentType, int length) {
+        return HEADER + (long) length * (componentType instanceof BoolType ? 1 : 8);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the size of a structure instance with the given number of fields.
+     */
+    public static long structSize (int fields) {
+        return HEADER + 8L * fields;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the size of a string of the given length (string object plus character array).
+     */
+    public static long stringSize (int length) {
+        return 2 * HEADER + 8 + 2L * length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,80 @@
+package norswap.sigh;
+
+import norswap.autumn.Autumn;
+import norswap.autumn.ParseOptions;
+import norswap.autumn.ParseResult;
+import norswap.autumn.positions.LineMapString;
+import norswap.sigh.ast.RootNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.vm.VM;
+import norswap.sigh.vm.VMCompiler;
+import norswap.sigh.vm.VMProgram;
+import norswap.uranium.Reactor;
+import norswap.utils.IO;
+import norswap.utils.visitors.Walker;
+import java.nio.file.Paths;
+import java.util.function.Supplier;
+
+/**
+ * Measures the execution time of a Sigh program (by default {@code examples/fib.si}) for each
+ * execution mode.
+ *
+ * <p>Usage: {@code Benchmark [file] [iterations] [mode]}. Each mode is run {@code iterations} times
+ * (10 by default) after as many warmup runs, and the average time per run is reported. The modes
+ * ({@code interpreter}, {@code closure}, {@code vm}) all run by default, but they influence
+ * each other's JIT compilation: for accurate numbers, run a single mode per JVM.
+ */
+public final class Benchmark
+{
+    public static void main (String[] args)
+    {
+        String file = args.length > 0 ? args[0] : "examples/fib.si";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String mode = args.length > 2 ? args[2] : null;
+
+        String path = Paths.get(file).toAbsolutePath().toString();
+        String src = IO.slurp(path);
+        ParseResult result = Autumn.parse(new SighGrammar().root, src, ParseOptions.builder().get());
+        if (!result.fullMatch) {
+            System.out.println(result.toString(new LineMapString(path, src), false));
+            return;
+        }
+
+        RootNode root = result.topValue();
+        Reactor reactor = new Reactor();
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
+        walker.walk(root);
+        reactor.run();
+        if (!reactor.errors().isEmpty()) {
+            System.out.println(reactor.reportErrors(Object::toString));
+            return;
+        }
+
+        if (mode == null || mode.equals("interpreter"))
+            measure("interpreter", iterations, () -> new Interpreter(reactor).interpret(root));
+        if (mode == null || mode.equals("closure"))
+            measure("closure", iterations, () -> new ClosureInterpreter(reactor).interpret(root));
+        if (mode == null || mode.equals("vm")) {
+            VMProgram program = new VMCompiler(reactor).compile(root);
+            measure("vm", iterations, () -> new VM().run(program));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void measure (String name, int iterations, Supplier<Object> run)
+    {
+        Object value = null;
+        for (int i = 0; i < iterations; ++i)
+            value = run.get();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            run.get();
+        double ms = (System.nanoTime() - start) / 1e6 / iterations;
+
+        System.out.printf("%-12s %10.2f ms/run  (result: %s)%n", name, ms, value);
+    }
+}
@@ -0,0 +1,261 @@
+package norswap.sigh;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.Scope;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.StructType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static norswap.utils.Util.cast;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * An immutable copy of the attributes computed by {@link SemanticAnalysis} that the execution
+ * backends need, stored in arrays indexed by node id.
+ *
+ * <p>Once the reactor has run without errors, the attributes do not change anymore. {@link
+ * #freeze} assigns each node of the tree a dense id (see {@link SighNode#id()}) and copies the
+ * {@code type}, {@code decl}, {@code scope}, {@code declared}, {@code depth}, {@code slot},
+ * {@code frameSize} and {@code fieldIndex} attributes into arrays, so that reading an attribute
+ * is an array load instead of a hash map lookup (which also allocates an {@code Attribute} key).
+ *
+ * <p>It also flattens string concatenation chains (see {@link #concatenation}), which is derived
+ * from the tree and the types.
+ *
+ * <p>Nodes outside of the frozen tree (e.g. {@link norswap.sigh.scopes.SyntheticDeclarationNode})
+ * are looked up in the reactor instead.
+ */
+public final class FrozenAttributes
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+    private final SighNode[] nodes;
+    private final Type[] types;
+    private final DeclarationNode[] decls;
+    private final Scope[] scopes;
+    private final StructType[] declared;
+    private final int[] depths;
+    private final int[] slots;
+    private final int[] frameSizes;
+    private final int[] fieldIndices;
+    private final ExpressionNode[][] concatenations;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private FrozenAttributes (Reactor reactor, SighNode[] nodes)
+    {
+        this.reactor = reactor;
+        this.nodes = nodes;
+        int size = nodes.length;
+        types      = new Type[size];
+        decls      = new DeclarationNode[size];
+        scopes     = new Scope[size];
+        declared   = new StructType[size];
+        depths     = new int[size];
+        slots      = new int[size];
+        frameSizes = new int[size];
+        fieldIndices = new int[size];
+        concatenations = new ExpressionNode[size][];
+        Arrays.fill(depths, -1);
+        Arrays.fill(slots, -1);
+        Arrays.fill(frameSizes, -1);
+        Arrays.fill(fieldIndices, -1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Assigns ids to the nodes of the tree rooted at {@code root}, and copies their attributes from
+     * the reactor, which must have run without errors.
+     */
+    public static FrozenAttributes freeze (Reactor reactor, SighNode root)
+    {
+        ArrayList<SighNode> list = new ArrayList<>();
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, list::add);
+        walker.walk(root);
+
+        SighNode[] nodes = list.toArray(new SighNode[0]);
+        FrozenAttributes frozen = new FrozenAttributes(reactor, nodes);
+        for (int id = 0; id < nodes.length; ++id) {
+            nodes[id].setId(id);
+            frozen.copy(id, nodes[id]);
+        }
+        // after copying, as this reads the types of the children
+        for (int id = 0; id < nodes.length; ++id)
+            if (frozen.isConcatenation(nodes[id]))
+                frozen.concatenations[id] = frozen.flatten((BinaryExpressionNode) nodes[id]);
+        return frozen;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a table without any frozen node, which reads all attributes from the reactor.
+     */
+    public static FrozenAttributes unfrozen (Reactor reactor) {
+        return new FrozenAttributes(reactor, new SighNode[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Copies the attributes that semantic analysis sets on this kind of node.
+     */
+    private void copy (int id, SighNode node)
+    {
+        if (node instanceof ExpressionNode
+                || node instanceof VarDeclarationNode
+                || node instanceof FieldDeclarationNode
+                || node instanceof ParameterNode
+                || node instanceof FunDeclarationNode
+                || node instanceof StructDeclarationNode)
+            types[id] = reactor.get(node, "type");
+
+        if (node instanceof ReferenceNode)
+            decls[id] = reactor.get(node, "decl");
+
+        if (node instanceof ReferenceNode
+                || node instanceof RootNode
+                || node instanceof BlockNode
+                || node instanceof VarDeclarationNode
+                || node instanceof ParameterNode
+                || node instanceof FunDeclarationNode)
+            scopes[id] = reactor.get(node, "scope");
+
+        if (node instanceof StructDeclarationNode)
+            declared[id] = reactor.get(node, "declared");
+
+        if (node instanceof VarDeclarationNode
+                || node instanceof ParameterNode
+                || node instanceof FunDeclarationNode)
+            depths[id] = reactor.get(node, "depth");
+
+        if (node instanceof VarDeclarationNode || node instanceof ParameterNode)
+            slots[id] = reactor.get(node, "slot");
+
+        if (node instanceof RootNode || node instanceof FunDeclarationNode)
+            frameSizes[id] = reactor.get(node, "frameSize");
+
+        if (node instanceof FieldAccessNode
+                && reactor.get(((FieldAccessNode) node).stem, "type") instanceof StructType)
+            fieldIndices[id] = reactor.get(node, "fieldIndex");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the id of the node in this table, or -1 if the node is not part of the frozen tree
+     * (its id may have been assigned when freezing another tree).
+     */
+    private int index (SighNode node)
+    {
+        int id = node.id();
+        return id >= 0 && id < nodes.length && nodes[id] == node ? id : -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public <T extends Type> T type (SighNode node) {
+        int id = index(node);
+        return id >= 0 ? cast(types[id]) : reactor.get(node, "type");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public <T extends DeclarationNode> T decl (SighNode node) {
+        int id = index(node);
+        return id >= 0 ? cast(decls[id]) : reactor.get(node, "decl");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public <T extends Scope> T scope (SighNode node) {
+        int id = index(node);
+        return id >= 0 ? cast(scopes[id]) : reactor.get(node, "scope");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public StructType declared (SighNode node) {
+        int id = index(node);
+        return id >= 0 ? declared[id] : reactor.get(node, "declared");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public int depth (SighNode node) {
+        int id = index(node);
+        return id >= 0 ? depths[id] : reactor.<Integer>get(node, "depth");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public int slot (SighNode node) {
+        int id = index(node);
+        return id >= 0 ? slots[id] : reactor.<Integer>get(node, "slot");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public int frameSize (SighNode node) {
+        int id = index(node);
+        return id >= 0 ? frameSizes[id] : reactor.<Integer>get(node, "frameSize");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public int fieldIndex (SighNode node) {
+        int id = index(node);
+        return id >= 0 ? fieldIndices[id] : reactor.<Integer>get(node, "fieldIndex");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the operands of the string concatenation chain rooted at {@code node} (a string
+     * concatenation), from left to right.
+     *
+     * <p>As {@code +} is left-associative, {@code "a" + x + "b" + y} is parsed as {@code (("a" + x)
+     * + "b") + y}. The chain includes the left operands for as long as they are themselves string
+     * concatenations, so this returns {@code ["a", x, "b", y]}, allowing the whole chain to be
+     * built at once. In {@code 1 + 2 + "a"}, {@code 1 + 2} is an addition and remains an operand.
+     */
+    public ExpressionNode[] concatenation (BinaryExpressionNode node) {
+        int id = index(node);
+        return id >= 0 ? concatenations[id] : flatten(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean isConcatenation (SighNode node) {
+        return node instanceof BinaryExpressionNode
+            && ((BinaryExpressionNode) node).operator == BinaryOperator.ADD
+            && type(node) instanceof StringType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExpressionNode[] flatten (BinaryExpressionNode node)
+    {
+        ArrayList<ExpressionNode> operands = new ArrayList<>();
+        ExpressionNode left = node;
+        while (isConcatenation(left)) {
+            BinaryExpressionNode concat = (BinaryExpressionNode) left;
+            operands.add(concat.right);
+            left = concat.left;
+        }
+        operands.add(left);
+        Collections.reverse(operands);
+        return operands.toArray(new ExpressionNode[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,15 @@
+package norswap.sigh;
+
+/**
+ * Thrown when a program executed with a fuel budget (by the {@link
+ * norswap.sigh.interpreter.Interpreter} or as code generated by the {@link
+ * norswap.sigh.bytecode.BytecodeCompiler}) has used it up.
+ *
+ * <p>Fuel is consumed at function entries and loop back-edges, so that the fuel budget bounds the
+ * amount of work done by the program.
+ */
+public final class OutOfFuelException extends RuntimeException {
+    public OutOfFuelException () {
+        super("out of fuel");
+    }
+}
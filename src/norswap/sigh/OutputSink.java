@@ -0,0 +1,228 @@
+package norswap.sigh;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The destination of the output of the {@code print} builtin, in the {@link
+ * norswap.sigh.interpreter.Interpreter}, the {@link norswap.sigh.interpreter.ClosureInterpreter},
+ * the {@link norswap.sigh.vm.VM} and in code generated by the {@link
+ * norswap.sigh.bytecode.BytecodeCompiler}.
+ *
+ * <p>Output is encoded to UTF-8 in a large buffer, which is only written to the underlying stream
+ * when full, or when {@link #flush} is called (which the execution engines and the generated
+ * {@code run} method do when the program completes). This avoids a synchronized write to {@link
+ * System#out} per line, and the {@code print} of a string concatenation writes the operands
+ * directly, formatting integers straight into the buffer instead of creating strings.
+ *
+ * <p>Output can be sent to the standard output ({@link #stdout}), to any stream (e.g. a {@link
+ * java.io.ByteArrayOutputStream} to capture it in memory), or to a channel (e.g. a {@link
+ * java.nio.channels.FileChannel}).
+ *
+ * <p>Sinks are not thread-safe: executions running concurrently must use different sinks.
+ */
+public final class OutputSink implements Flushable
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final byte[] LINE_SEPARATOR =
+        System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final OutputStream out;
+    private final int capacity;
+    /** Allocated on first write, as many sinks are never written to. */
+    private byte[] buffer;
+    private int size;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public OutputSink (OutputStream out, int capacity) {
+        this.out = out;
+        this.capacity = capacity;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public OutputSink (OutputStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public OutputSink (WritableByteChannel channel) {
+        this(Channels.newOutputStream(channel));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new sink writing to {@link System#out}, as it is when the sink is flushed (so that
+     * redirections with {@link System#setOut} are respected).
+     */
+    public static OutputSink stdout ()
+    {
+        return new OutputSink(new OutputStream() {
+            @Override public void write (int b) {
+                System.out.write(b);
+            }
+            @Override public void write (byte[] b, int off, int len) {
+                System.out.write(b, off, len);
+            }
+            @Override public void flush () {
+                System.out.flush();
+            }
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Makes room for {@code n} more bytes in the buffer, if possible. Returns false if the bytes
+     * cannot fit in the buffer and must be written directly.
+     */
+    private boolean reserve (int n)
+    {
+        if (buffer == null)
+            buffer = new byte[capacity];
+        if (size + n <= buffer.length)
+            return true;
+        drain();
+        return n <= buffer.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void drain ()
+    {
+        try {
+            out.write(buffer, 0, size);
+            size = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void write (byte[] bytes)
+    {
+        if (reserve(bytes.length)) {
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        } else try {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints the string, or {@code "null"} if it is null (which is how compiled code represents
+     * {@code null} strings).
+     */
+    public void print (String string)
+    {
+        if (string == null) string = "null";
+        int length = string.length();
+        if (!reserve(length)) {
+            write(string.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        // ASCII fast path, the rest is encoded by the JDK
+        for (int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                write(string.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[size++] = (byte) c;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints the decimal representation of the value (as {@link Long#toString(long)}), without
+     * creating a string.
+     */
+    public void print (long value)
+    {
+        if (value == Long.MIN_VALUE) {
+            print(Long.toString(value)); // cannot be negated
+            return;
+        }
+        reserve(20); // max length: '-' and 19 digits
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int end = size + digits(value);
+        for (int i = end - 1; i >= size; --i) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size = end;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int digits (long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            ++digits;
+        }
+        return digits;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints the value as {@link Double#toString(double)}.
+     */
+    public void print (double value) {
+        // the shortest representation algorithm is not worth duplicating
+        print(Double.toString(value));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public void println () {
+        write(LINE_SEPARATOR);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public void println (String string) {
+        print(string);
+        println();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the buffered output to the underlying stream, and flushes it.
+     */
+    @Override public void flush ()
+    {
+        try {
+            if (size > 0) drain();
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
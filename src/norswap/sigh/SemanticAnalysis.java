@@ -12,6 +12,7 @@ import norswap.uranium.Reactor;
 import norswap.uranium.Rule;
 import norswap.utils.visitors.ReflectiveFieldWalker;
 import norswap.utils.visitors.Walker;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
@@ -52,6 +53,17 @@ import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
  *     their {@code scope} attribute set to the scope in which they appear (this also speeds up the
  *     interpreter).</li>
  *
+ *     <li>{@link VarDeclarationNode} and {@link ParameterNode} must also have their {@code depth}
+ *     and {@code slot} attributes set. The depth is the nesting depth of the function in which they
+ *     appear (0 for top-level code) and the slot is their index in that function's frame, in which
+ *     all nested blocks are flattened. {@link FunDeclarationNode} must have its {@code depth}
+ *     attribute set to the depth of its body and its {@code frameSize} attribute set to the number
+ *     of slots its frame requires. {@link RootNode} must similarly have a {@code frameSize}.</li>
+ *
+ *     <li>{@link FieldAccessNode} instances accessing a structure field must have their {@code
+ *     fieldIndex} attribute set to the index of the field in the structure declaration, which is
+ *     also its index in the runtime representation of structures.</li>
+ *
  *     <li>All statements introducing a new scope must have their {@code scope} attribute set to the
  *     corresponding {@link Scope} (only {@link RootNode}, {@link BlockNode} and {@link
  *     FunDeclarationNode} (for parameters)). These nodes must also update the {@code scope}
@@ -89,6 +101,19 @@ public final class SemanticAnalysis
     /** Index of the current function argument. */
     private int argumentIndex;
 
+    /** Nesting depth of the current function (0 for top-level code). */
+    private int depth;
+
+    /** Index of the next free slot in the frame of the current function (or top-level code). */
+    private int nextSlot;
+
+    /** Number of slots required by the frame of the current function (or top-level code). */
+    private int frameSize;
+
+    /** Saved values of {@link #nextSlot} (and {@link #frameSize} for functions) for the blocks and
+     * functions that enclose the current one. */
+    private final ArrayDeque<Integer> slotStack = new ArrayDeque<>();
+
     // ---------------------------------------------------------------------------------------------
 
     private SemanticAnalysis(Reactor reactor) {
@@ -136,9 +161,9 @@ public final class SemanticAnalysis
         walker.register(FunDeclarationNode.class,       PRE_VISIT,  analysis::funDecl);
         walker.register(StructDeclarationNode.class,    PRE_VISIT,  analysis::structDecl);
 
-        walker.register(RootNode.class,                 POST_VISIT, analysis::popScope);
-        walker.register(BlockNode.class,                POST_VISIT, analysis::popScope);
-        walker.register(FunDeclarationNode.class,       POST_VISIT, analysis::popScope);
+        walker.register(RootNode.class,                 POST_VISIT, analysis::rootEnd);
+        walker.register(BlockNode.class,                POST_VISIT, analysis::blockEnd);
+        walker.register(FunDeclarationNode.class,       POST_VISIT, analysis::funDeclEnd);
 
         // statements
         walker.register(ExpressionStatementNode.class,  PRE_VISIT,  node -> {});
@@ -350,14 +375,19 @@ public final class SemanticAnalysis
 
             StructDeclarationNode decl = ((StructType) type).node;
 
-            for (DeclarationNode field: decl.fields)
+            for (int i = 0; i < decl.fields.size(); ++i)
             {
+                DeclarationNode field = decl.fields.get(i);
                 if (!field.name().equals(node.fieldName)) continue;
 
                 R.rule(node, "type")
                 .using(field, "type")
                 .by(Rule::copyFirst);
 
+                int index = i;
+                R.rule(node, "fieldIndex")
+                .by(rr -> rr.set(0, index));
+
                 return;
             }
 
@@ -644,6 +674,9 @@ public final class SemanticAnalysis
     /**
      * Indicates whether a value of type {@code a} can be assigned to a location (variable,
      * parameter, ...) of type {@code b}.
+     *
+     * <p>Array types are invariant: an {@code Int[]} can't be used as a {@code Float[]}, as their
+     * elements are not represented the same way at run time.
      */
     private static boolean isAssignableTo (Type a, Type b)
     {
@@ -653,10 +686,6 @@ public final class SemanticAnalysis
         if (a instanceof IntType && b instanceof FloatType)
             return true;
 
-        if (a instanceof ArrayType)
-            return b instanceof ArrayType
-                && isAssignableTo(((ArrayType)a).componentType, ((ArrayType)b).componentType);
-
         return a instanceof NullType && b.isReference() || a.equals(b);
     }
 
@@ -709,6 +738,25 @@ public final class SemanticAnalysis
         assert scope == null;
         scope = new RootScope(node, R);
         R.set(node, "scope", scope);
+        depth = nextSlot = frameSize = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void rootEnd (RootNode node) {
+        R.set(node, "frameSize", frameSize);
+        popScope(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Assigns the next free slot of the current frame to the given variable or parameter.
+     */
+    private void allocateSlot (DeclarationNode node) {
+        R.set(node, "depth", depth);
+        R.set(node, "slot", nextSlot++);
+        frameSize = Math.max(frameSize, nextSlot);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -716,6 +764,7 @@ public final class SemanticAnalysis
     private void block (BlockNode node) {
         scope = new Scope(node, scope);
         R.set(node, "scope", scope);
+        slotStack.push(nextSlot);
 
         Attribute[] deps = getReturnsDependencies(node.statements);
         R.rule(node, "returns")
@@ -725,12 +774,21 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    private void blockEnd (BlockNode node) {
+        // The variables of the block are out of scope: their slots can be reused by the next blocks.
+        nextSlot = slotStack.pop();
+        popScope(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void varDecl (VarDeclarationNode node)
     {
         this.inferenceContext = node;
 
         scope.declare(node.name, node);
         R.set(node, "scope", scope);
+        allocateSlot(node);
 
         R.rule(node, "type")
         .using(node.type, "value")
@@ -765,6 +823,7 @@ public final class SemanticAnalysis
     {
         R.set(node, "scope", scope);
         scope.declare(node.name, node); // scope pushed by FunDeclarationNode
+        allocateSlot(node); // frame pushed by FunDeclarationNode
 
         R.rule(node, "type")
         .using(node.type, "value")
@@ -779,6 +838,11 @@ public final class SemanticAnalysis
         scope = new Scope(node, scope);
         R.set(node, "scope", scope);
 
+        slotStack.push(frameSize);
+        slotStack.push(nextSlot);
+        nextSlot = frameSize = 0;
+        R.set(node, "depth", ++depth);
+
         Attribute[] dependencies = new Attribute[node.parameters.size() + 1];
         dependencies[0] = node.returnType.attr("value");
         forEachIndexed(node.parameters, (i, param) ->
@@ -806,6 +870,16 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    private void funDeclEnd (FunDeclarationNode node) {
+        R.set(node, "frameSize", frameSize);
+        --depth;
+        nextSlot = slotStack.pop();
+        frameSize = slotStack.pop();
+        popScope(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void structDecl (StructDeclarationNode node) {
         scope.declare(node.name, node);
         R.set(node, "type", TypeType.INSTANCE);
@@ -5,7 +5,12 @@ import norswap.autumn.ParseOptions;
 import norswap.autumn.ParseResult;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.ast.RootNode;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationCache;
+import norswap.sigh.bytecode.CompilationResult;
 import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.PreparedProgram;
+import norswap.sigh.optimizer.Optimizer;
 import norswap.uranium.AttributeTreeFormatter;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
@@ -27,13 +32,95 @@ public final class SighRunner
             .wellFormednessCheck(false)
             .get();
 
+    private boolean optimize = true;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets whether programs are optimized (see {@link Optimizer}) after semantic analysis (true by
+     * default).
+     */
+    public void setOptimization (boolean optimize) {
+        this.optimize = optimize;
+    }
+
     // ---------------------------------------------------------------------------------------------
 
     public Object run(String input) {
+        return new Interpreter(prepare(input)).execute();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the input, sending the output of {@code print} to {@code output}, which is flushed when
+     * the program completes.
+     */
+    public Object run (String input, OutputSink output) {
+        Interpreter interpreter = new Interpreter(prepare(input));
+        interpreter.setOutput(output);
+        return interpreter.execute();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses and analyzes the input, returning a program that can be executed many times (and
+     * concurrently) by creating an {@link Interpreter} for each execution.
+     */
+    public PreparedProgram prepare (String input) {
         Reactor reactor = new Reactor();
-        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        Interpreter interpreter = new Interpreter(reactor);
+        return new PreparedProgram(reactor, analyze(input, reactor));
+    }
 
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses, analyzes and compiles the input to JVM bytecode, in a class whose (dot-separated)
+     * binary name is {@code binaryName}.
+     */
+    public CompilationResult compile (String binaryName, String input) {
+        Reactor reactor = new Reactor();
+        RootNode root = analyze(input, reactor);
+        return new BytecodeCompiler(reactor).compile(binaryName, root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #compile(String, String)}, but returns the result from {@code cache} if the same
+     * input was compiled before (by the same version of the compiler), skipping all compilation
+     * phases.
+     */
+    public CompilationResult compile (String binaryName, String input, CompilationCache cache) {
+        String key = optimize
+            ? CompilationCache.key(binaryName, input)
+            : CompilationCache.key(binaryName, input, "unoptimized");
+        return cache.computeIfAbsent(key, () -> compile(binaryName, input));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses and analyzes the input, then optimizes it if enabled, throwing an exception in case of
+     * errors. Returns the tree, which has been analyzed with the given reactor.
+     */
+    private RootNode analyze (String input, Reactor reactor)
+    {
+        RootNode root = parse(input);
+        if (optimize) {
+            Reactor unoptimized = new Reactor();
+            analyze(root, unoptimized);
+            root = Optimizer.optimize(unoptimized, root);
+        }
+        analyze(root, reactor);
+        return root;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RootNode parse (String input)
+    {
         ParseResult result = Autumn.parse(grammar.root, input, parseOptions);
         if (!result.fullMatch) {
             // TODO improve
@@ -45,7 +132,17 @@ public final class SighRunner
             throw new Error("parsing produced unexpected value: " + top);
         }
 
-        RootNode root = result.topValue();
+        return result.topValue();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Analyzes the tree with the given reactor, throwing an exception in case of errors.
+     */
+    private void analyze (RootNode root, Reactor reactor)
+    {
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
         walker.walk(root);
         reactor.run();
         Set<SemanticError> errors = reactor.errors();
@@ -60,8 +157,6 @@ public final class SighRunner
             System.err.println(tree);
             throw new AssertionError("semantic errors");
         }
-
-        return interpreter.interpret(root);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -13,12 +13,34 @@ public abstract class SighNode
 
     public final Span span;
 
+    // Not a public field: excluded from reflective equality and walking.
+    private int id = -1;
+
     protected SighNode (Span span) {
         this.span = span;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the dense id assigned to this node when its attributes were frozen, or -1 if they
+     * never were. See {@code FrozenAttributes}.
+     */
+    public final int id () {
+        return id;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the id of this node, see {@link #id()}.
+     */
+    public final void setId (int id) {
+        this.id = id;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns an attribute with the given name on this node.
      */
@@ -1,23 +1,33 @@
 package norswap.sigh.bytecode;
 
+import norswap.sigh.AllocationQuotaExceededException;
+import norswap.sigh.Allocations;
+import norswap.sigh.FrozenAttributes;
+import norswap.sigh.OutOfFuelException;
+import norswap.sigh.OutputSink;
 import norswap.sigh.ast.*;
-import norswap.sigh.interpreter.Constructor;
 import norswap.sigh.scopes.Scope;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
 import norswap.sigh.types.*;
 import norswap.uranium.Reactor;
 import norswap.utils.Vanilla;
 import norswap.utils.data.wrappers.Pair;
+import norswap.utils.visitors.ReflectiveFieldWalker;
 import norswap.utils.visitors.ValuedVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
-import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static norswap.sigh.ast.BinaryOperator.*;
@@ -25,14 +35,27 @@ import static norswap.sigh.bytecode.AsmUtils.*;
 import static norswap.sigh.bytecode.TypeUtils.fieldDescriptor;
 import static norswap.sigh.bytecode.TypeUtils.methodDescriptor;
 import static norswap.sigh.bytecode.TypeUtils.*;
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
 import static org.objectweb.asm.Opcodes.*;
 
 /**
- * <h2>Limitations</h2>
- * <ul>
- *     <li>The compiled code currently doesn't support closures (using variables in functions that
- *     are declared in some surroudning scopes outside the function).</li>
- * </ul>
+ * <h2>Closures</h2>
+ *
+ * <p>Functions (including nested functions) are compiled to static methods. A function that uses
+ * variables declared in a surrounding scope (including the top-level scope) receives them as extra
+ * parameters, placed before its declared parameters. Only the variables the function actually uses
+ * are passed, along with the variables used by the functions it calls or references (as these
+ * must be passed on). See {@link #analyzeCaptures}.
+ *
+ * <p>Variables that are never assigned after their declaration are passed by value, keeping their
+ * primitive representation. The other captured variables are stored in a <i>cell</i>: a
+ * single-element array of the variable's representation (e.g. {@code long[]} for {@code Int}),
+ * which is shared by the declaring function and the functions using the variable, so that they all
+ * see the assignments. Variables that are not captured are unaffected.
+ *
+ * <p>Function values of functions that capture variables are created with the captured values
+ * (or cells), like Java lambdas.
  *
  * <h2>Data Representation</h2>
  * <ul>
@@ -45,12 +68,45 @@ import static org.objectweb.asm.Opcodes.*;
  *     arrays, object arrays (e.g. {@code Object[][]}).</li>
  *     <li>Structs: A Java class encoding the structure, in the default package and using the
  *     structure's name.</li>
- *     <li>TODO: Functions: a {@link MethodHandle} to the method that implements the function in
- *     bytecode.</li>
+ *     <li>Functions: an instance of a functional interface generated for the function's signature
+ *     (see {@link TypeUtils#funInterfaceName}), created with {@link
+ *     java.lang.invoke.LambdaMetafactory} from the method implementing the function.</li>
  *     <li>Types: the {@link Class} object for the type representation. {@code Type} itself (the
  *     type of types) is represented by {@code Class.class}.</li>
  * </ul>
  *
+ * <h2>32-bit Variables</h2>
+ *
+ * <p>{@code Int} variables that provably always hold 32-bit values (e.g. a loop counter bounded by
+ * the length of an array) are stored in {@code int} locals instead, see {@link #analyzeRanges}.
+ * They are widened to {@code long} when used in arithmetic, but array indices and comparisons
+ * between 32-bit values (int variables, array lengths and small literals) use {@code int}
+ * instructions, and increments use {@code iinc}. This avoids converting indices, and lets the JIT
+ * compiler recognize counted loops (enabling range check elimination and unrolling).
+ *
+ * <h2>Fuel Metering</h2>
+ *
+ * <p>If enabled with {@link #setFuelMetering}, the generated code consumes fuel like the {@link
+ * norswap.sigh.interpreter.Interpreter}: one unit per function call and per loop back-edge, from
+ * the budget held in the static {@code $fuel} field of the main class (see {@link
+ * CompilationResult#setFuel}). An {@link OutOfFuelException} is thrown when it is exhausted. The
+ * budget is not updated atomically: this relies on the {@code run} method being synchronized, so
+ * that a class only runs one execution at a time.
+ *
+ * <p>Function calls charge the budget directly, but loops count their back-edges in a local
+ * variable and only charge the budget every {@link #FUEL_BATCH} back-edges, and when the loop
+ * completes. This keeps loop bodies free of memory writes, but means that a loop may overrun the
+ * budget by less than one batch before the exception is thrown. When disabled, no code is emitted.
+ *
+ * <h2>Allocation Metering</h2>
+ *
+ * <p>Similarly, if enabled with {@link #setAllocationMetering}, array literals, structure
+ * constructions and string concatenations charge their estimated size (see {@link
+ * norswap.sigh.Allocations}) to the quota held in the static {@code $allocatable} field of the main
+ * class (see {@link CompilationResult#setAllocationQuota}), and an {@link
+ * AllocationQuotaExceededException} is thrown when it is exceeded. Array and structure sizes are
+ * known at compile time, so these are charged by constant amounts before the allocation.
+ *
  * <h2>Useful Links</h2>
  * <ul>
  *     <li>https://en.wikipedia.org/wiki/Java_bytecode_instruction_listings</li>
@@ -72,18 +128,47 @@ public class BytecodeCompiler
     // TODO: prune util classes?
     // TODO: add a top type, and make print take it and convert
     //       (further: is operator, casts, flow casts)
-    // TODO: function objects
     // TODO: simplify with https://asm.ow2.io/javadoc/org/objectweb/asm/commons/GeneratorAdapter.html ?
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Number of loop back-edges after which their fuel is charged, see {@link #setFuelMetering}. */
+    public static final int FUEL_BATCH = 1024;
+
+    private static final String OUTPUT_SINK = slashBinaryName(OutputSink.class);
+    private static final String OUTPUT_SINK_DESCRIPTOR = "L" + OUTPUT_SINK + ";";
+
+    private static final Handle METAFACTORY = new Handle(H_INVOKESTATIC,
+        "java/lang/invoke/LambdaMetafactory", "metafactory",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+            + "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;"
+            + "Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+        false);
+
+    // ---------------------------------------------------------------------------------------------
+
     private final ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
     private final Reactor reactor;
+    private FrozenAttributes attributes;
+    private boolean meterFuel = false;
+    private boolean meterAllocations = false;
 
     // ---------------------------------------------------------------------------------------------
 
     public BytecodeCompiler (Reactor reactor) {
+        this(reactor, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a compiler reading attributes from {@code attributes}, which must have been frozen
+     * from a tree including the compiled nodes. If null, the tree is frozen by {@link #compile},
+     * while {@link #compileFunctions} and {@link #compileLoop} read attributes from the reactor.
+     */
+    public BytecodeCompiler (Reactor reactor, FrozenAttributes attributes) {
         this.reactor = reactor;
+        this.attributes = attributes;
 
         // expressions
         visitor.register(IntLiteralNode.class,           this::intLiteral);
@@ -132,11 +217,20 @@ public class BytecodeCompiler
      * defined in the source unit. */
     ArrayList<Pair<String, ClassWriter>> structs = new ArrayList<>();
 
+    /** Maps the names of the functional interfaces used by the source unit to a function type they
+     * represent. See {@link #funInterface}. */
+    private final LinkedHashMap<String, FunType> funInterfaces = new LinkedHashMap<>();
+
+    /** Maps the methods implementing the function values that capture nothing to the name of the
+     * static field holding the function value and to its type. See {@link #functionValue}. */
+    private final LinkedHashMap<Handle, Pair<String, FunType>> sharedFunctionValues
+        = new LinkedHashMap<>();
+
     /* MethodVisitor for current method. */
     private MethodVisitor method;
 
-    /** Maps variables in a scope to a variable index. */
-    private final HashMap<Pair<Scope, String>, Integer> variables = new HashMap<>();
+    /** Maps variables in a scope to a variable index in the current method. */
+    private HashMap<Pair<Scope, String>, Integer> variables = new HashMap<>();
 
     /** Counter used to number variables in {@link #variables}. */
     private int variableCounter = 0;
@@ -144,6 +238,49 @@ public class BytecodeCompiler
     /** Whether we are in top-level code. */
     private boolean topLevel;
 
+    /** Indices of the back-edge counters of the loops enclosing the current node, if metering. */
+    private ArrayDeque<Integer> fuelCounters = new ArrayDeque<>();
+
+    // Identity maps, as nodes implement structural equality.
+
+    /** Maps functions to the variables declared outside of them that they capture, see {@link
+     * #analyzeCaptures}. */
+    private final IdentityHashMap<FunDeclarationNode, List<DeclarationNode>> captures
+        = new IdentityHashMap<>();
+
+    /** Maps functions (and the root node, for the top-level code) to the variables they declare
+     * and that are captured by other functions. */
+    private final IdentityHashMap<SighNode, List<DeclarationNode>> capturedLocals
+        = new IdentityHashMap<>();
+
+    /** Captured variables that are assigned, and are therefore stored in cells. */
+    private final Set<DeclarationNode> cells = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** {@code Int} variables that always hold 32-bit values, and are therefore stored in {@code
+     * int} locals, see {@link #analyzeRanges}. */
+    private final Set<DeclarationNode> intVariables
+        = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets whether the generated code consumes fuel (false by default). See the class
+     * documentation.
+     */
+    public void setFuelMetering (boolean meterFuel) {
+        this.meterFuel = meterFuel;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets whether the generated code counts its allocations against a quota (false by default).
+     * See the class documentation.
+     */
+    public void setAllocationMetering (boolean meterAllocations) {
+        this.meterAllocations = meterAllocations;
+    }
+
     // ---------------------------------------------------------------------------------------------
 
     /**
@@ -153,40 +290,323 @@ public class BytecodeCompiler
     public CompilationResult compile (String binaryName, SighNode root)
     {
         this.containerName = binaryName.replace('.', '/');
+        if (attributes == null)
+            attributes = FrozenAttributes.freeze(reactor, root);
+        analyzeCaptures(root);
+        analyzeRanges(root, Collections.emptyList());
         run(root);
         GeneratedClass mainClass = new GeneratedClass(containerName, container.toByteArray());
         List<GeneratedClass> structClasses = structs.stream()
             .map(it -> new GeneratedClass(it.a, it.b.toByteArray()))
             .collect(Collectors.toList());
+        structClasses.addAll(funInterfaceClasses());
 
         return new CompilationResult(mainClass, structClasses);
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Compiles the given functions into static methods (named after the functions) of a class whose
+     * (dot-separated) binary name is {@code binaryName}.
+     *
+     * <p>This is used to compile parts of a program that is otherwise interpreted. The functions
+     * must not use variables from their surrounding scopes, and must only call each other (or
+     * builtins).
+     */
+    public CompilationResult compileFunctions (String binaryName, Collection<FunDeclarationNode> functions)
+    {
+        this.containerName = binaryName.replace('.', '/');
+        if (attributes == null)
+            attributes = FrozenAttributes.unfrozen(reactor);
+        container = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        container.visit(V1_8, ACC_PUBLIC, containerName, null, "java/lang/Object", null);
+        staticMembers();
+        topLevel = false;
+        functions.forEach(this::analyzeCaptures);
+        functions.forEach(it -> analyzeRanges(it, Collections.emptyList()));
+        functions.forEach(this::run);
+        sharedFunctionValues();
+        container.visitEnd();
+        GeneratedClass mainClass = new GeneratedClass(containerName, container.toByteArray());
+        return new CompilationResult(mainClass, funInterfaceClasses());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the given top-level loop into a static method named {@code loop} of a class whose
+     * (dot-separated) binary name is {@code binaryName}. The functions the loop calls are compiled
+     * in the same class, as by {@link #compileFunctions}.
+     *
+     * <p>This is used for on-stack replacement of a loop whose execution started in the
+     * interpreter. The method takes the two arrays holding the variables of the interpreter's frame
+     * ({@code long[]} for primitives, {@code Object[]} for the other values, with {@code null}
+     * represented as Java null), and indexed by the {@code slot} attribute. The {@code live} variables
+     * are loaded from these arrays on entry, and written back when the loop completes. These must
+     * include every variable declared outside the loop that it uses.
+     */
+    public CompilationResult compileLoop (String binaryName, WhileNode loop,
+            List<VarDeclarationNode> live, Collection<FunDeclarationNode> functions)
+    {
+        this.containerName = binaryName.replace('.', '/');
+        if (attributes == null)
+            attributes = FrozenAttributes.unfrozen(reactor);
+        container = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        container.visit(V1_8, ACC_PUBLIC, containerName, null, "java/lang/Object", null);
+        staticMembers();
+        topLevel = false;
+        functions.forEach(this::analyzeCaptures);
+        functions.forEach(it -> analyzeRanges(it, Collections.emptyList()));
+        analyzeRanges(loop, live); // the frame holds 64-bit values
+        functions.forEach(this::run);
+
+        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, "loop",
+            "([J[Ljava/lang/Object;)V", null, null);
+        method.visitCode();
+        variableCounter = 2; // the two arrays
+        int[] indices = new int[live.size()];
+
+        for (int i = 0; i < indices.length; ++i) {
+            org.objectweb.asm.Type type = nodeAsmType(live.get(i));
+            indices[i] = registerVariable(live.get(i), type);
+            loadFrameSlot(live.get(i), type);
+            method.visitVarInsn(type.getOpcode(ISTORE), indices[i]);
+        }
+
+        run(loop);
+
+        for (int i = 0; i < indices.length; ++i)
+            storeFrameSlot(live.get(i), nodeAsmType(live.get(i)), indices[i]);
+
+        method.visitInsn(RETURN);
+        method.visitEnd();
+        method.visitMaxs(-1, -1);
+        sharedFunctionValues();
+        container.visitEnd();
+        GeneratedClass mainClass = new GeneratedClass(containerName, container.toByteArray());
+        return new CompilationResult(mainClass, funInterfaceClasses());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes the value of the variable from the interpreter frame arrays (see {@link
+     * #compileLoop}).
+     */
+    private void loadFrameSlot (VarDeclarationNode variable, org.objectweb.asm.Type type)
+    {
+        int slot = attributes.slot(variable);
+        boolean primitive = type.getSort() != org.objectweb.asm.Type.OBJECT;
+        method.visitVarInsn(ALOAD, primitive ? 0 : 1);
+        method.visitLdcInsn(slot);
+
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.LONG:
+                method.visitInsn(LALOAD);
+                break;
+            case org.objectweb.asm.Type.DOUBLE:
+                method.visitInsn(LALOAD);
+                invokeStatic(method, Double.class, "longBitsToDouble", long.class);
+                break;
+            case org.objectweb.asm.Type.BOOLEAN:
+                method.visitInsn(LALOAD);
+                method.visitInsn(L2I); // stored as 0 or 1
+                break;
+            default:
+                method.visitInsn(AALOAD);
+                method.visitTypeInsn(CHECKCAST, type.getInternalName());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the value of the variable (at the given index in the JVM method) back to the
+     * interpreter frame arrays (see {@link #compileLoop}).
+     */
+    private void storeFrameSlot (VarDeclarationNode variable, org.objectweb.asm.Type type, int index)
+    {
+        int slot = attributes.slot(variable);
+        boolean primitive = type.getSort() != org.objectweb.asm.Type.OBJECT;
+        method.visitVarInsn(ALOAD, primitive ? 0 : 1);
+        method.visitLdcInsn(slot);
+        method.visitVarInsn(type.getOpcode(ILOAD), index);
+
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.LONG:
+                method.visitInsn(LASTORE);
+                break;
+            case org.objectweb.asm.Type.DOUBLE:
+                invokeStatic(method, Double.class, "doubleToRawLongBits", double.class);
+                method.visitInsn(LASTORE);
+                break;
+            case org.objectweb.asm.Type.BOOLEAN:
+                method.visitInsn(I2L);
+                method.visitInsn(LASTORE);
+                break;
+            default:
+                method.visitInsn(AASTORE);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object run (SighNode node) {
         return visitor.apply(node);
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Emits the static members of the container class: the {@code $out} output sink (initially
+     * writing to the standard output), the call to {@code $initFunctionValues} (see {@link
+     * #sharedFunctionValues}), and the members needed for fuel metering and allocation
+     * metering, if enabled: the {@code $fuel} and {@code $allocatable} budgets (initially
+     * unlimited), and the {@code $charge(int)}, {@code $allocate(long)} and {@code
+     * $allocateString(String)} methods consuming them.
+     */
+    private void staticMembers ()
+    {
+        MethodVisitor init = container.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        init.visitCode();
+
+        container.visitField(ACC_PUBLIC | ACC_STATIC, "$out", OUTPUT_SINK_DESCRIPTOR, null, null)
+            .visitEnd();
+        invokeStatic(init, OutputSink.class, "stdout");
+        init.visitFieldInsn(PUTSTATIC, containerName, "$out", OUTPUT_SINK_DESCRIPTOR);
+        init.visitMethodInsn(INVOKESTATIC, containerName, "$initFunctionValues", "()V", false);
+
+        // implements print when used as a function value
+        MethodVisitor print = container.visitMethod(ACC_PUBLIC | ACC_STATIC, "$print",
+            "(Ljava/lang/String;)Ljava/lang/String;", null, null);
+        print.visitCode();
+        print.visitFieldInsn(GETSTATIC, containerName, "$out", OUTPUT_SINK_DESCRIPTOR);
+        print.visitVarInsn(ALOAD, 0);
+        print.visitMethodInsn(INVOKEVIRTUAL, OUTPUT_SINK, "println", "(Ljava/lang/String;)V", false);
+        print.visitVarInsn(ALOAD, 0);
+        print.visitInsn(ARETURN);
+        print.visitEnd();
+        print.visitMaxs(-1, -1);
+
+        if (meterFuel) {
+            budgetField(init, "$fuel");
+            budgetMethod("$charge", "(I)V", "$fuel", OutOfFuelException.class);
+        }
+
+        if (meterAllocations) {
+            budgetField(init, "$allocatable");
+            budgetMethod("$allocate", "(J)V", "$allocatable", AllocationQuotaExceededException.class);
+
+            // charges the size of the string, then returns it
+            MethodVisitor allocateString = container.visitMethod(ACC_PUBLIC | ACC_STATIC,
+                "$allocateString", "(Ljava/lang/String;)Ljava/lang/String;", null, null);
+            allocateString.visitCode();
+            allocateString.visitVarInsn(ALOAD, 0);
+            allocateString.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+            invokeStatic(allocateString, Allocations.class, "stringSize", int.class);
+            allocateString.visitMethodInsn(INVOKESTATIC, containerName, "$allocate", "(J)V", false);
+            allocateString.visitVarInsn(ALOAD, 0);
+            allocateString.visitInsn(ARETURN);
+            allocateString.visitEnd();
+            allocateString.visitMaxs(-1, -1);
+        }
+
+        init.visitInsn(RETURN);
+        init.visitEnd();
+        init.visitMaxs(-1, -1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits a static {@code long} budget field, and its initialization to {@code Long.MAX_VALUE} in
+     * the static initializer {@code init}.
+     */
+    private void budgetField (MethodVisitor init, String field)
+    {
+        container.visitField(ACC_PUBLIC | ACC_STATIC, field, "J", null, null).visitEnd();
+        init.visitLdcInsn(Long.MAX_VALUE);
+        init.visitFieldInsn(PUTSTATIC, containerName, field, "J");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits a static method subtracting its single {@code int} or {@code long} argument from the
+     * given budget field, and throwing the given exception if the budget becomes negative.
+     */
+    private void budgetMethod (String name, String descriptor, String field,
+            Class<? extends RuntimeException> exception)
+    {
+        String exceptionName = slashBinaryName(exception);
+        MethodVisitor charge = container.visitMethod(ACC_PUBLIC | ACC_STATIC, name, descriptor, null, null);
+        Label ok = new Label();
+        charge.visitCode();
+        charge.visitFieldInsn(GETSTATIC, containerName, field, "J");
+        if (descriptor.equals("(I)V")) {
+            charge.visitVarInsn(ILOAD, 0);
+            charge.visitInsn(I2L);
+        } else {
+            charge.visitVarInsn(LLOAD, 0);
+        }
+        charge.visitInsn(LSUB);
+        charge.visitInsn(DUP2);
+        charge.visitFieldInsn(PUTSTATIC, containerName, field, "J");
+        charge.visitInsn(LCONST_0);
+        charge.visitInsn(LCMP);
+        charge.visitJumpInsn(IFGE, ok);
+        charge.visitInsn(LCONST_0);
+        charge.visitFieldInsn(PUTSTATIC, containerName, field, "J");
+        charge.visitTypeInsn(NEW, exceptionName);
+        charge.visitInsn(DUP);
+        charge.visitMethodInsn(INVOKESPECIAL, exceptionName, "<init>", "()V", false);
+        charge.visitInsn(ATHROW);
+        charge.visitLabel(ok);
+        charge.visitInsn(RETURN);
+        charge.visitEnd();
+        charge.visitMaxs(-1, -1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Charges an allocation of the given (constant) size, if allocation metering is enabled. */
+    private void allocate (long bytes) {
+        if (!meterAllocations) return;
+        method.visitLdcInsn(bytes);
+        method.visitMethodInsn(INVOKESTATIC, containerName, "$allocate", "(J)V", false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Charges the fuel counted by the back-edge counter at the given local variable index. */
+    private void chargeCounter (int counter) {
+        method.visitVarInsn(ILOAD, counter);
+        method.visitMethodInsn(INVOKESTATIC, containerName, "$charge", "(I)V", false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object root (RootNode node)
     {
         container = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
         container.visit(V1_8, ACC_PUBLIC, containerName, null, "java/lang/Object", null);
+        staticMembers();
 
-        // Top-level code belongs in the run method.
-        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, "run",
+        // Top-level code belongs in the $run method, called by run.
+        method = container.visitMethod(ACC_PRIVATE | ACC_STATIC, "$run",
             "([Ljava/lang/String;)Ljava/lang/Object;", null, null);
         method.visitCode();
         topLevel = true;
+        initCapturedLocals(node);
         node.statements.forEach(this::run);
         // append "return null;" since we do not know if top-level code always returns
         loadConstant(method, null);
         method.visitInsn(ARETURN);
         method.visitEnd();
         method.visitMaxs(-1, -1);
-        container.visitEnd();
+
+        runMethod();
 
         // Traditional java main method to run standalone.
         // This just calls run, ignoring its return value.
@@ -200,25 +620,77 @@ public class BytecodeCompiler
         method.visitInsn(RETURN); // explicitly necessary
         method.visitEnd();
         method.visitMaxs(-1, -1);
+        sharedFunctionValues();
         container.visitEnd();
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Emits the {@code run} method, which calls {@code $run} then flushes the output, whether the
+     * program completes normally or not.
+     *
+     * <p>The method is synchronized (on the class), as the output sink and budgets are static
+     * fields: this makes executions of the class run one at a time (see {@link
+     * CompilationResult}).
+     */
+    private void runMethod ()
+    {
+        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC | ACC_SYNCHRONIZED, "run",
+            "([Ljava/lang/String;)Ljava/lang/Object;", null, null);
+        Label start = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+        method.visitCode();
+        method.visitTryCatchBlock(start, end, handler, null);
+        method.visitLabel(start);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitMethodInsn(INVOKESTATIC, containerName,
+            "$run", "([Ljava/lang/String;)Ljava/lang/Object;", false);
+        method.visitLabel(end);
+        flushOutput();
+        method.visitInsn(ARETURN);
+        method.visitLabel(handler);
+        flushOutput();
+        method.visitInsn(ATHROW);
+        method.visitEnd();
+        method.visitMaxs(-1, -1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void flushOutput () {
+        method.visitFieldInsn(GETSTATIC, containerName, "$out", OUTPUT_SINK_DESCRIPTOR);
+        method.visitMethodInsn(INVOKEVIRTUAL, OUTPUT_SINK, "flush", "()V", false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object funDecl (FunDeclarationNode node)
     {
+        HashMap<Pair<Scope, String>, Integer> surroundingVariables = variables;
         int surroundingVariableCounter = variableCounter;
         MethodVisitor surroundingMethod = method;
         boolean surroundingIsTopLevel = topLevel;
+        ArrayDeque<Integer> surroundingFuelCounters = fuelCounters;
 
+        variables = new HashMap<>();
         variableCounter = 0;
         topLevel = false;
+        fuelCounters = new ArrayDeque<>();
+        for (DeclarationNode variable: captures(node))
+            registerVariable(variable, captureType(variable));
         node.parameters.forEach(this::run);
 
-        String descriptor = methodDescriptor(reactor.get(node, "type"));
+        String descriptor = functionDescriptor(node);
         method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, node.name, descriptor, null, null);
         method.visitCode();
+        if (meterFuel) {
+            method.visitInsn(ICONST_1);
+            method.visitMethodInsn(INVOKESTATIC, containerName, "$charge", "(I)V", false);
+        }
+        initCapturedLocals(node);
         run(node.block);
 
         // NOTE: The current semantic analysis check guarantee that there is we unconditionally
@@ -233,8 +705,10 @@ public class BytecodeCompiler
         method.visitMaxs(-1, -1);
 
         method = surroundingMethod;
+        variables = surroundingVariables;
         variableCounter = surroundingVariableCounter;
         topLevel = surroundingIsTopLevel;
+        fuelCounters = surroundingFuelCounters;
         return null;
     }
 
@@ -265,8 +739,9 @@ public class BytecodeCompiler
 
     private Object arrayLiteral (ArrayLiteralNode node)
     {
-        ArrayType type = reactor.get(node, "type");
+        ArrayType type = attributes.type(node);
         Type compType = type.componentType;
+        allocate(Allocations.arraySize(compType, node.components.size()));
 
         method.visitLdcInsn(node.components.size());
         int storeOpcode = AASTORE;
@@ -285,7 +760,7 @@ public class BytecodeCompiler
         } else if (compType instanceof TypeType) {
             method.visitTypeInsn(ANEWARRAY, "norswap/sigh/types/TypeType");
         } else if (compType instanceof FunType) {
-            throw new UnsupportedOperationException("TODO"); // TODO
+            method.visitTypeInsn(ANEWARRAY, funInterface((FunType) compType));
         } else if (compType instanceof NullType) {
             method.visitTypeInsn(ANEWARRAY, "norswap/sigh/bytecode/Null");
         } else if (compType instanceof VoidType || compType instanceof ArrayType) {
@@ -314,32 +789,26 @@ public class BytecodeCompiler
         if (isShortCircuit(node.operator))
             return shortCircuit(node);
 
+        if (node.operator == ADD && attributes.type(node) instanceof StringType)
+            return concatenation(node);
+
+        if ((isComparison(node.operator) || isEquality(node.operator))
+                && isIntOperand(node.left) && isIntOperand(node.right))
+            return intComparison(node);
+
         run(node.left);
 
-        Type left  = reactor.get(node.left, "type");
-        Type right = reactor.get(node.right, "type");
+        Type left  = attributes.type(node.left);
+        Type right = attributes.type(node.right);
 
         // promote long to double for mixed operations
         if (enablesPromotion(node.operator) && left instanceof IntType && right instanceof FloatType)
             method.visitInsn(L2D);
 
-        // string concatenation: convert value to string
-        if (node.operator == ADD && right instanceof StringType)
-            convertToString(left);
-
         run(node.right);
 
         switch (node.operator) {
-            case ADD:
-                if (left instanceof StringType) {
-                    convertToString(right);
-                    invokeStatic(method, SighRuntime.class, "concat", String.class, String.class);
-                } else if (right instanceof StringType) {
-                    // left already converted to string in this case
-                    invokeStatic(method, SighRuntime.class, "concat", String.class, String.class);
-                } else {
-                    numOperation(LADD, DADD, left, right);
-                } break;
+            case ADD:       numOperation(LADD, DADD, left, right); break;
 
             case MULTIPLY:  numOperation(LMUL, DMUL, left, right); break;
             case DIVIDE:    numOperation(LDIV, DDIV, left, right); break;
@@ -367,6 +836,63 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Assumed length of the string representation of non-literal concatenation operands. */
+    private static final int OPERAND_LENGTH_GUESS = 16;
+
+    /**
+     * Compiles a string concatenation chain (see {@link FrozenAttributes#concatenation}) to a
+     * single {@link StringBuilder}, presized from the literal operands.
+     *
+     * <p>{@code StringConcatFactory} would be preferable, but requires Java 9.
+     */
+    private Object concatenation (BinaryExpressionNode node)
+    {
+        ExpressionNode[] operands = attributes.concatenation(node);
+        String builder = "java/lang/StringBuilder";
+
+        int capacity = 0;
+        for (ExpressionNode operand: operands)
+            capacity += operand instanceof StringLiteralNode
+                ? ((StringLiteralNode) operand).value.length()
+                : OPERAND_LENGTH_GUESS;
+
+        method.visitTypeInsn(NEW, builder);
+        method.visitInsn(DUP);
+        method.visitLdcInsn(capacity);
+        method.visitMethodInsn(INVOKESPECIAL, builder, "<init>", "(I)V", false);
+
+        for (ExpressionNode operand: operands) {
+            run(operand);
+            Type type = attributes.type(operand);
+            // appending primitives gives the same representation as String.valueOf
+            if (type instanceof IntType)
+                append("J");
+            else if (type instanceof FloatType)
+                append("D");
+            else if (type instanceof BoolType)
+                append("Z");
+            else {
+                convertToString(type);
+                append("Ljava/lang/String;");
+            }
+        }
+
+        method.visitMethodInsn(INVOKEVIRTUAL, builder, "toString", "()Ljava/lang/String;", false);
+        if (meterAllocations)
+            method.visitMethodInsn(INVOKESTATIC, containerName, "$allocateString",
+                "(Ljava/lang/String;)Ljava/lang/String;", false);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void append (String descriptor) {
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+            "(" + descriptor + ")Ljava/lang/StringBuilder;", false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private boolean enablesPromotion (BinaryOperator op) {
         return isArithmetic(op) || isComparison(op) || isEquality(op);
     }
@@ -496,6 +1022,37 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Compiles a comparison whose operands are both 32-bit (see {@link #isIntOperand}) using
+     * {@code int} instructions.
+     */
+    private Object intComparison (BinaryExpressionNode node)
+    {
+        Label trueLabel = new Label();
+        Label endLabel = new Label();
+        intExpression(node.left);
+        intExpression(node.right);
+
+        switch (node.operator) {
+            case EQUALITY:      method.visitJumpInsn(IF_ICMPEQ, trueLabel); break;
+            case NOT_EQUALS:    method.visitJumpInsn(IF_ICMPNE, trueLabel); break;
+            case GREATER:       method.visitJumpInsn(IF_ICMPGT, trueLabel); break;
+            case LOWER:         method.visitJumpInsn(IF_ICMPLT, trueLabel); break;
+            case GREATER_EQUAL: method.visitJumpInsn(IF_ICMPGE, trueLabel); break;
+            case LOWER_EQUAL:   method.visitJumpInsn(IF_ICMPLE, trueLabel); break;
+            default: throw new Error("unexpected comparison operator: " + node.operator);
+        }
+
+        method.visitInsn(ICONST_0);
+        method.visitJumpInsn(GOTO, endLabel);
+        method.visitLabel(trueLabel);
+        method.visitInsn(ICONST_1);
+        method.visitLabel(endLabel);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object unaryExpression (UnaryExpressionNode node)
     {
         // there is only NOT
@@ -518,8 +1075,7 @@ public class BytecodeCompiler
     private Object arrayAccess (ArrayAccessNode node)
     {
         run(node.array);
-        run(node.index);
-        method.visitInsn(L2I); // indices must be 32-bit int
+        intExpression(node.index); // indices must be 32-bit int
         method.visitInsn(nodeAsmType(node).getOpcode(IALOAD));
         return null;
     }
@@ -528,28 +1084,30 @@ public class BytecodeCompiler
 
     private Object funCall (FunCallNode node)
     {
-        FunType funType = reactor.get(node.function, "type");
+        FunType funType = attributes.type(node.function);
 
         // The function part can either be a reference, in which case we emit a call,
         // or a more complex expression, which will evaluate to a lambda.
 
         if (node.function instanceof ReferenceNode) {
-            DeclarationNode decl = reactor.get(node.function, "decl");
+            DeclarationNode decl = attributes.decl(node.function);
             if (decl instanceof SyntheticDeclarationNode) {
                 return builtin(funType, decl.name(), node.arguments);
             }
             else if (decl instanceof FunDeclarationNode) {
+                FunDeclarationNode function = (FunDeclarationNode) decl;
+                loadCaptures(function);
                 runArguments(funType, node.arguments);
                 method.visitMethodInsn(INVOKESTATIC, containerName,
-                    decl.name(), methodDescriptor(funType), false);
-            }
-            else { // TODO
-                throw new UnsupportedOperationException("variables or parameters containing a function value");
+                    decl.name(), functionDescriptor(function), false);
             }
+            else
+                callValue(funType, node);
         }
         else if (node.function instanceof ConstructorNode) {
-            StructDeclarationNode decl = reactor.get(((ConstructorNode) node.function).ref, "decl");
-            String binaryName = structBinaryName(reactor.get(decl, "declared"));
+            StructDeclarationNode decl = attributes.decl(((ConstructorNode) node.function).ref);
+            String binaryName = structBinaryName(attributes.declared(decl));
+            allocate(Allocations.structSize(decl.fields.size()));
             method.visitTypeInsn(NEW, binaryName);
             method.visitInsn(DUP);
             runArguments(funType, node.arguments);
@@ -557,22 +1115,136 @@ public class BytecodeCompiler
             method.visitMethodInsn(INVOKESPECIAL, binaryName, "<init>", descriptor, false);
         }
         else
-            throw new UnsupportedOperationException("complex expression evaluating to a function value");
+            callValue(funType, node);
 
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Calls a function value through its functional interface (see {@link #funInterface}).
+     */
+    private void callValue (FunType funType, FunCallNode node)
+    {
+        String iface = funInterface(funType);
+        run(node.function);
+        runArguments(funType, node.arguments);
+        method.visitMethodInsn(INVOKEINTERFACE, iface, "invoke", erasedMethodDescriptor(funType), true);
+        if (funType.returnType.isReference() && !(funType.returnType instanceof VoidType))
+            method.visitTypeInsn(CHECKCAST, asmType(funType.returnType).getInternalName());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a function value implemented by the method referenced by {@code implementation}.
+     *
+     * <p>{@code captured} is the concatenation of the descriptors of the values bound to the
+     * leading parameters of the method, which must be on the stack. If there are none, the
+     * function value is loaded from a static field, so that all references to a function yield the
+     * same value, as in the interpreter (see {@link #sharedFunctionValues}).
+     */
+    private void functionValue (FunType funType, Handle implementation, String captured)
+    {
+        if (!captured.isEmpty()) {
+            createFunctionValue(method, funType, implementation, captured);
+            return;
+        }
+        String field = sharedFunctionValues.computeIfAbsent(implementation,
+            it -> new Pair<>("$function" + sharedFunctionValues.size(), funType)).a;
+        method.visitFieldInsn(GETSTATIC, containerName, field, "L" + funInterface(funType) + ";");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a function value implemented by the method referenced by {@code implementation},
+     * using an {@code invokedynamic} instruction bootstrapped by {@link
+     * java.lang.invoke.LambdaMetafactory}, like Java method references. See {@link
+     * #functionValue}.
+     */
+    private void createFunctionValue (MethodVisitor method, FunType funType,
+            Handle implementation, String captured)
+    {
+        String iface = funInterface(funType);
+        method.visitInvokeDynamicInsn("invoke", "(" + captured + ")L" + iface + ";", METAFACTORY,
+            org.objectweb.asm.Type.getMethodType(erasedMethodDescriptor(funType)),
+            implementation,
+            org.objectweb.asm.Type.getMethodType(methodDescriptor(funType)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the static fields holding the function values that capture nothing, recorded by
+     * {@link #functionValue}, and the {@code $initFunctionValues} method, called by the static
+     * initializer, which creates them.
+     */
+    private void sharedFunctionValues ()
+    {
+        MethodVisitor init = container.visitMethod(ACC_PRIVATE | ACC_STATIC,
+            "$initFunctionValues", "()V", null, null);
+        init.visitCode();
+        sharedFunctionValues.forEach((implementation, value) -> {
+            String descriptor = "L" + funInterface(value.b) + ";";
+            container.visitField(ACC_PRIVATE | ACC_STATIC, value.a, descriptor, null, null)
+                .visitEnd();
+            createFunctionValue(init, value.b, implementation, "");
+            init.visitFieldInsn(PUTSTATIC, containerName, value.a, descriptor);
+        });
+        init.visitInsn(RETURN);
+        init.visitEnd();
+        init.visitMaxs(-1, -1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the functional interface representing values of the given function type,
+     * and records that it must be generated.
+     *
+     * <p>The interface has a single {@code invoke} method, whose signature is the function
+     * signature, with reference types erased to {@code Object} so that functions types with the
+     * same erased signature can share the interface (see {@link TypeUtils#funInterfaceName}).
+     * Calls through the interface are monomorphic at most call sites, and can be inlined by the
+     * JIT compiler.
+     */
+    private String funInterface (FunType funType) {
+        String name = funInterfaceName(funType);
+        funInterfaces.putIfAbsent(name, funType);
+        return name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates the functional interfaces recorded by {@link #funInterface}.
+     */
+    private List<GeneratedClass> funInterfaceClasses ()
+    {
+        List<GeneratedClass> classes = new ArrayList<>();
+        funInterfaces.forEach((name, funType) -> {
+            ClassWriter iface = new ClassWriter(0);
+            iface.visit(V1_8, ACC_PUBLIC | ACC_ABSTRACT | ACC_INTERFACE, name, null,
+                "java/lang/Object", null);
+            iface.visitMethod(ACC_PUBLIC | ACC_ABSTRACT, "invoke",
+                erasedMethodDescriptor(funType), null, null).visitEnd();
+            iface.visitEnd();
+            classes.add(new GeneratedClass(name, iface.toByteArray()));
+        });
+        return classes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object builtin (FunType funType, String name, List<ExpressionNode> arguments)
     {
         assert name.equals("print"); // only one at the moment
-        method.visitFieldInsn(GETSTATIC, "java/lang/System", "out",
-            "Ljava/io/PrintStream;");
+        method.visitFieldInsn(GETSTATIC, containerName, "$out", OUTPUT_SINK_DESCRIPTOR);
         runArguments(funType, arguments);
         method.visitInsn(DUP_X1); // we return the printed string!
-        method.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println",
-            "(Ljava/lang/String;)V", false);
+        method.visitMethodInsn(INVOKEVIRTUAL, OUTPUT_SINK, "println", "(Ljava/lang/String;)V", false);
         return null;
     }
 
@@ -586,18 +1258,24 @@ public class BytecodeCompiler
     {
         Vanilla.forEachIndexed(arguments, (i, arg) -> {
             run(arg);
-            implicitConversion(funType.paramTypes[i], reactor.get(arg, "type"));
+            implicitConversion(funType.paramTypes[i], attributes.type(arg));
         });
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object expressionStmt (ExpressionStatementNode node) {
+    private Object expressionStmt (ExpressionStatementNode node)
+    {
+        if (isPrintedConcatenation(node.expression)) {
+            printConcatenation((FunCallNode) node.expression);
+            return null;
+        }
+
         run(node.expression);
         if (node.expression instanceof AssignmentNode)
-            pop(reactor.get(node.expression, "type"));
+            pop(attributes.type(node.expression));
         else if (node.expression instanceof FunCallNode) {
-            Type type = reactor.get(node.expression, "type");
+            Type type = attributes.type(node.expression);
             if (!(type instanceof VoidType)) pop(type);
         }
         return null;
@@ -605,7 +1283,61 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns true if the expression calls {@code print} on a string concatenation whose operands
+     * are all literals or references. As these can't fail or print, each operand can be printed as
+     * soon as it is evaluated, without changing the output.
+     */
+    private boolean isPrintedConcatenation (ExpressionNode node)
+    {
+        if (!(node instanceof FunCallNode)) return false;
+        FunCallNode call = (FunCallNode) node;
+        return call.function instanceof ReferenceNode
+            && attributes.decl(call.function) instanceof SyntheticDeclarationNode
+            && ((SyntheticDeclarationNode) attributes.decl(call.function)).name().equals("print")
+            && call.arguments.get(0) instanceof BinaryExpressionNode
+            && attributes.type(call.arguments.get(0)) instanceof StringType
+            && Arrays.stream(attributes.concatenation((BinaryExpressionNode) call.arguments.get(0)))
+                .allMatch(it -> it instanceof ReferenceNode
+                    || it instanceof StringLiteralNode
+                    || it instanceof IntLiteralNode
+                    || it instanceof FloatLiteralNode);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints the operands of a string concatenation one after the other, without building the
+     * string, which is not used.
+     */
+    private void printConcatenation (FunCallNode node)
+    {
+        method.visitFieldInsn(GETSTATIC, containerName, "$out", OUTPUT_SINK_DESCRIPTOR);
+        BinaryExpressionNode concatenation = (BinaryExpressionNode) node.arguments.get(0);
+        for (ExpressionNode operand: attributes.concatenation(concatenation)) {
+            method.visitInsn(DUP);
+            run(operand);
+            Type type = attributes.type(operand);
+            String descriptor;
+            if (type instanceof IntType)
+                descriptor = "(J)V";
+            else if (type instanceof FloatType)
+                descriptor = "(D)V";
+            else {
+                convertToString(type);
+                descriptor = "(Ljava/lang/String;)V";
+            }
+            method.visitMethodInsn(INVOKEVIRTUAL, OUTPUT_SINK, "print", descriptor, false);
+        }
+        method.visitMethodInsn(INVOKEVIRTUAL, OUTPUT_SINK, "println", "()V", false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object returnStmt (ReturnNode node) {
+        // charge the back-edges of the loops we are returning from
+        fuelCounters.forEach(this::chargeCounter);
+
         if (node.expression == null) {
             if (topLevel) {
                 loadConstant(method, null);
@@ -619,7 +1351,7 @@ public class BytecodeCompiler
         run(node.expression);
 
         if (topLevel) {
-            Type type = reactor.get(node.expression, "type");
+            Type type = attributes.type(node.expression);
             if (type instanceof IntType)
                 invokeStatic(method, Long.class, "valueOf", long.class);
             else if (type instanceof FloatType)
@@ -666,12 +1398,37 @@ public class BytecodeCompiler
     {
         Label startLabel = new Label();
         Label endLabel = new Label();
+
+        if (!meterFuel) {
+            method.visitLabel(startLabel);
+            run(node.condition);
+            method.visitJumpInsn(IFEQ, endLabel);
+            run(node.body);
+            method.visitJumpInsn(GOTO, startLabel);
+            method.visitLabel(endLabel);
+            return null;
+        }
+
+        // Count back-edges in a local variable, charge them by batches (see class doc).
+        int counter = variableCounter++;
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, counter);
         method.visitLabel(startLabel);
         run(node.condition);
         method.visitJumpInsn(IFEQ, endLabel);
+        fuelCounters.push(counter);
         run(node.body);
+        fuelCounters.pop();
+        method.visitIincInsn(counter, 1);
+        method.visitVarInsn(ILOAD, counter);
+        method.visitLdcInsn(FUEL_BATCH);
+        method.visitJumpInsn(IF_ICMPLT, startLabel);
+        chargeCounter(counter);
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, counter);
         method.visitJumpInsn(GOTO, startLabel);
         method.visitLabel(endLabel);
+        chargeCounter(counter);
         return null;
     }
 
@@ -679,27 +1436,33 @@ public class BytecodeCompiler
 
     private Object reference (ReferenceNode node)
     {
-        DeclarationNode decl = reactor.get(node, "decl");
+        DeclarationNode decl = attributes.decl(node);
 
-        // TODO distinguish local variables from closures
-        if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
+        if (cells.contains(decl)) {
+            method.visitVarInsn(ALOAD, varIndex(node));
+            method.visitInsn(ICONST_0);
+            method.visitInsn(nodeAsmType(node).getOpcode(IALOAD));
+        }
+        else if (intVariables.contains(decl)) {
+            method.visitVarInsn(ILOAD, varIndex(node));
+            method.visitInsn(I2L);
+        }
+        else if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
             method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), varIndex(node));
         }
         else if (decl instanceof StructDeclarationNode) {
             // NOTE: This is not used when the reference is part of a constructor call, the
             // resolution is handled in #funCall.
-            org.objectweb.asm.Type asmType = asmType(reactor.get(decl, "declared"));
+            org.objectweb.asm.Type asmType = asmType(attributes.declared(decl));
             method.visitLdcInsn(asmType); // class constant for emitted type
         }
         else if (decl instanceof FunDeclarationNode) {
             // NOTE: This is not used when the reference is part of a function call, the resolution
             // is handled in #funCall.
-
-            // TODO proper handling/representation of function object
-            //  For now I use a method handle. There is no way to use it in the language however.
-            method.visitLdcInsn(new Handle(
-                H_INVOKESTATIC, containerName, decl.name(),
-                methodDescriptor(reactor.get(decl, "type")), false));
+            FunDeclarationNode function = (FunDeclarationNode) decl;
+            loadCaptures(function);
+            functionValue(attributes.type(decl), new Handle(H_INVOKESTATIC, containerName,
+                decl.name(), functionDescriptor(function), false), capturesDescriptor(function));
         }
         else if (decl instanceof SyntheticDeclarationNode) {
             switch (decl.name()) {
@@ -722,8 +1485,9 @@ public class BytecodeCompiler
                     method.visitLdcInsn(org.objectweb.asm.Type.getType(Class.class));
                     break;
                 case "print":
-                    // TODO cf FunDeclarationNode case above
-                    method.visitLdcInsn(staticHandle(SighRuntime.class, "print", String.class));
+                    // cf. FunDeclarationNode case above
+                    functionValue(attributes.type(decl), new Handle(H_INVOKESTATIC, containerName,
+                        "$print", "(Ljava/lang/String;)Ljava/lang/String;", false), "");
                     break;
                 case "true":  loadConstant(method, 1);      break;
                 case "false": loadConstant(method, 0);      break;
@@ -740,7 +1504,27 @@ public class BytecodeCompiler
     private Object varDecl (VarDeclarationNode node)
     {
         org.objectweb.asm.Type type = nodeAsmType(node);
-        int index = registerVariable(node, type);
+
+        if (cells.contains(node)) {
+            // the cell was created on entry, see #initCapturedLocals
+            method.visitVarInsn(ALOAD, variableIndex(node));
+            method.visitInsn(ICONST_0);
+            run(node.initializer);
+            implicitConversion(node, node.initializer);
+            method.visitInsn(type.getOpcode(IASTORE));
+            return null;
+        }
+
+        if (intVariables.contains(node)) {
+            int index = registerVariable(node, org.objectweb.asm.Type.INT_TYPE);
+            intExpression(node.initializer);
+            method.visitVarInsn(ISTORE, index);
+            return null;
+        }
+
+        // captured variables are registered on entry, see #initCapturedLocals
+        Integer captured = variableIndex(node);
+        int index = captured != null ? captured : registerVariable(node, type);
         run(node.initializer);
         implicitConversion(node, node.initializer);
         method.visitVarInsn(type.getOpcode(ISTORE), index);
@@ -760,7 +1544,28 @@ public class BytecodeCompiler
 
     public Object assignment (AssignmentNode node)
     {
-        if (node.left instanceof ReferenceNode) {
+        if (node.left instanceof ReferenceNode && cells.contains(attributes.decl(node.left))) {
+            method.visitVarInsn(ALOAD, varIndex((ReferenceNode) node.left));
+            method.visitInsn(ICONST_0);
+            run(node.right);
+            Type type = implicitConversion(node, node.right);
+            dup_x2(type);
+            method.visitInsn(nodeAsmType(node).getOpcode(IASTORE));
+        }
+        else if (node.left instanceof ReferenceNode
+                && intVariables.contains(attributes.decl(node.left))) {
+            int index = varIndex((ReferenceNode) node.left);
+            Integer increment = increment(node);
+            if (increment != null)
+                method.visitIincInsn(index, increment);
+            else {
+                intExpression(node.right);
+                method.visitVarInsn(ISTORE, index);
+            }
+            method.visitVarInsn(ILOAD, index);
+            method.visitInsn(I2L);
+        }
+        else if (node.left instanceof ReferenceNode) {
             ReferenceNode left = (ReferenceNode) node.left;
             run(node.right);
             Type type = implicitConversion(node, node.right);
@@ -770,8 +1575,7 @@ public class BytecodeCompiler
         else if (node.left instanceof ArrayAccessNode) {
             ArrayAccessNode left = (ArrayAccessNode) node.left;
             run(left.array);
-            run(left.index);
-            method.visitInsn(L2I);
+            intExpression(left.index);
             run(node.right);
             Type type = implicitConversion(node, node.right);
             dup_x2(type);
@@ -783,8 +1587,8 @@ public class BytecodeCompiler
             run(node.right);
             Type type = implicitConversion(node, node.right);
             dup_x1(type);
-            StructType structType = reactor.get(left.stem, "type");
-            Type fieldType = reactor.get(node, "type");
+            StructType structType = attributes.type(left.stem);
+            Type fieldType = attributes.type(node);
             method.visitFieldInsn(PUTFIELD, structBinaryName(structType), left.fieldName,
                 fieldDescriptor(fieldType));
         }
@@ -802,7 +1606,7 @@ public class BytecodeCompiler
 
         // generate constructor
         Type[] paramTypes =
-            node.fields.stream().map(f -> (Type) reactor.get(f, "type")).toArray(Type[]::new);
+            node.fields.stream().map(f -> attributes.type(f)).toArray(Type[]::new);
         String descriptor = methodDescriptor(VoidType.INSTANCE, paramTypes);
         MethodVisitor init = struct.visitMethod(ACC_PUBLIC, "<init>", descriptor, null, null);
         init.visitCode();
@@ -838,18 +1642,557 @@ public class BytecodeCompiler
 
     private Object fieldAccess (FieldAccessNode node) {
         run(node.stem);
-        String binaryName = asmType(reactor.get(node.stem, "type")).getClassName();
+        if (isArrayLength(node)) {
+            method.visitInsn(ARRAYLENGTH);
+            method.visitInsn(I2L);
+            return null;
+        }
+        String binaryName = asmType(attributes.type(node.stem)).getClassName();
         method.visitFieldInsn(GETFIELD, binaryName, node.fieldName, nodeFieldDescriptor(node));
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Constructor constructor (ConstructorNode node) {
-        // not needed - handled in funCall instead
+    private Object constructor (ConstructorNode node)
+    {
+        // NOTE: This is not used when the constructor is called, which is handled in #funCall.
+        FunType funType = attributes.type(node);
+        String binaryName = structBinaryName(attributes.declared(attributes.decl(node.ref)));
+        // not shared, as the interpreter creates a new constructor value for each reference
+        createFunctionValue(method, funType, new Handle(H_NEWINVOKESPECIAL, binaryName, "<init>",
+            methodDescriptor(VoidType.INSTANCE, funType.paramTypes), false), "");
         return null;
     }
 
+    // =============================================================================================
+    // region [Closures]
+    // =============================================================================================
+
+    /**
+     * Computes the variables captured by the functions declared in the tree rooted at {@code root}
+     * (see the class documentation), filling {@link #captures}, {@link #capturedLocals} and {@link
+     * #cells}.
+     *
+     * <p>A function captures the variables declared outside of it (i.e. at a lower depth) that it
+     * uses, as well as those captured by the functions it references, for as long as they are also
+     * declared outside of it. The latter is a fixed point computation, as functions can be
+     * (mutually) recursive.
+     */
+    private void analyzeCaptures (SighNode root)
+    {
+        List<FunDeclarationNode> functions = new ArrayList<>();
+        IdentityHashMap<FunDeclarationNode, List<FunDeclarationNode>> references = new IdentityHashMap<>();
+        IdentityHashMap<DeclarationNode, SighNode> owners = new IdentityHashMap<>();
+        Set<DeclarationNode> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<FunDeclarationNode> stack = new ArrayDeque<>();
+
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT, POST_VISIT);
+        walker.registerFallback(PRE_VISIT, node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+
+        walker.register(FunDeclarationNode.class, PRE_VISIT, node -> {
+            functions.add(node);
+            captures.put(node, new ArrayList<>());
+            references.put(node, new ArrayList<>());
+            stack.push(node);
+        });
+        walker.register(FunDeclarationNode.class, POST_VISIT, node -> stack.pop());
+        walker.register(VarDeclarationNode.class, PRE_VISIT, node ->
+            owners.put(node, stack.isEmpty() ? root : stack.peek()));
+        walker.register(ParameterNode.class, PRE_VISIT, node ->
+            owners.put(node, stack.peek()));
+        walker.register(AssignmentNode.class, PRE_VISIT, node -> {
+            if (node.left instanceof ReferenceNode)
+                assigned.add(attributes.decl(node.left));
+        });
+        walker.register(ReferenceNode.class, PRE_VISIT, node -> {
+            if (stack.isEmpty()) return;
+            FunDeclarationNode function = stack.peek();
+            DeclarationNode decl = attributes.decl(node);
+            if (decl instanceof FunDeclarationNode)
+                references.get(function).add((FunDeclarationNode) decl);
+            else if ((decl instanceof VarDeclarationNode || decl instanceof ParameterNode)
+                    && attributes.depth(decl) < attributes.depth(function))
+                addIdentical(captures.get(function), decl);
+        });
+
+        walker.walk(root);
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (FunDeclarationNode function: functions) {
+                int depth = attributes.depth(function);
+                List<DeclarationNode> captured = captures.get(function);
+                for (FunDeclarationNode referenced: references.get(function))
+                    for (DeclarationNode variable: captures(referenced))
+                        if (attributes.depth(variable) < depth)
+                            changed |= addIdentical(captured, variable);
+            }
+        }
+
+        for (FunDeclarationNode function: functions)
+            for (DeclarationNode variable: captures.get(function)) {
+                addIdentical(capturedLocals.computeIfAbsent(owners.get(variable),
+                    k -> new ArrayList<>()), variable);
+                if (assigned.contains(variable))
+                    cells.add(variable);
+            }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the node to the list unless it already contains it (by identity), and returns true if
+     * it was added.
+     */
+    private static boolean addIdentical (List<DeclarationNode> list, DeclarationNode node)
+    {
+        for (DeclarationNode it: list)
+            if (it == node) return false;
+        list.add(node);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the variables captured by the function, in the order in which they are passed.
+     */
+    private List<DeclarationNode> captures (FunDeclarationNode function) {
+        return captures.getOrDefault(function, Collections.emptyList());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the ASM type of the parameter or local used to hold the captured variable: the type
+     * of its cell if it has one, otherwise the type of the variable.
+     */
+    private org.objectweb.asm.Type captureType (DeclarationNode variable) {
+        return cells.contains(variable)
+            ? org.objectweb.asm.Type.getType("[" + nodeFieldDescriptor(variable))
+            : nodeAsmType(variable);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the descriptor of the method implementing the function: its signature, preceded by
+     * the variables it captures.
+     */
+    private String functionDescriptor (FunDeclarationNode function) {
+        return "(" + capturesDescriptor(function)
+            + methodDescriptor(attributes.type(function)).substring(1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private String capturesDescriptor (FunDeclarationNode function)
+    {
+        StringBuilder b = new StringBuilder();
+        for (DeclarationNode variable: captures(function))
+            b.append(captureType(variable).getDescriptor());
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes the values (or cells) of the variables captured by the function, which must be
+     * available in the current method.
+     */
+    private void loadCaptures (FunDeclarationNode function)
+    {
+        for (DeclarationNode variable: captures(function))
+            method.visitVarInsn(captureType(variable).getOpcode(ILOAD), variableIndex(variable));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers and initializes the variables declared by {@code owner} (a function or the root
+     * node) that are captured by other functions, at the start of its method.
+     *
+     * <p>As functions can be called before the declaration of the variables they capture, these
+     * variables must hold a value (or a cell) from the start of the method. Captured parameters
+     * that are assigned are moved into a cell.
+     */
+    private void initCapturedLocals (SighNode owner)
+    {
+        for (DeclarationNode variable: capturedLocals.getOrDefault(owner, Collections.emptyList()))
+        {
+            org.objectweb.asm.Type type = nodeAsmType(variable);
+            boolean cell = cells.contains(variable);
+
+            if (variable instanceof ParameterNode) {
+                if (!cell) continue;
+                int parameter = variableIndex(variable);
+                newCell(type);
+                method.visitInsn(DUP);
+                method.visitInsn(ICONST_0);
+                method.visitVarInsn(type.getOpcode(ILOAD), parameter);
+                method.visitInsn(type.getOpcode(IASTORE));
+            }
+            else if (cell)
+                newCell(type);
+            else
+                defaultValue(type);
+
+            int index = registerVariable(variable, captureType(variable));
+            method.visitVarInsn(captureType(variable).getOpcode(ISTORE), index);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes a new cell (single-element array) for a variable of the given type.
+     */
+    private void newCell (org.objectweb.asm.Type type)
+    {
+        method.visitInsn(ICONST_1);
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.LONG:    method.visitIntInsn(NEWARRAY, T_LONG);    break;
+            case org.objectweb.asm.Type.DOUBLE:  method.visitIntInsn(NEWARRAY, T_DOUBLE);  break;
+            case org.objectweb.asm.Type.BOOLEAN: method.visitIntInsn(NEWARRAY, T_BOOLEAN); break;
+            default: method.visitTypeInsn(ANEWARRAY, type.getInternalName());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes the default (zero) value for the given type.
+     */
+    private void defaultValue (org.objectweb.asm.Type type)
+    {
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.LONG:    method.visitInsn(LCONST_0);    break;
+            case org.objectweb.asm.Type.DOUBLE:  method.visitInsn(DCONST_0);    break;
+            case org.objectweb.asm.Type.BOOLEAN: method.visitInsn(ICONST_0);    break;
+            default: method.visitInsn(ACONST_NULL);
+        }
+    }
+
+    // =============================================================================================
+    // region [Range Analysis]
+    // =============================================================================================
+
+    /** The range of 32-bit integers. */
+    private static final long[] INT_RANGE = { Integer.MIN_VALUE, Integer.MAX_VALUE };
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the {@code Int} variables declared in the tree rooted at {@code root} that always
+     * hold 32-bit values, adding them to {@link #intVariables}. Variables captured by functions and
+     * the {@code excluded} variables are never included.
+     *
+     * <p>This is an optimistic fixed point computation: we assume that all the candidate variables
+     * hold 32-bit values, then remove those with a definition (initializer or assignment) whose
+     * value can't be proven to fit in 32 bits under this assumption (see {@link #range}), until
+     * all remaining definitions fit.
+     *
+     * <p>In an assignment guarded by a comparison on the assigned variable, the range of the
+     * variable is narrowed by the comparison (see {@link #guards}). This lets us prove that {@code
+     * i = i + 1} fits in a loop whose condition is {@code i < a.length}.
+     */
+    private void analyzeRanges (SighNode root, Collection<? extends DeclarationNode> excluded)
+    {
+        List<VarDeclarationNode> candidates = new ArrayList<>();
+        Set<DeclarationNode> captured = Collections.newSetFromMap(new IdentityHashMap<>());
+        captured.addAll(excluded);
+        // assignments to variables (in pre-order), and the nodes enclosing them (innermost first)
+        List<AssignmentNode> assignments = new ArrayList<>();
+        IdentityHashMap<AssignmentNode, List<SighNode>> ancestors = new IdentityHashMap<>();
+        ArrayDeque<SighNode> stack = new ArrayDeque<>();
+        ArrayDeque<FunDeclarationNode> functions = new ArrayDeque<>();
+
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.registerFallback(PRE_VISIT, node -> {
+            if (node instanceof VarDeclarationNode && attributes.type(node) instanceof IntType)
+                candidates.add((VarDeclarationNode) node);
+            else if (node instanceof FunDeclarationNode)
+                functions.push((FunDeclarationNode) node);
+            else if (node instanceof ReferenceNode && !functions.isEmpty()) {
+                DeclarationNode decl = attributes.decl(node);
+                if (decl instanceof VarDeclarationNode
+                        && attributes.depth(decl) < attributes.depth(functions.peek()))
+                    captured.add(decl);
+            }
+            else if (node instanceof AssignmentNode
+                    && ((AssignmentNode) node).left instanceof ReferenceNode) {
+                assignments.add((AssignmentNode) node);
+                ancestors.put((AssignmentNode) node, new ArrayList<>(stack));
+            }
+            stack.push(node);
+        });
+        walker.registerFallback(POST_VISIT, node -> {
+            stack.pop();
+            if (node instanceof FunDeclarationNode) functions.pop();
+        });
+
+        walker.walk(root);
+
+        IdentityHashMap<AssignmentNode, List<ExpressionNode>> guards = new IdentityHashMap<>();
+        for (AssignmentNode assignment: assignments)
+            guards.put(assignment, guards(assignment, assignments, ancestors));
+
+        for (VarDeclarationNode candidate: candidates)
+            if (!captured.contains(candidate))
+                intVariables.add(candidate);
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (VarDeclarationNode variable: candidates)
+                if (intVariables.contains(variable)
+                        && !fits(range(variable.initializer, variable, INT_RANGE))) {
+                    intVariables.remove(variable);
+                    changed = true;
+                }
+            for (AssignmentNode assignment: assignments) {
+                DeclarationNode variable = attributes.decl(assignment.left);
+                if (!intVariables.contains(variable)) continue;
+                long[] narrowed = INT_RANGE;
+                for (ExpressionNode guard: guards.get(assignment))
+                    narrowed = intersect(narrowed, narrow(guard, variable));
+                if (!fits(range(assignment.right, variable, narrowed))) {
+                    intVariables.remove(variable);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the conditions that are known to hold, with the assigned variable unchanged, when
+     * the assignment is executed: the conditions of the enclosing loops and {@code if} statements
+     * (when the assignment is in the body or true branch, respectively), up to the innermost loop,
+     * as long as the assignment is the first assignment to the variable in the loop or statement.
+     *
+     * <p>As the assigned variable is not captured, only the assignments in the current function can
+     * change it. Any code executed between the evaluation of the condition and the assignment
+     * precedes the assignment in the tree, unless it is part of a loop enclosing the assignment (or
+     * of its right side, but {@link #range} does not handle nested assignments).
+     */
+    private List<ExpressionNode> guards (AssignmentNode assignment, List<AssignmentNode> assignments,
+            IdentityHashMap<AssignmentNode, List<SighNode>> ancestors)
+    {
+        DeclarationNode variable = attributes.decl(assignment.left);
+        List<ExpressionNode> guards = new ArrayList<>();
+        SighNode child = assignment;
+
+        for (SighNode node: ancestors.get(assignment)) {
+            if (node instanceof FunDeclarationNode) break;
+            boolean first = true;
+            for (AssignmentNode other: assignments) {
+                if (other == assignment) break;
+                if (attributes.decl(other.left) == variable
+                        && ancestors.get(other).stream().anyMatch(it -> it == node)) {
+                    first = false;
+                    break;
+                }
+            }
+            if (!first) break;
+            if (node instanceof WhileNode) {
+                if (((WhileNode) node).body == child)
+                    guards.add(((WhileNode) node).condition);
+                break;
+            }
+            if (node instanceof IfNode && ((IfNode) node).trueStatement == child)
+                guards.add(((IfNode) node).condition);
+            child = node;
+        }
+        return guards;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the range of the values of {@code variable} for which the condition holds, which
+     * is narrower than {@link #INT_RANGE} if the condition is a comparison of the variable with a
+     * bounded expression (or a conjunction including such a comparison).
+     */
+    private long[] narrow (ExpressionNode condition, DeclarationNode variable)
+    {
+        if (condition instanceof ParenthesizedNode)
+            return narrow(((ParenthesizedNode) condition).expression, variable);
+        if (!(condition instanceof BinaryExpressionNode))
+            return INT_RANGE;
+
+        BinaryExpressionNode binary = (BinaryExpressionNode) condition;
+        if (binary.operator == AND)
+            return intersect(narrow(binary.left, variable), narrow(binary.right, variable));
+        if (!(binary.left instanceof ReferenceNode) || attributes.decl(binary.left) != variable)
+            return INT_RANGE;
+
+        long[] bound = range(binary.right, variable, INT_RANGE);
+        if (!fits(bound)) return INT_RANGE;
+
+        switch (binary.operator) {
+            case LOWER:         return new long[] { Integer.MIN_VALUE, bound[1] - 1 };
+            case LOWER_EQUAL:   return new long[] { Integer.MIN_VALUE, bound[1] };
+            case GREATER:       return new long[] { bound[0] + 1, Integer.MAX_VALUE };
+            case GREATER_EQUAL: return new long[] { bound[0], Integer.MAX_VALUE };
+            case EQUALITY:      return bound;
+            default:            return INT_RANGE;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the range ({@code [min, max]}) of the values of the {@code Int} expression, assuming
+     * that the variables in {@link #intVariables} hold 32-bit values and that {@code variable} is
+     * within {@code narrowed}, or null if it is unknown.
+     */
+    private long[] range (ExpressionNode node, DeclarationNode variable, long[] narrowed)
+    {
+        if (!(attributes.type(node) instanceof IntType))
+            return null;
+
+        if (node instanceof IntLiteralNode) {
+            long value = ((IntLiteralNode) node).value;
+            return new long[] { value, value };
+        }
+        if (node instanceof ParenthesizedNode)
+            return range(((ParenthesizedNode) node).expression, variable, narrowed);
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node);
+            return decl == variable ? narrowed : intVariables.contains(decl) ? INT_RANGE : null;
+        }
+        // the stem could otherwise include assignments
+        if (isArrayLength(node) && ((FieldAccessNode) node).stem instanceof ReferenceNode)
+            return new long[] { 0, Integer.MAX_VALUE };
+        if (!(node instanceof BinaryExpressionNode))
+            return null;
+
+        BinaryExpressionNode binary = (BinaryExpressionNode) node;
+        long[] l = range(binary.left, variable, narrowed);
+        long[] r = range(binary.right, variable, narrowed);
+        if (l == null || r == null) return null;
+
+        try {
+            switch (binary.operator) {
+                case ADD:
+                    return new long[] { Math.addExact(l[0], r[0]), Math.addExact(l[1], r[1]) };
+                case SUBTRACT:
+                    return new long[] {
+                        Math.subtractExact(l[0], r[1]), Math.subtractExact(l[1], r[0]) };
+                case MULTIPLY:
+                    long[] products = {
+                        Math.multiplyExact(l[0], r[0]), Math.multiplyExact(l[0], r[1]),
+                        Math.multiplyExact(l[1], r[0]), Math.multiplyExact(l[1], r[1]) };
+                    return new long[] {
+                        Arrays.stream(products).min().getAsLong(),
+                        Arrays.stream(products).max().getAsLong() };
+                default:
+                    return null;
+            }
+        } catch (ArithmeticException e) {
+            return null; // the bounds overflow 64 bits
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long[] intersect (long[] a, long[] b) {
+        return new long[] { Math.max(a[0], b[0]), Math.min(a[1], b[1]) };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean fits (long[] range) {
+        return range != null && range[0] >= Integer.MIN_VALUE && range[1] <= Integer.MAX_VALUE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean isArrayLength (ExpressionNode node) {
+        return node instanceof FieldAccessNode
+            && ((FieldAccessNode) node).fieldName.equals("length")
+            && attributes.type(((FieldAccessNode) node).stem) instanceof ArrayType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns true if the expression can be pushed as a 32-bit {@code int} without conversion (see
+     * {@link #intExpression}).
+     */
+    private boolean isIntOperand (ExpressionNode node)
+    {
+        if (node instanceof ParenthesizedNode)
+            return isIntOperand(((ParenthesizedNode) node).expression);
+        if (node instanceof IntLiteralNode) {
+            long value = ((IntLiteralNode) node).value;
+            return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+        }
+        return node instanceof ReferenceNode && intVariables.contains(attributes.decl(node))
+            || isArrayLength(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes the value of the {@code Int} expression as a 32-bit {@code int}, truncating it if it
+     * does not fit (like {@code L2I}). Int variables, array lengths and literals are pushed without
+     * converting from {@code long}.
+     */
+    private void intExpression (ExpressionNode node)
+    {
+        if (node instanceof ParenthesizedNode)
+            intExpression(((ParenthesizedNode) node).expression);
+        else if (node instanceof IntLiteralNode)
+            loadConstant(method, (int) ((IntLiteralNode) node).value);
+        else if (node instanceof ReferenceNode && intVariables.contains(attributes.decl(node)))
+            method.visitVarInsn(ILOAD, varIndex((ReferenceNode) node));
+        else if (isArrayLength(node)) {
+            run(((FieldAccessNode) node).stem);
+            method.visitInsn(ARRAYLENGTH);
+        }
+        else {
+            run(node);
+            method.visitInsn(L2I);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * If the assignment (to an int variable) adds a constant to the variable that fits in an
+     * {@code iinc} instruction, returns that constant, otherwise returns null.
+     */
+    private Integer increment (AssignmentNode node)
+    {
+        if (!(node.right instanceof BinaryExpressionNode)) return null;
+        BinaryExpressionNode binary = (BinaryExpressionNode) node.right;
+        DeclarationNode variable = attributes.decl(node.left);
+        ExpressionNode constant;
+
+        if (binary.left instanceof ReferenceNode && attributes.decl(binary.left) == variable)
+            constant = binary.right;
+        else if (binary.operator == ADD && binary.right instanceof ReferenceNode
+                && attributes.decl(binary.right) == variable)
+            constant = binary.left;
+        else
+            return null;
+
+        if (!(constant instanceof IntLiteralNode)) return null;
+        long value = ((IntLiteralNode) constant).value;
+        if (binary.operator == SUBTRACT) value = -value;
+        else if (binary.operator != ADD) return null;
+        return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ? (int) value : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // endregion
     // =============================================================================================
     // region [Utilities]
     // =============================================================================================
@@ -859,7 +2202,7 @@ public class BytecodeCompiler
      * given node.
      */
     private org.objectweb.asm.Type nodeAsmType (SighNode node) {
-        return asmType(reactor.get(node, "type"));
+        return asmType(attributes.type(node));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -868,7 +2211,7 @@ public class BytecodeCompiler
      * Return the JVM field descriptor for the given node, which must have a {@code type} attribute.
      */
     private String nodeFieldDescriptor (SighNode node) {
-        return fieldDescriptor(reactor.get(node, "type"));
+        return fieldDescriptor(attributes.type(node));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -891,7 +2234,7 @@ public class BytecodeCompiler
     private int registerVariable (DeclarationNode node, org.objectweb.asm.Type type) {
         int index = variableCounter;
         variableCounter += type.getSize();
-        variables.put(new Pair<>(reactor.get(node, "scope"), node.name()), index);
+        variables.put(new Pair<>(attributes.scope(node), node.name()), index);
         return index;
     }
 
@@ -901,7 +2244,17 @@ public class BytecodeCompiler
      * Returns the variable index for the given reference, which must be a reference to a variable.
      */
     private int varIndex (ReferenceNode node) {
-        return variables.get(new Pair<>((Scope) reactor.get(node, "scope"), node.name));
+        return variables.get(new Pair<>(attributes.scope(node), node.name));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the variable index for the given variable or parameter, or null if it has not been
+     * registered in the current method.
+     */
+    private Integer variableIndex (DeclarationNode node) {
+        return variables.get(new Pair<>(attributes.scope(node), node.name()));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -925,7 +2278,7 @@ public class BytecodeCompiler
      * Like {@link #implicitConversion(Type, Type)}, using the type attributes of the passed nodes.
      */
     private Type implicitConversion (SighNode left, SighNode right) {
-        return implicitConversion((Type) reactor.get(left,  "type"), reactor.get(right, "type"));
+        return implicitConversion(attributes.type(left), attributes.type(right));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -0,0 +1,298 @@
+package norswap.sigh.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A persistent cache of {@link CompilationResult}s, stored in a directory and keyed by a hash of
+ * the source and of the compiler, so that compiling an unchanged source can skip parsing, semantic
+ * analysis and code generation altogether.
+ *
+ * <p>Each entry is a jar file named after its key (see {@link #key}), holding the generated
+ * classes. The main class is designated by the {@code Main-Class} attribute of the manifest, so
+ * that the jar can also be run directly with {@code java -cp}.
+ *
+ * <p>The compiler is identified by hashing the class files of the {@code norswap.sigh} packages
+ * (including nested and anonymous classes), read from the directory or jar the compiler is loaded
+ * from, so that entries produced by another version of the compiler are never used. Entries are
+ * written to a temporary file then moved into place, so that concurrent writers (even in different
+ * processes) never expose a partially written entry.
+ */
+public final class CompilationCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Prefix of the class files hashed to identify the compiler. */
+    private static final String COMPILER_PACKAGE = "norswap/sigh/";
+
+    private static volatile byte[] compilerHash;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Path directory;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a cache storing its entries in the given directory, which is created if needed.
+     */
+    public CompilationCache (Path directory) {
+        this.directory = directory;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the key under which the result of compiling {@code source} into a class named {@code
+     * binaryName} is cached: the hex-encoded SHA-256 hash of the compiler, the name, the source and
+     * the {@code options} (which must identify any compiler setting, such as fuel metering, that
+     * changes the generated code).
+     */
+    public static String key (String binaryName, String source, String... options)
+    {
+        MessageDigest digest = sha256();
+        digest.update(compilerHash());
+        update(digest, binaryName);
+        update(digest, source);
+        for (String option: options)
+            update(digest, option);
+
+        StringBuilder b = new StringBuilder();
+        for (byte x: digest.digest())
+            b.append(String.format("%02x", x));
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void update (MessageDigest digest, String string) {
+        update(digest, string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void update (MessageDigest digest, byte[] bytes) {
+        // length prefix: ("ab", "c") and ("a", "bc") must have different keys
+        digest.update(new byte[] {
+            (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+            (byte) (bytes.length >>> 8), (byte) bytes.length });
+        digest.update(bytes);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static MessageDigest sha256 () {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // all JVMs must support SHA-256
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static byte[] compilerHash ()
+    {
+        byte[] hash = compilerHash;
+        if (hash != null) return hash;
+
+        CodeSource source = BytecodeCompiler.class.getProtectionDomain().getCodeSource();
+        if (source == null)
+            throw new IllegalStateException("compiler code source not found");
+
+        MessageDigest digest = sha256();
+        try {
+            Path location = Paths.get(source.getLocation().toURI());
+            SortedMap<String, byte[]> classes = Files.isDirectory(location)
+                ? directoryClasses(location)
+                : jarClasses(location);
+            classes.forEach((name, bytes) -> {
+                update(digest, name);
+                update(digest, bytes);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        return compilerHash = digest.digest();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the contents of the compiler's class files in the given class directory, keyed by
+     * their slash-separated path, in name order.
+     */
+    private static SortedMap<String, byte[]> directoryClasses (Path directory) throws IOException
+    {
+        SortedMap<String, byte[]> classes = new TreeMap<>();
+        Path packages = directory.resolve(COMPILER_PACKAGE);
+        if (!Files.isDirectory(packages)) return classes;
+
+        try (Stream<Path> files = Files.walk(packages)) {
+            for (Path file: (Iterable<Path>) files::iterator) {
+                String name = directory.relativize(file).toString()
+                    .replace(File.separatorChar, '/');
+                if (name.endsWith(".class"))
+                    classes.put(name, Files.readAllBytes(file));
+            }
+        }
+        return classes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the contents of the compiler's class files in the given jar, keyed by their entry
+     * name, in name order.
+     */
+    private static SortedMap<String, byte[]> jarClasses (Path jar) throws IOException
+    {
+        SortedMap<String, byte[]> classes = new TreeMap<>();
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            for (ZipEntry entry: Collections.list(zip.entries())) {
+                String name = entry.getName();
+                if (name.startsWith(COMPILER_PACKAGE) && name.endsWith(".class"))
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        classes.put(name, readAll(in));
+                    }
+            }
+        }
+        return classes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static byte[] readAll (InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; )
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Path entry (String key) {
+        return directory.resolve(key + ".jar");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the compilation result cached under {@code key}, or null if there is none (or if the
+     * file under that key has no manifest, and therefore isn't a cache entry).
+     */
+    public CompilationResult load (String key)
+    {
+        try (JarInputStream in = new JarInputStream(Files.newInputStream(entry(key)))) {
+            Manifest manifest = in.getManifest();
+            if (manifest == null) // not written by #store
+                return null;
+            String mainName = manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+            GeneratedClass mainClass = null;
+            List<GeneratedClass> structures = new ArrayList<>();
+
+            for (JarEntry entry; (entry = in.getNextJarEntry()) != null; ) {
+                String name = entry.getName();
+                String slashName = name.substring(0, name.length() - ".class".length());
+                GeneratedClass klass = new GeneratedClass(slashName, readAll(in));
+                if (klass.binaryName().equals(mainName))
+                    mainClass = klass;
+                else
+                    structures.add(klass);
+            }
+
+            if (mainClass == null)
+                throw new IOException("main class missing from cache entry " + key);
+            return new CompilationResult(mainClass, structures);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores a compilation result under {@code key}, replacing any previous entry.
+     */
+    public void store (String key, CompilationResult result)
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, result.mainClass.binaryName());
+
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream file = Files.newOutputStream(temp);
+                 JarOutputStream out = new JarOutputStream(file, manifest)) {
+                write(out, result.mainClass);
+                for (GeneratedClass structure: result.structures)
+                    write(out, structure);
+            }
+            Files.move(temp, entry(key),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void write (JarOutputStream out, GeneratedClass klass) throws IOException {
+        out.putNextEntry(new JarEntry(klass.slashBinaryName() + ".class"));
+        out.write(klass.bytes());
+        out.closeEntry();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the result cached under {@code key} if any, otherwise runs {@code compiler} and
+     * caches its result.
+     */
+    public CompilationResult computeIfAbsent (String key, Supplier<CompilationResult> compiler)
+    {
+        CompilationResult result = load(key);
+        if (result == null) {
+            result = compiler.get();
+            store(key, result);
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
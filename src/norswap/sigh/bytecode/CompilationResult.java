@@ -1,5 +1,6 @@
 package norswap.sigh.bytecode;
 
+import norswap.sigh.OutputSink;
 import norswap.utils.exceptions.NoStackException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.List;
@@ -9,6 +10,24 @@ import java.util.List;
  * be programatically generated instead of being read form a file).
  *
  * <p>This result is a set of {@link GeneratedClass} corresponding to the emitted JVM classes.
+ *
+ * <p>The output sink and the budgets of a compiled program are static fields of its main class
+ * (see {@link #setOutput}, {@link #setFuel} and {@link #setAllocationQuota}), shared by all its
+ * executions. To keep these consistent, the {@code run} method is synchronized on the class, so
+ * that only one execution runs at a time, and the methods accessing these fields wait for the
+ * current execution to complete. To set up an execution, run it and read the remaining budgets
+ * while other threads use the same class, hold its lock during the whole sequence:
+ *
+ * <pre>{@code
+ * synchronized (mainClass) {
+ *     CompilationResult.setFuel(mainClass, fuel);
+ *     CompilationResult.callRun(mainClass);
+ *     left = CompilationResult.remainingFuel(mainClass);
+ * }
+ * }</pre>
+ *
+ * <p>Function values returned by {@code run} must not be called concurrently with an execution,
+ * as they are not covered by this lock.
  */
 public final class CompilationResult
 {
@@ -22,7 +41,8 @@ public final class CompilationResult
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * The generated classes corresponding to structures defined in the source unit.
+     * The generated classes corresponding to structures defined in the source unit, as well as the
+     * functional interfaces representing its function values.
      */
     public final List<GeneratedClass> structures;
 
@@ -106,4 +126,92 @@ public final class CompilationResult
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the sink receiving the output of {@code print} in the given class (by default, a sink
+     * writing to the standard output). The sink is flushed when the {@code run} method returns.
+     *
+     * <p>Like the fuel budget, the sink is held in a static field of the class (see the class
+     * documentation for concurrent executions).
+     */
+    public static void setOutput (Class<?> mainClass, OutputSink output) {
+        try {
+            synchronized (mainClass) {
+                mainClass.getField("$out").set(null, output);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new NoStackException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the fuel budget of the given class, which must have been compiled with fuel metering
+     * (see {@link BytecodeCompiler#setFuelMetering}).
+     *
+     * <p>The budget is held in a static field of the class, and is therefore shared by all
+     * executions of the class (it is not reset by {@link #callRun}). See the class documentation
+     * for concurrent executions.
+     */
+    public static void setFuel (Class<?> mainClass, long fuel) {
+        try {
+            synchronized (mainClass) {
+                mainClass.getField("$fuel").setLong(null, fuel);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new NoStackException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the fuel left in the budget of the given class (see {@link #setFuel}).
+     */
+    public static long remainingFuel (Class<?> mainClass) {
+        try {
+            synchronized (mainClass) {
+                return mainClass.getField("$fuel").getLong(null);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new NoStackException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the allocation quota (in bytes) of the given class, which must have been compiled with
+     * allocation metering (see {@link BytecodeCompiler#setAllocationMetering}).
+     *
+     * <p>Like the fuel budget, the quota is held in a static field of the class.
+     */
+    public static void setAllocationQuota (Class<?> mainClass, long bytes) {
+        try {
+            synchronized (mainClass) {
+                mainClass.getField("$allocatable").setLong(null, bytes);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new NoStackException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of bytes left in the allocation quota of the given class (see {@link
+     * #setAllocationQuota}).
+     */
+    public static long remainingAllocationQuota (Class<?> mainClass) {
+        try {
+            synchronized (mainClass) {
+                return mainClass.getField("$allocatable").getLong(null);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new NoStackException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
@@ -21,6 +21,47 @@ public final class TypeUtils {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the slash-separated binary name of the functional interface used for the runtime
+     * representation of values of the given function type.
+     *
+     * <p>Function types with the same {@link #erasedMethodDescriptor erased signature} share the
+     * same interface, named after that signature: e.g. {@code SighFun$JL$D} for functions taking an
+     * {@code Int} and a reference, and returning a {@code Float}.
+     */
+    public static String funInterfaceName (FunType type)
+    {
+        StringBuilder b = new StringBuilder("SighFun$");
+        for (Type paramType: type.paramTypes)
+            b.append(erasedDescriptor(paramType).charAt(0));
+        return b.append('$').append(erasedDescriptor(type.returnType).charAt(0)).toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the descriptor of the {@code invoke} method of the {@link #funInterfaceName
+     * functional interface} for the given function type: its method descriptor where all reference
+     * types are replaced by {@code Object}.
+     */
+    public static String erasedMethodDescriptor (FunType type)
+    {
+        StringBuilder b = new StringBuilder("(");
+        for (Type paramType: type.paramTypes)
+            b.append(erasedDescriptor(paramType));
+        return b.append(")").append(erasedDescriptor(type.returnType)).toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String erasedDescriptor (Type type) {
+        return type.isPrimitive() || type instanceof VoidType
+            ? fieldDescriptor(type)
+            : "Ljava/lang/Object;";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns a java {@link Class} used for the runtime representation of the given Sigh {@link
      * Type}.
@@ -46,9 +87,7 @@ public final class TypeUtils {
             return javaArrayClass(((ArrayType) type).componentType);
         else if (type instanceof TypeType)
             return Type.class;
-        else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
-        else if (type instanceof StructType)
+        else if (type instanceof FunType || type instanceof StructType)
             return Object.class; // the proper class type is not available at compile time
         else
             throw new Error("unreachable");
@@ -81,9 +120,7 @@ public final class TypeUtils {
             return Array.newInstance(javaClass(((ArrayType) type).componentType)).getClass();
         else if (type instanceof TypeType)
             return Type[].class;
-        else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
-        else if (type instanceof StructType)
+        else if (type instanceof FunType || type instanceof StructType)
             return Object[].class; // the proper class type is not available at compile time
         else
             throw new Error("unreachable");
@@ -113,7 +150,7 @@ public final class TypeUtils {
         else if (type instanceof TypeType)
             return "Lnorswap/sigh/types/Type;";
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return "L" + funInterfaceName((FunType) type) + ";";
         else if (type instanceof StructType)
             return "L" + structBinaryName((StructType) type) + ";";
         else
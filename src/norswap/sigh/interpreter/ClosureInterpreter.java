@@ -0,0 +1,1354 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.FrozenAttributes;
+import norswap.sigh.OutputSink;
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.DeclarationKind;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.exceptions.Exceptions;
+import norswap.utils.exceptions.NoStackException;
+import norswap.utils.visitors.ValuedVisitor;
+import java.lang.reflect.Array;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static norswap.sigh.interpreter.Interpreter.arrayElement;
+import static norswap.sigh.interpreter.Interpreter.buildStruct;
+import static norswap.sigh.interpreter.Interpreter.convertToString;
+import static norswap.sigh.interpreter.Interpreter.setArrayElement;
+import static norswap.utils.Util.cast;
+
+/**
+ * An alternative execution mode to {@link Interpreter}, which first translates the analyzed tree
+ * into a tree of closures, then runs these closures.
+ *
+ * <p>The translation walks the tree only once: node dispatch, attribute lookups (types,
+ * declarations, slots, frame sizes) and the selection of the primitive or generic evaluation path
+ * all happen at translation time. Running the program then only involves calling the closures,
+ * which keeps the fast startup of the interpreter, without generating any JVM classes like
+ * {@link norswap.sigh.bytecode.BytecodeCompiler} does.
+ *
+ * <p>Where static types do not suffice to pick the best implementation of an expression, the
+ * executors specialize themselves at run time, based on the values they observe (see the
+ * "Self-Specializing Executors" region).
+ *
+ * <p>The runtime value representation, the layout of the {@link Frame}s and the limitations are
+ * the same as those of {@link Interpreter}.
+ */
+public final class ClosureInterpreter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** A compiled expression, producing a (boxed) value. */
+    private interface Exec { Object eval (Frame frame); }
+
+    /** A compiled expression of type {@code Int}. */
+    private interface LongExec { long eval (Frame frame); }
+
+    /** A compiled expression of type {@code Float} (or {@code Int}, promoted). */
+    private interface DoubleExec { double eval (Frame frame); }
+
+    /** A compiled expression of type {@code Bool}. */
+    private interface BoolExec { boolean eval (Frame frame); }
+
+    /** A compiled statement. */
+    private interface StmtExec { void exec (Frame frame); }
+
+    /** Evaluates an argument in the caller's frame and stores it in the callee's frame. */
+    private interface ArgExec { void store (Frame caller, Frame callee); }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The compiled version of a function. Created the first time the function is referenced,
+     * its body is filled in when its declaration is compiled.
+     */
+    private static final class CompiledFunction
+    {
+        final int depth;
+        final int frameSize;
+        final int[] paramSlots;
+        final Type[] paramTypes;
+        StmtExec body;
+
+        CompiledFunction (int depth, int frameSize, int[] paramSlots, Type[] paramTypes) {
+            this.depth = depth;
+            this.frameSize = frameSize;
+            this.paramSlots = paramSlots;
+            this.paramTypes = paramTypes;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Used to implement the control flow of the return statement.
+     */
+    private static class Return extends NoStackException {
+        final Object value;
+        private Return (Object value) {
+            this.value = value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final StmtExec NOOP = frame -> {};
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
+    private final Reactor reactor;
+    private FrozenAttributes attributes;
+    private final IdentityHashMap<FunDeclarationNode, CompiledFunction> functions
+        = new IdentityHashMap<>();
+    private RootScope rootScope;
+    private Frame rootFrame;
+    private OutputSink output = OutputSink.stdout();
+
+    /** Depth of the function whose body is being compiled (0 for top-level code). */
+    private int depth;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public ClosureInterpreter (Reactor reactor) {
+        this.reactor = reactor;
+
+        // expressions (compiled to Exec)
+        visitor.register(IntLiteralNode.class,           this::intLiteral);
+        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
+        visitor.register(StringLiteralNode.class,        this::stringLiteral);
+        visitor.register(ReferenceNode.class,            this::reference);
+        visitor.register(ConstructorNode.class,          this::constructor);
+        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
+        visitor.register(ParenthesizedNode.class,        this::parenthesized);
+        visitor.register(FieldAccessNode.class,          this::fieldAccess);
+        visitor.register(ArrayAccessNode.class,          this::arrayAccess);
+        visitor.register(FunCallNode.class,              this::funCall);
+        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
+        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
+        visitor.register(AssignmentNode.class,           this::assignment);
+
+        // statement groups & declarations (compiled to StmtExec)
+        visitor.register(BlockNode.class,                this::block);
+        visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FunDeclarationNode.class,       this::funDecl);
+
+        // statements (compiled to StmtExec)
+        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
+        visitor.register(IfNode.class,                   this::ifStmt);
+        visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ReturnNode.class,               this::returnStmt);
+
+        // other declarations (structures, fields, parameters) have no run-time effect
+        visitor.registerFallback(node -> NOOP);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the sink receiving the output of {@code print} (by default, a sink writing to the
+     * standard output). The sink is flushed at the end of each execution.
+     */
+    public void setOutput (OutputSink output) {
+        this.output = output;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Object interpret (RootNode root)
+    {
+        attributes = FrozenAttributes.freeze(reactor, root);
+        rootScope = attributes.scope(root);
+        depth = 0;
+        StmtExec[] statements = statements(root.statements);
+        int frameSize = attributes.frameSize(root);
+
+        assert rootFrame == null;
+        Frame frame = rootFrame = new Frame(0, frameSize, null);
+        try {
+            for (StmtExec statement: statements)
+                statement.exec(frame);
+        } catch (Return r) {
+            return r.value;
+            // allow returning from the main script
+        } catch (PassthroughException e) {
+            throw Exceptions.runtime(e.getCause());
+        } catch (InterpreterException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new InterpreterException("exception while executing " + root, e);
+        } finally {
+            rootFrame = null;
+            output.flush();
+        }
+        return null;
+    }
+
+    // =============================================================================================
+    // region [Helpers]
+    // =============================================================================================
+
+    private Exec compile (ExpressionNode node) {
+        return cast(visitor.apply(node));
+    }
+
+    private StmtExec statement (SighNode node) {
+        return cast(visitor.apply(node));
+    }
+
+    private StmtExec[] statements (List<? extends SighNode> nodes) {
+        return nodes.stream().map(this::statement).toArray(StmtExec[]::new);
+    }
+
+    private Type type (SighNode node) {
+        return attributes.type(node);
+    }
+
+    private int slot (DeclarationNode decl) {
+        return attributes.slot(decl);
+    }
+
+    /**
+     * Returns the frame holding a variable of the given depth, from within the frame of a
+     * function of another depth.
+     */
+    private Frame outer (Frame frame, int depth) {
+        return depth == 0 ? rootFrame : frame.lookup(depth);
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Primitive Expressions]
+    // =============================================================================================
+
+    /**
+     * Compiles an expression of type {@code Int} to a closure that does not box intermediate
+     * values whenever possible.
+     */
+    private LongExec compileLong (ExpressionNode node)
+    {
+        if (node instanceof IntLiteralNode) {
+            long value = ((IntLiteralNode) node).value;
+            return frame -> value;
+        }
+
+        if (node instanceof ReferenceNode) {
+            // Int-valued references always refer to a variable or parameter.
+            DeclarationNode decl = attributes.decl(node);
+            int slot = slot(decl);
+            int depth = attributes.depth(decl);
+            return depth == this.depth
+                ? frame -> frame.primitives[slot]
+                : frame -> outer(frame, depth).primitives[slot];
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return compileLong(((ParenthesizedNode) node).expression);
+
+        if (node instanceof ArrayAccessNode) {
+            ArrayAccessNode access = (ArrayAccessNode) node;
+            Exec array = nonNullArray(access.array);
+            LongExec index = compileLong(access.index);
+            return frame -> {
+                Object values = array.eval(frame);
+                try {
+                    int i = index(index.eval(frame));
+                    return values instanceof long[]
+                        ? ((long[]) values)[i]
+                        : (long) arrayElement(values, i);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new PassthroughException(e);
+                }
+            };
+        }
+
+        if (node instanceof BinaryExpressionNode) {
+            LongExec exec = longArithmetic((BinaryExpressionNode) node);
+            return isConstant(node) ? constantLong(exec) : exec;
+        }
+
+        Exec exec = compile(node);
+        return frame -> (long) exec.eval(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private LongExec longArithmetic (BinaryExpressionNode node)
+    {
+        // Int-valued binary expressions are always arithmetic between two Int operands.
+        LongExec left  = compileLong(node.left);
+        LongExec right = compileLong(node.right);
+        switch (node.operator) {
+            case MULTIPLY:  return frame -> left.eval(frame) *  right.eval(frame);
+            case DIVIDE:    return frame -> left.eval(frame) /  right.eval(frame);
+            case REMAINDER: return frame -> left.eval(frame) %  right.eval(frame);
+            case ADD:       return frame -> left.eval(frame) +  right.eval(frame);
+            case SUBTRACT:  return frame -> left.eval(frame) -  right.eval(frame);
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an expression of type {@code Float} or {@code Int} (in which case the value is
+     * promoted) to a closure that does not box intermediate values whenever possible.
+     */
+    private DoubleExec compileDouble (ExpressionNode node)
+    {
+        if (type(node) instanceof IntType) {
+            LongExec exec = compileLong(node);
+            return frame -> exec.eval(frame);
+        }
+
+        if (node instanceof FloatLiteralNode) {
+            double value = ((FloatLiteralNode) node).value;
+            return frame -> value;
+        }
+
+        if (node instanceof ReferenceNode) {
+            // Float-valued references always refer to a variable or parameter.
+            DeclarationNode decl = attributes.decl(node);
+            int slot = slot(decl);
+            int depth = attributes.depth(decl);
+            return depth == this.depth
+                ? frame -> Double.longBitsToDouble(frame.primitives[slot])
+                : frame -> Double.longBitsToDouble(outer(frame, depth).primitives[slot]);
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return compileDouble(((ParenthesizedNode) node).expression);
+
+        if (node instanceof ArrayAccessNode) {
+            ArrayAccessNode access = (ArrayAccessNode) node;
+            Exec array = nonNullArray(access.array);
+            LongExec index = compileLong(access.index);
+            return frame -> {
+                Object values = array.eval(frame);
+                try {
+                    int i = index(index.eval(frame));
+                    return values instanceof double[]
+                        ? ((double[]) values)[i]
+                        : ((Number) arrayElement(values, i)).doubleValue();
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new PassthroughException(e);
+                }
+            };
+        }
+
+        if (node instanceof BinaryExpressionNode) {
+            DoubleExec exec = doubleArithmetic((BinaryExpressionNode) node);
+            return isConstant(node) ? constantDouble(exec) : exec;
+        }
+
+        // Not necessarily a Double, e.g. the result of an Int function used as a Float function.
+        return toDouble(compile(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private DoubleExec doubleArithmetic (BinaryExpressionNode node)
+    {
+        // Float-valued binary expressions are always arithmetic with a Float operand.
+        DoubleExec left  = compileDouble(node.left);
+        DoubleExec right = compileDouble(node.right);
+        switch (node.operator) {
+            case MULTIPLY:  return frame -> left.eval(frame) *  right.eval(frame);
+            case DIVIDE:    return frame -> left.eval(frame) /  right.eval(frame);
+            case REMAINDER: return frame -> left.eval(frame) %  right.eval(frame);
+            case ADD:       return frame -> left.eval(frame) +  right.eval(frame);
+            case SUBTRACT:  return frame -> left.eval(frame) -  right.eval(frame);
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an expression of type {@code Bool} to a closure that does not box intermediate
+     * values whenever possible.
+     */
+    private BoolExec compileBool (ExpressionNode node)
+    {
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node);
+            if (decl instanceof SyntheticDeclarationNode) {
+                // only true and false are built-in Bool variables
+                boolean value = decl == rootScope._true;
+                return frame -> value;
+            }
+            int slot = slot(decl);
+            int depth = attributes.depth(decl);
+            return depth == this.depth
+                ? frame -> frame.primitives[slot] != 0
+                : frame -> outer(frame, depth).primitives[slot] != 0;
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return compileBool(((ParenthesizedNode) node).expression);
+
+        if (node instanceof ArrayAccessNode) {
+            ArrayAccessNode access = (ArrayAccessNode) node;
+            Exec array = nonNullArray(access.array);
+            LongExec index = compileLong(access.index);
+            return frame -> {
+                Object values = array.eval(frame);
+                try {
+                    int i = index(index.eval(frame));
+                    return values instanceof boolean[]
+                        ? ((boolean[]) values)[i]
+                        : (boolean) arrayElement(values, i);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new PassthroughException(e);
+                }
+            };
+        }
+
+        if (node instanceof UnaryExpressionNode) {
+            // there is only NOT
+            assert ((UnaryExpressionNode) node).operator == UnaryOperator.NOT;
+            BoolExec operand = compileBool(((UnaryExpressionNode) node).operand);
+            return frame -> !operand.eval(frame);
+        }
+
+        if (node instanceof BinaryExpressionNode) {
+            BoolExec exec = compileBoolBinary((BinaryExpressionNode) node);
+            return isConstant(node) ? constantBool(exec) : exec;
+        }
+
+        Exec exec = compile(node);
+        return frame -> (boolean) exec.eval(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private BoolExec compileBoolBinary (BinaryExpressionNode node)
+    {
+        switch (node.operator) {
+            case OR: {
+                BoolExec left  = compileBool(node.left);
+                BoolExec right = compileBool(node.right);
+                return frame -> left.eval(frame) || right.eval(frame);
+            }
+            case AND: {
+                BoolExec left  = compileBool(node.left);
+                BoolExec right = compileBool(node.right);
+                return frame -> left.eval(frame) && right.eval(frame);
+            }
+        }
+
+        Type leftType  = type(node.left);
+        Type rightType = type(node.right);
+
+        if (leftType instanceof FloatType || rightType instanceof FloatType) {
+            DoubleExec left  = compileDouble(node.left);
+            DoubleExec right = compileDouble(node.right);
+            switch (node.operator) {
+                case GREATER:       return frame -> left.eval(frame) >  right.eval(frame);
+                case LOWER:         return frame -> left.eval(frame) <  right.eval(frame);
+                case GREATER_EQUAL: return frame -> left.eval(frame) >= right.eval(frame);
+                case LOWER_EQUAL:   return frame -> left.eval(frame) <= right.eval(frame);
+                case EQUALITY:      return frame -> left.eval(frame) == right.eval(frame);
+                case NOT_EQUALS:    return frame -> left.eval(frame) != right.eval(frame);
+                default:
+                    throw new Error("should not reach here");
+            }
+        }
+
+        if (leftType instanceof IntType) {
+            LongExec left  = compileLong(node.left);
+            LongExec right = compileLong(node.right);
+            switch (node.operator) {
+                case GREATER:       return frame -> left.eval(frame) >  right.eval(frame);
+                case LOWER:         return frame -> left.eval(frame) <  right.eval(frame);
+                case GREATER_EQUAL: return frame -> left.eval(frame) >= right.eval(frame);
+                case LOWER_EQUAL:   return frame -> left.eval(frame) <= right.eval(frame);
+                case EQUALITY:      return frame -> left.eval(frame) == right.eval(frame);
+                case NOT_EQUALS:    return frame -> left.eval(frame) != right.eval(frame);
+                default:
+                    throw new Error("should not reach here");
+            }
+        }
+
+        if (leftType instanceof BoolType) {
+            BoolExec left  = compileBool(node.left);
+            BoolExec right = compileBool(node.right);
+            return node.operator == BinaryOperator.EQUALITY
+                ? frame -> left.eval(frame) == right.eval(frame)
+                : frame -> left.eval(frame) != right.eval(frame);
+        }
+
+        Exec left  = compile(node.left);
+        Exec right = compile(node.right);
+        return node.operator == BinaryOperator.EQUALITY
+            ? frame -> left.eval(frame) == right.eval(frame)
+            : frame -> left.eval(frame) != right.eval(frame);
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Self-Specializing Executors]
+    // =============================================================================================
+
+    // Some executors can't be fully specialized from static types alone: the representation of
+    // values in generic storage (arrays, struct fields, return values) is not fixed by their type
+    // (e.g. a Float array can hold Long values), and constant folding requires evaluating the
+    // expression, which might fail at run time.
+    //
+    // These executors are wrapped in a specializing node which starts with an uninitialized
+    // implementation. On its first execution, this implementation observes the values, picks a
+    // specialized implementation and installs it in the node. Specialized implementations check
+    // their assumptions (guards), and rewrite the node to the generic implementation if they fail.
+    // Nodes never go back to a more specialized state, so they rewrite themselves at most twice.
+
+    private static final class SpecializingExec implements Exec {
+        Exec impl;
+        @Override public Object eval (Frame frame) {
+            return impl.eval(frame);
+        }
+    }
+
+    private static final class SpecializingLongExec implements LongExec {
+        LongExec impl;
+        @Override public long eval (Frame frame) {
+            return impl.eval(frame);
+        }
+    }
+
+    private static final class SpecializingDoubleExec implements DoubleExec {
+        DoubleExec impl;
+        @Override public double eval (Frame frame) {
+            return impl.eval(frame);
+        }
+    }
+
+    private static final class SpecializingBoolExec implements BoolExec {
+        BoolExec impl;
+        @Override public boolean eval (Frame frame) {
+            return impl.eval(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the value of the expression is always the same, i.e. it only involves literals
+     * and operators.
+     */
+    private boolean isConstant (ExpressionNode node)
+    {
+        if (node instanceof IntLiteralNode
+                || node instanceof FloatLiteralNode
+                || node instanceof StringLiteralNode)
+            return true;
+
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node);
+            return decl == rootScope._true || decl == rootScope._false;
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return isConstant(((ParenthesizedNode) node).expression);
+
+        if (node instanceof UnaryExpressionNode)
+            return isConstant(((UnaryExpressionNode) node).operand);
+
+        if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            // reference equality on strings is not constant
+            return !(type(binary.left) instanceof StringType && type(binary) instanceof BoolType)
+                && isConstant(binary.left)
+                && isConstant(binary.right);
+        }
+
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a node that rewrites itself into a constant after the first (successful) evaluation
+     * of {@code exec}.
+     */
+    private static Exec constant (Exec exec)
+    {
+        SpecializingExec node = new SpecializingExec();
+        node.impl = frame -> {
+            Object value = exec.eval(frame);
+            node.impl = it -> value;
+            return value;
+        };
+        return node;
+    }
+
+    private static LongExec constantLong (LongExec exec)
+    {
+        SpecializingLongExec node = new SpecializingLongExec();
+        node.impl = frame -> {
+            long value = exec.eval(frame);
+            node.impl = it -> value;
+            return value;
+        };
+        return node;
+    }
+
+    private static DoubleExec constantDouble (DoubleExec exec)
+    {
+        SpecializingDoubleExec node = new SpecializingDoubleExec();
+        node.impl = frame -> {
+            double value = exec.eval(frame);
+            node.impl = it -> value;
+            return value;
+        };
+        return node;
+    }
+
+    private static BoolExec constantBool (BoolExec exec)
+    {
+        SpecializingBoolExec node = new SpecializingBoolExec();
+        node.impl = frame -> {
+            boolean value = exec.eval(frame);
+            node.impl = it -> value;
+            return value;
+        };
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a node converting the value of a Float-typed expression from generic storage to a
+     * double, specializing on whether it holds {@link Double} or {@link Long} values.
+     */
+    private static DoubleExec toDouble (Exec exec)
+    {
+        SpecializingDoubleExec node = new SpecializingDoubleExec();
+        DoubleExec generic = frame -> ((Number) exec.eval(frame)).doubleValue();
+
+        DoubleExec doubles = frame -> {
+            Object value = exec.eval(frame);
+            if (value instanceof Double)
+                return (Double) value;
+            node.impl = generic;
+            return ((Number) value).doubleValue();
+        };
+
+        DoubleExec longs = frame -> {
+            Object value = exec.eval(frame);
+            if (value instanceof Long)
+                return (Long) value;
+            node.impl = generic;
+            return ((Number) value).doubleValue();
+        };
+
+        node.impl = frame -> {
+            Object value = exec.eval(frame);
+            node.impl = value instanceof Double ? doubles : value instanceof Long ? longs : generic;
+            return ((Number) value).doubleValue();
+        };
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an operand of a string concatenation to an executor producing its string
+     * representation. Primitive operands are converted without boxing, the conversion of other
+     * operands specializes on the class of the values it observes.
+     */
+    private Exec compileString (ExpressionNode node)
+    {
+        Type type = type(node);
+
+        if (type instanceof IntType) {
+            LongExec exec = compileLong(node);
+            return frame -> String.valueOf(exec.eval(frame));
+        }
+
+        if (type instanceof BoolType) {
+            BoolExec exec = compileBool(node);
+            return frame -> String.valueOf(exec.eval(frame));
+        }
+
+        Exec exec = compile(node);
+        SpecializingExec specializing = new SpecializingExec();
+        Exec generic = frame -> convertToString(exec.eval(frame));
+
+        // Float values in generic storage can be Long, and String-typed values can be null.
+        Exec strings = frame -> {
+            Object value = exec.eval(frame);
+            if (value instanceof String)
+                return value;
+            specializing.impl = generic;
+            return convertToString(value);
+        };
+
+        Exec doubles = frame -> {
+            Object value = exec.eval(frame);
+            if (value instanceof Double)
+                return String.valueOf((double) (Double) value);
+            specializing.impl = generic;
+            return convertToString(value);
+        };
+
+        specializing.impl = frame -> {
+            Object value = exec.eval(frame);
+            specializing.impl = value instanceof String
+                ? strings
+                : value instanceof Double
+                    ? doubles
+                    : generic;
+            return convertToString(value);
+        };
+        return specializing;
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Expressions]
+    // =============================================================================================
+
+    private Exec intLiteral (IntLiteralNode node) {
+        Long value = node.value;
+        return frame -> value;
+    }
+
+    private Exec floatLiteral (FloatLiteralNode node) {
+        Double value = node.value;
+        return frame -> value;
+    }
+
+    private Exec stringLiteral (StringLiteralNode node) {
+        String value = node.value;
+        return frame -> value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec parenthesized (ParenthesizedNode node) {
+        return compile(node.expression);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec arrayLiteral (ArrayLiteralNode node)
+    {
+        Type type = ((ArrayType) type(node)).componentType;
+        int size = node.components.size();
+
+        if (type instanceof IntType) {
+            LongExec[] components = new LongExec[size];
+            for (int i = 0; i < size; ++i) components[i] = compileLong(node.components.get(i));
+            return frame -> {
+                long[] array = new long[components.length];
+                for (int i = 0; i < components.length; ++i)
+                    array[i] = components[i].eval(frame);
+                return array;
+            };
+        }
+        if (type instanceof FloatType) {
+            DoubleExec[] components = new DoubleExec[size];
+            for (int i = 0; i < size; ++i) components[i] = compileDouble(node.components.get(i));
+            return frame -> {
+                double[] array = new double[components.length];
+                for (int i = 0; i < components.length; ++i)
+                    array[i] = components[i].eval(frame);
+                return array;
+            };
+        }
+        if (type instanceof BoolType) {
+            BoolExec[] components = new BoolExec[size];
+            for (int i = 0; i < size; ++i) components[i] = compileBool(node.components.get(i));
+            return frame -> {
+                boolean[] array = new boolean[components.length];
+                for (int i = 0; i < components.length; ++i)
+                    array[i] = components[i].eval(frame);
+                return array;
+            };
+        }
+
+        Exec[] components = node.components.stream().map(this::compile).toArray(Exec[]::new);
+        return frame -> {
+            Object[] array = new Object[components.length];
+            for (int i = 0; i < components.length; ++i)
+                array[i] = components[i].eval(frame);
+            return array;
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec binaryExpression (BinaryExpressionNode node)
+    {
+        Type type = type(node);
+
+        // Box only the final result, intermediate values are kept unboxed.
+        if (type instanceof IntType) {
+            LongExec exec = compileLong(node);
+            return frame -> exec.eval(frame);
+        }
+        if (type instanceof FloatType) {
+            DoubleExec exec = compileDouble(node);
+            return frame -> exec.eval(frame);
+        }
+        if (type instanceof BoolType) {
+            BoolExec exec = compileBool(node);
+            return frame -> exec.eval(frame);
+        }
+
+        // string concatenation
+        Exec left  = compileString(node.left);
+        Exec right = compileString(node.right);
+        Exec exec = frame -> (String) left.eval(frame) + (String) right.eval(frame);
+        return isConstant(node) ? constant(exec) : exec;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec unaryExpression (UnaryExpressionNode node) {
+        BoolExec exec = compileBool(node);
+        return frame -> exec.eval(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec assignment (AssignmentNode node)
+    {
+        if (node.left instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node.left);
+            StmtExec assign = assignVariable(node);
+            Exec load = load(decl);
+            return frame -> {
+                assign.exec(frame);
+                return load.eval(frame);
+            };
+        }
+
+        if (node.left instanceof ArrayAccessNode) {
+            ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
+            return arrayAssignment(
+                nonNullArray(arrayAccess.array), compileLong(arrayAccess.index), node.right);
+        }
+
+        if (node.left instanceof FieldAccessNode) {
+            FieldAccessNode fieldAccess = (FieldAccessNode) node.left;
+            Exec stem = compile(fieldAccess.stem);
+            int index = attributes.fieldIndex(fieldAccess);
+            Exec right = compile(node.right);
+            return frame -> {
+                Object object = stem.eval(frame);
+                if (object == Null.INSTANCE)
+                    throw new PassthroughException(
+                        new NullPointerException("accessing field of null object"));
+                Object value = right.eval(frame);
+                ((Struct) object).fields[index] = value;
+                return value;
+            };
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the assignment of {@code value} to an array element, storing primitive values
+     * without boxing them when the array has the matching primitive representation.
+     */
+    private Exec arrayAssignment (Exec array, LongExec index, ExpressionNode value)
+    {
+        Type type = type(value);
+
+        if (type instanceof IntType) {
+            LongExec right = compileLong(value);
+            return frame -> {
+                Object values = array.eval(frame);
+                try {
+                    int i = index(index.eval(frame));
+                    long result = right.eval(frame);
+                    if (values instanceof long[])
+                        ((long[]) values)[i] = result;
+                    else if (values instanceof double[]) // Int value in a Float array
+                        ((double[]) values)[i] = result;
+                    else
+                        setArrayElement(values, i, result);
+                    return result;
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new PassthroughException(e);
+                }
+            };
+        }
+
+        if (type instanceof FloatType) {
+            DoubleExec right = compileDouble(value);
+            return frame -> {
+                Object values = array.eval(frame);
+                try {
+                    int i = index(index.eval(frame));
+                    double result = right.eval(frame);
+                    if (values instanceof double[])
+                        ((double[]) values)[i] = result;
+                    else
+                        setArrayElement(values, i, result);
+                    return result;
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new PassthroughException(e);
+                }
+            };
+        }
+
+        if (type instanceof BoolType) {
+            BoolExec right = compileBool(value);
+            return frame -> {
+                Object values = array.eval(frame);
+                try {
+                    int i = index(index.eval(frame));
+                    boolean result = right.eval(frame);
+                    if (values instanceof boolean[])
+                        ((boolean[]) values)[i] = result;
+                    else
+                        setArrayElement(values, i, result);
+                    return result;
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new PassthroughException(e);
+                }
+            };
+        }
+
+        Exec right = compile(value);
+        return frame -> {
+            Object values = array.eval(frame);
+            try {
+                int i = index(index.eval(frame));
+                Object result = right.eval(frame);
+                setArrayElement(values, i, result);
+                return result;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int index (long index)
+    {
+        if (index < 0)
+            throw new ArrayIndexOutOfBoundsException("Negative index: " + index);
+        if (index >= Integer.MAX_VALUE - 1)
+            throw new ArrayIndexOutOfBoundsException("Index exceeds max array index (2ˆ31 - 2): " + index);
+        return (int) index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec nonNullArray (ExpressionNode node)
+    {
+        Exec exec = compile(node);
+        return frame -> {
+            Object object = exec.eval(frame);
+            if (object == Null.INSTANCE)
+                throw new PassthroughException(new NullPointerException("indexing null array"));
+            return object;
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec arrayAccess (ArrayAccessNode node)
+    {
+        Exec array = nonNullArray(node.array);
+        LongExec index = compileLong(node.index);
+        return frame -> {
+            Object values = array.eval(frame);
+            try {
+                return arrayElement(values, index(index.eval(frame)));
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec constructor (ConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        Constructor constructor = new Constructor(attributes.decl(node.ref));
+        return frame -> constructor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec fieldAccess (FieldAccessNode node)
+    {
+        Exec stem = compile(node.stem);
+
+        if (type(node.stem) instanceof ArrayType) // only field on arrays
+            return frame -> {
+                Object object = stem.eval(frame);
+                if (object == Null.INSTANCE)
+                    throw new PassthroughException(
+                        new NullPointerException("accessing field of null object"));
+                return (long) Array.getLength(object);
+            };
+
+        int index = attributes.fieldIndex(node);
+        return frame -> {
+            Object object = stem.eval(frame);
+            if (object == Null.INSTANCE)
+                throw new PassthroughException(
+                    new NullPointerException("accessing field of null object"));
+            return ((Struct) object).fields[index];
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec reference (ReferenceNode node)
+    {
+        DeclarationNode decl = attributes.decl(node);
+
+        if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode)
+            return load(decl);
+
+        Object value;
+        if (decl instanceof SyntheticDeclarationNode
+                && ((SyntheticDeclarationNode) decl).kind() == DeclarationKind.VARIABLE)
+            value = decl == rootScope._true
+                ? Boolean.TRUE
+                : decl == rootScope._false
+                    ? Boolean.FALSE
+                    : Null.INSTANCE;
+        else
+            value = decl; // structure or function
+
+        return frame -> value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Exec funCall (FunCallNode node)
+    {
+        DeclarationNode target = node.function instanceof ReferenceNode
+            ? attributes.decl(node.function)
+            : null;
+
+        if (target instanceof FunDeclarationNode)
+            return directCall((FunDeclarationNode) target, node.arguments);
+
+        Exec function = compile(node.function);
+        Exec[] args = node.arguments.stream().map(this::compile).toArray(Exec[]::new);
+
+        return frame -> {
+            Object decl = function.eval(frame);
+            Object[] values = new Object[args.length];
+            for (int i = 0; i < args.length; ++i)
+                values[i] = args[i].eval(frame);
+
+            if (decl == Null.INSTANCE)
+                throw new PassthroughException(new NullPointerException("calling a null function"));
+
+            if (decl instanceof SyntheticDeclarationNode)
+                return builtin(((SyntheticDeclarationNode) decl).name(), values);
+
+            if (decl instanceof Constructor)
+                return buildStruct(((Constructor) decl).declaration, values);
+
+            CompiledFunction fun = functions.get((FunDeclarationNode) decl);
+            Frame callee = new Frame(fun.depth, fun.frameSize, frame);
+            for (int i = 0; i < values.length; ++i)
+                store(callee, fun.paramSlots[i], fun.paramTypes[i], values[i]);
+            return invoke(fun, callee);
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a call to a statically known function: the arguments are stored directly into the
+     * callee's frame, without boxing primitive values.
+     */
+    private Exec directCall (FunDeclarationNode decl, List<ExpressionNode> arguments)
+    {
+        CompiledFunction fun = function(decl);
+        ArgExec[] args = new ArgExec[arguments.size()];
+        for (int i = 0; i < args.length; ++i)
+            args[i] = argument(arguments.get(i), fun.paramSlots[i], fun.paramTypes[i]);
+
+        return frame -> {
+            Frame callee = new Frame(fun.depth, fun.frameSize, frame);
+            for (ArgExec arg: args)
+                arg.store(frame, callee);
+            return invoke(fun, callee);
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ArgExec argument (ExpressionNode node, int slot, Type type)
+    {
+        if (type instanceof IntType) {
+            LongExec exec = compileLong(node);
+            return (caller, callee) -> callee.primitives[slot] = exec.eval(caller);
+        }
+        if (type instanceof FloatType) {
+            DoubleExec exec = compileDouble(node);
+            return (caller, callee) ->
+                callee.primitives[slot] = Double.doubleToRawLongBits(exec.eval(caller));
+        }
+        if (type instanceof BoolType) {
+            BoolExec exec = compileBool(node);
+            return (caller, callee) -> callee.primitives[slot] = exec.eval(caller) ? 1 : 0;
+        }
+        Exec exec = compile(node);
+        return (caller, callee) -> callee.objects[slot] = exec.eval(caller);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object invoke (CompiledFunction fun, Frame callee)
+    {
+        try {
+            fun.body.exec(callee);
+        } catch (Return r) {
+            return r.value;
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the (possibly not yet compiled) function for the given declaration.
+     */
+    private CompiledFunction function (FunDeclarationNode decl)
+    {
+        return functions.computeIfAbsent(decl, it -> new CompiledFunction(
+            attributes.depth(it),
+            attributes.frameSize(it),
+            it.parameters.stream().mapToInt(this::slot).toArray(),
+            it.parameters.stream().map(this::type).toArray(Type[]::new)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object builtin (String name, Object[] args)
+    {
+        assert name.equals("print"); // only one at the moment
+        String out = convertToString(args[0]);
+        output.println(out);
+        return out;
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Variables]
+    // =============================================================================================
+
+    /**
+     * Compiles a load of the given variable or parameter, boxing it if its type is primitive.
+     */
+    private Exec load (DeclarationNode decl)
+    {
+        int slot = slot(decl);
+        int depth = attributes.depth(decl);
+        Type type = type(decl);
+        boolean local = depth == this.depth;
+
+        if (type instanceof IntType)
+            return local
+                ? frame -> frame.primitives[slot]
+                : frame -> outer(frame, depth).primitives[slot];
+        else if (type instanceof FloatType)
+            return local
+                ? frame -> Double.longBitsToDouble(frame.primitives[slot])
+                : frame -> Double.longBitsToDouble(outer(frame, depth).primitives[slot]);
+        else if (type instanceof BoolType)
+            return local
+                ? frame -> frame.primitives[slot] != 0
+                : frame -> outer(frame, depth).primitives[slot] != 0;
+        else
+            return local
+                ? frame -> frame.objects[slot]
+                : frame -> outer(frame, depth).objects[slot];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the evaluation of {@code value} and its assignment to the variable or parameter
+     * declared by {@code decl}, without boxing primitive values. Performs the implicit Int to
+     * Float conversion if needed.
+     */
+    private StmtExec assign (DeclarationNode decl, ExpressionNode value)
+    {
+        int slot = slot(decl);
+        int depth = attributes.depth(decl);
+        Type type = type(decl);
+        boolean local = depth == this.depth;
+
+        if (type instanceof IntType) {
+            LongExec exec = compileLong(value);
+            return local
+                ? frame -> frame.primitives[slot] = exec.eval(frame)
+                : frame -> outer(frame, depth).primitives[slot] = exec.eval(frame);
+        }
+        else if (type instanceof FloatType) {
+            DoubleExec exec = compileDouble(value);
+            return local
+                ? frame -> frame.primitives[slot] = Double.doubleToRawLongBits(exec.eval(frame))
+                : frame -> outer(frame, depth).primitives[slot] =
+                    Double.doubleToRawLongBits(exec.eval(frame));
+        }
+        else if (type instanceof BoolType) {
+            BoolExec exec = compileBool(value);
+            return local
+                ? frame -> frame.primitives[slot] = exec.eval(frame) ? 1 : 0
+                : frame -> outer(frame, depth).primitives[slot] = exec.eval(frame) ? 1 : 0;
+        }
+        else {
+            Exec exec = compile(value);
+            return local
+                ? frame -> frame.objects[slot] = exec.eval(frame)
+                : frame -> outer(frame, depth).objects[slot] = exec.eval(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores a (boxed) value in the given slot of a frame, for a variable of the given type.
+     * Performs the implicit Int to Float conversion if needed.
+     */
+    private static void store (Frame frame, int slot, Type type, Object value)
+    {
+        if (type instanceof IntType)
+            frame.primitives[slot] = (long) value;
+        else if (type instanceof FloatType)
+            frame.primitives[slot] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+        else if (type instanceof BoolType)
+            frame.primitives[slot] = (boolean) value ? 1 : 0;
+        else
+            frame.objects[slot] = value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an assignment whose left side is a reference.
+     */
+    private StmtExec assignVariable (AssignmentNode node)
+    {
+        DeclarationNode decl = attributes.decl(node.left);
+        if (decl instanceof SyntheticDeclarationNode)
+            throw new UnsupportedOperationException("assigning to a built-in variable");
+        return assign(decl, node.right);
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Statements]
+    // =============================================================================================
+
+    private StmtExec block (BlockNode node)
+    {
+        // The block's variables live in the frame of the surrounding function.
+        StmtExec[] statements = statements(node.statements);
+        return frame -> {
+            for (StmtExec statement: statements)
+                statement.exec(frame);
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private StmtExec varDecl (VarDeclarationNode node) {
+        return assign(node, node.initializer);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private StmtExec funDecl (FunDeclarationNode node)
+    {
+        CompiledFunction fun = function(node);
+        int outerDepth = depth;
+        depth = fun.depth;
+        try {
+            fun.body = statement(node.block);
+        } finally {
+            depth = outerDepth;
+        }
+        return NOOP;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private StmtExec expressionStmt (ExpressionStatementNode node)
+    {
+        if (node.expression instanceof AssignmentNode
+                && ((AssignmentNode) node.expression).left instanceof ReferenceNode)
+            return assignVariable((AssignmentNode) node.expression); // avoids boxing the value
+
+        Exec exec = compile(node.expression);
+        return exec::eval; // discard value
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private StmtExec ifStmt (IfNode node)
+    {
+        BoolExec condition = compileBool(node.condition);
+        StmtExec trueStatement = statement(node.trueStatement);
+
+        if (node.falseStatement == null)
+            return frame -> {
+                if (condition.eval(frame))
+                    trueStatement.exec(frame);
+            };
+
+        StmtExec falseStatement = statement(node.falseStatement);
+        return frame -> {
+            if (condition.eval(frame))
+                trueStatement.exec(frame);
+            else
+                falseStatement.exec(frame);
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private StmtExec whileStmt (WhileNode node)
+    {
+        BoolExec condition = compileBool(node.condition);
+        StmtExec body = statement(node.body);
+        return frame -> {
+            while (condition.eval(frame))
+                body.exec(frame);
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private StmtExec returnStmt (ReturnNode node)
+    {
+        if (node.expression == null)
+            return frame -> { throw new Return(null); };
+
+        Exec exec = compile(node.expression);
+        return frame -> { throw new Return(exec.eval(frame)); };
+    }
+
+    // endregion
+    // =============================================================================================
+}
@@ -0,0 +1,81 @@
+package norswap.sigh.interpreter;
+
+import java.util.Arrays;
+
+/**
+ * The storage for the variables of a function invocation (or of the top-level code) at runtime.
+ *
+ * <p>Semantic analysis assigns every variable and parameter a {@code depth} (the nesting depth of
+ * the function in which it is declared) and a {@code slot} (its index within that function's
+ * frame). Blocks do not get a frame of their own: their variables are flattened in the frame of
+ * the surrounding function, so that accessing a variable is a simple array access.
+ *
+ * <p>Each slot is either used in {@link #objects} or in {@link #primitives}, depending on the
+ * static type of the variable, so that primitive values never need to be boxed.
+ *
+ * <p>Many frames can exist for the same function at the same time, in the presence of
+ * recursion.
+ */
+public final class Frame
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Nesting depth of the function this is a frame for (0 for top-level code).
+     */
+    public final int depth;
+
+    /**
+     * The frame of the caller, or null for the top-level frame.
+     */
+    public final Frame parent;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Slots for variables of reference types.
+     */
+    final Object[] objects;
+
+    /**
+     * Slots for variables of primitive types, stored unboxed: {@code Int} as is, {@code Float} as
+     * the raw bits of the double and {@code Bool} as 0 or 1.
+     */
+    final long[] primitives;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Frame (int depth, int size, Frame parent) {
+        this.depth = depth;
+        this.parent = parent;
+        this.objects = new Object[size];
+        this.primitives = new long[size];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the closest frame with the given depth in the call chain starting at this frame.
+     *
+     * <p>This is only necessary to access variables from functions that enclose the current function
+     * (besides the top-level code), which is only supported if the current function has been called
+     * (directly or indirectly) from its surrounding function.
+     */
+    Frame lookup (int depth)
+    {
+        Frame frame = this;
+        while (frame != null && frame.depth != depth)
+            frame = frame.parent;
+        if (frame == null)
+            throw new Error("[implementation bug] could not find frame of depth " + depth);
+        return frame;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString() {
+        return "Frame " + Arrays.toString(objects) + " " + Arrays.toString(primitives);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,25 +1,30 @@
 package norswap.sigh.interpreter;
 
+import norswap.sigh.AllocationQuotaExceededException;
+import norswap.sigh.Allocations;
+import norswap.sigh.FrozenAttributes;
+import norswap.sigh.OutOfFuelException;
+import norswap.sigh.OutputSink;
 import norswap.sigh.ast.*;
 import norswap.sigh.scopes.DeclarationKind;
 import norswap.sigh.scopes.RootScope;
-import norswap.sigh.scopes.Scope;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
 import norswap.sigh.types.FloatType;
 import norswap.sigh.types.IntType;
 import norswap.sigh.types.StringType;
 import norswap.sigh.types.Type;
 import norswap.uranium.Reactor;
-import norswap.utils.Util;
 import norswap.utils.exceptions.Exceptions;
-import norswap.utils.exceptions.NoStackException;
 import norswap.utils.visitors.ValuedVisitor;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.function.Function;
 
 import static norswap.utils.Util.cast;
-import static norswap.utils.Vanilla.coIterate;
 import static norswap.utils.Vanilla.map;
 
 /**
@@ -32,13 +37,33 @@ import static norswap.utils.Vanilla.map;
  *     </li>
  * </ul>
  *
+ * <p>Variables are stored in {@link Frame}s: one per function invocation, plus one for the top-level
+ * code. Each variable lives in the slot that semantic analysis assigned to it. Variables of
+ * primitive types are stored unboxed.
+ *
+ * <p>Expressions of primitive types are evaluated through the {@link #evalLong}, {@link
+ * #evalDouble} and {@link #evalBool} entry points (selected from their static type), which avoid
+ * boxing intermediate values. The visitor-based evaluation only boxes the final result, when it is
+ * needed as an {@code Object}.</p>
+ *
+ * <p>An interpreter holds the state of one execution at a time. To execute the same program many
+ * times, possibly concurrently, analyze it once into a {@link PreparedProgram}, then create an
+ * interpreter for each execution (or for each thread) from it.
+ *
+ * <p>If constructed with a {@link TieredCompilation} instance, the interpreter profiles function
+ * invocations and loop iterations, and calls to functions that became hot are routed to a compiled
+ * bytecode version of the function once it is available. Hot top-level loops are compiled as well,
+ * and the interpreter transfers to the compiled loop in the middle of its execution (on-stack
+ * replacement).
+ *
  * <p>Runtime value representation:
  * <ul>
  *     <li>{@code Int}, {@code Float}, {@code Bool}: {@link Long}, {@link Double}, {@link Boolean}</li>
  *     <li>{@code String}: {@link String}</li>
  *     <li>{@code null}: {@link Null#INSTANCE}</li>
- *     <li>Arrays: {@code Object[]}</li>
- *     <li>Structs: {@code HashMap<String, Object>}</li>
+ *     <li>Arrays: {@code long[]}, {@code double[]} and {@code boolean[]} for arrays of {@code
+ *     Int}, {@code Float} and {@code Bool}, {@code Object[]} for the other arrays</li>
+ *     <li>Structs: {@link Struct}</li>
  *     <li>Functions: the corresponding {@link DeclarationNode} ({@link FunDeclarationNode} or
  *     {@link SyntheticDeclarationNode}), excepted structure constructors, which are
  *     represented by {@link Constructor}</li>
@@ -49,16 +74,94 @@ public final class Interpreter
 {
     // ---------------------------------------------------------------------------------------------
 
-    private final ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
+    /** Fuel budget for executions that are not limited. */
+    public static final long UNLIMITED_FUEL = Long.MAX_VALUE;
+
+    /** Allocation quota for executions that are not limited. */
+    public static final long UNLIMITED_ALLOCATION = Long.MAX_VALUE;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Visitor for the current execution: {@link #plainVisitor} or {@link #profilingVisitor}. */
+    private ValuedVisitor<SighNode, Object> visitor;
+    private final ValuedVisitor<SighNode, Object> plainVisitor;
+    /** Instrumented visitor, created when a profiler is first set. */
+    private ValuedVisitor<SighNode, Object> profilingVisitor;
+    private Profiler profiler;
+    private OutputSink output = OutputSink.stdout();
     private final Reactor reactor;
-    private ScopeStorage storage = null;
+    private PreparedProgram program;
+    private FrozenAttributes attributes;
+    private Frame frame = null;
     private RootScope rootScope;
-    private ScopeStorage rootStorage;
+    private Frame rootFrame;
+    private final TieredCompilation tieredCompilation;
+    /** {@link #tieredCompilation}, or null if disabled for the current execution. */
+    private TieredCompilation tiers;
+    private FunDeclarationNode currentFunction = null;
+
+    /**
+     * Set when a return statement is executed, causing enclosing statements to complete until the
+     * end of the function (or of the top-level code). The value is held in {@link #returned}.
+     */
+    private boolean returning = false;
+    private Object returned = null;
+
+    /** Fuel budget of each execution, see {@link #setFuel}. */
+    private long fuelBudget = UNLIMITED_FUEL;
+    /** Fuel left for the current (or last) execution. */
+    private long fuel;
+
+    /** Allocation quota of each execution in bytes, see {@link #setAllocationQuota}. */
+    private long allocationQuota = UNLIMITED_ALLOCATION;
+    /** Bytes that the current (or last) execution can still allocate. */
+    private long allocatable;
 
     // ---------------------------------------------------------------------------------------------
 
     public Interpreter (Reactor reactor) {
+        this(reactor, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an interpreter for a prepared program, to be run with {@link #execute()}. {@code
+     * tiers} may be null to disable compilation (see {@link TieredCompilation}).
+     */
+    public Interpreter (PreparedProgram program, TieredCompilation tiers) {
+        this(program.reactor, tiers);
+        this.program = program;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Interpreter (PreparedProgram program) {
+        this(program, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an interpreter that compiles hot functions to bytecode according to {@code tiers}
+     * (which may be null to disable compilation), see {@link TieredCompilation}.
+     */
+    public Interpreter (Reactor reactor, TieredCompilation tiers) {
         this.reactor = reactor;
+        this.tieredCompilation = tiers;
+
+        this.plainVisitor = createVisitor(false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates the visitor that executes the nodes. If {@code profiling} is true, the statement
+     * handlers are instrumented to report to {@link #profiler}.
+     */
+    private ValuedVisitor<SighNode, Object> createVisitor (boolean profiling)
+    {
+        ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
 
         // expressions
         visitor.register(IntLiteralNode.class,           this::intLiteral);
@@ -75,6 +178,18 @@ public final class Interpreter
         visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
         visitor.register(AssignmentNode.class,           this::assignment);
 
+        if (profiling) {
+            visitor.register(RootNode.class,                 this::profiledRoot);
+            visitor.register(BlockNode.class,                this::profiledBlock);
+            visitor.register(VarDeclarationNode.class,       profiled(this::varDecl));
+            visitor.register(ExpressionStatementNode.class,  profiled(this::expressionStmt));
+            visitor.register(IfNode.class,                   profiled(this::ifStmt));
+            visitor.register(WhileNode.class,                profiled(this::whileStmt));
+            visitor.register(ReturnNode.class,               profiled(this::returnStmt));
+            visitor.registerFallback(node -> null);
+            return visitor;
+        }
+
         // statement groups & declarations
         visitor.register(RootNode.class,                 this::root);
         visitor.register(BlockNode.class,                this::block);
@@ -88,39 +203,187 @@ public final class Interpreter
         visitor.register(ReturnNode.class,               this::returnStmt);
 
         visitor.registerFallback(node -> null);
+        return visitor;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Executes the program whose tree is {@code root}, preparing it first unless it is the
+     * program this interpreter was created for.
+     */
     public Object interpret (SighNode root) {
+        if (program == null || program.root != root)
+            program = new PreparedProgram(reactor, cast(root));
+        return execute();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Limits each subsequent execution to {@code fuel} units of fuel (or removes the limit if
+     * {@link #UNLIMITED_FUEL}). One unit is consumed by each function call and each loop
+     * back-edge, and an {@link OutOfFuelException} is thrown when no fuel is left.
+     *
+     * <p>As code compiled by tiered compilation does not consume fuel, executions with a limit are
+     * fully interpreted.
+     */
+    public void setFuel (long fuel) {
+        this.fuelBudget = fuel;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the fuel left at the end of the last execution (see {@link #setFuel}).
+     */
+    public long remainingFuel () {
+        return fuel;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Consumes one unit of fuel. When fuel is not limited, the budget cannot run out in practice,
+     * so this is a decrement and a test.
+     */
+    private void consumeFuel () {
+        if (--fuel < 0) {
+            fuel = 0;
+            throw new PassthroughException(new OutOfFuelException());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Limits the memory allocated by each subsequent execution to {@code bytes} (or removes the
+     * limit if {@link #UNLIMITED_ALLOCATION}). Array literals, structure constructions and string
+     * concatenations are charged (with sizes estimated by {@link Allocations}), and an {@link
+     * AllocationQuotaExceededException} is thrown when the quota is exceeded.
+     *
+     * <p>Allocated memory is never given back to the quota: this limits the total amount of memory
+     * allocated, not the amount of live memory. Like with fuel, executions with a limit are fully
+     * interpreted.
+     */
+    public void setAllocationQuota (long bytes) {
+        this.allocationQuota = bytes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of bytes that were left in the quota at the end of the last execution (see
+     * {@link #setAllocationQuota}).
+     */
+    public long remainingAllocationQuota () {
+        return allocatable;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Charges an allocation of the given size to the allocation quota.
+     */
+    private void allocate (long bytes) {
+        if ((allocatable -= bytes) < 0) {
+            allocatable = 0;
+            throw new PassthroughException(new AllocationQuotaExceededException());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the profiler recording the subsequent executions, or disables profiling if {@code null}
+     * (the default). See {@link Profiler}.
+     *
+     * <p>Profiling swaps in a visitor whose statement handlers are instrumented, so that executions
+     * without a profiler pay nothing for it. As with fuel, executions with a profiler are fully
+     * interpreted.
+     */
+    public void setProfiler (Profiler profiler) {
+        this.profiler = profiler;
+        if (profiler != null && profilingVisitor == null)
+            profilingVisitor = createVisitor(true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the sink receiving the output of {@code print} (by default, a sink writing to the
+     * standard output). The sink is flushed at the end of each execution.
+     */
+    public void setOutput (OutputSink output) {
+        this.output = output;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes the program this interpreter was created for (or last interpreted), and returns the
+     * value returned by its top-level code.
+     */
+    public Object execute ()
+    {
+        if (program == null)
+            throw new IllegalStateException("no program to execute");
+        attributes = program.attributes;
+        fuel = fuelBudget;
+        allocatable = allocationQuota;
+        visitor = profiler == null ? plainVisitor : profilingVisitor;
+        // compiled code does not consume fuel, count allocations or report to the profiler
+        tiers = fuelBudget == UNLIMITED_FUEL && allocationQuota == UNLIMITED_ALLOCATION
+                && profiler == null
+            ? tieredCompilation
+            : null;
+        RootNode root = program.root;
         try {
             return run(root);
         } catch (PassthroughException e) {
             throw Exceptions.runtime(e.getCause());
+        } catch (RuntimeException e) {
+            throw withContext(root, e);
+        } finally {
+            output.flush();
         }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Object run (SighNode node) {
-        try {
-            return visitor.apply(node);
-        } catch (InterpreterException | Return | PassthroughException e) {
-            throw e;
-        } catch (RuntimeException e) {
-            throw new InterpreterException("exception while executing " + node, e);
-        }
+        return visitor.apply(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Wraps an unexpected exception thrown while executing the given statement, unless it already
+     * carries context or must be passed through to the user.
+     *
+     * <p>Context is only attached when an exception actually occurs, by the innermost statement
+     * sequence (block or top-level code) in which it was thrown. There is no per-node bookkeeping.
+     */
+    private static RuntimeException withContext (SighNode node, RuntimeException e) {
+        return e instanceof InterpreterException || e instanceof PassthroughException
+            ? e
+            : new InterpreterException("exception while executing " + node, e);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Used to implement the control flow of the return statement.
+     * Executes the statements in sequence, stopping early if a return statement is executed.
      */
-    private static class Return extends NoStackException {
-        final Object value;
-        private Return (Object value) {
-            this.value = value;
+    private void statements (List<StatementNode> statements)
+    {
+        for (StatementNode statement: statements) {
+            try {
+                run(statement);
+            } catch (RuntimeException e) {
+                throw withContext(statement, e);
+            }
+            if (returning) return;
         }
     }
 
@@ -152,130 +415,269 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object[] arrayLiteral (ArrayLiteralNode node) {
-        return map(node.components, new Object[0], visitor);
+    private Object arrayLiteral (ArrayLiteralNode node)
+    {
+        List<ExpressionNode> components = node.components;
+        int size = components.size();
+        Type type = ((ArrayType) attributes.type(node)).componentType;
+        allocate(Allocations.arraySize(type, size));
+
+        if (type instanceof IntType) {
+            long[] array = new long[size];
+            for (int i = 0; i < size; ++i) array[i] = evalLong(components.get(i));
+            return array;
+        }
+        if (type instanceof FloatType) {
+            double[] array = new double[size];
+            for (int i = 0; i < size; ++i) array[i] = evalDouble(components.get(i));
+            return array;
+        }
+        if (type instanceof BoolType) {
+            boolean[] array = new boolean[size];
+            for (int i = 0; i < size; ++i) array[i] = evalBool(components.get(i));
+            return array;
+        }
+        return map(components, new Object[0], visitor);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Object binaryExpression (BinaryExpressionNode node)
     {
-        Type leftType  = reactor.get(node.left, "type");
-        Type rightType = reactor.get(node.right, "type");
-
-        // Cases where both operands should not be evaluated.
-        switch (node.operator) {
-            case OR:  return booleanOp(node, false);
-            case AND: return booleanOp(node, true);
+        Type type = attributes.type(node);
+
+        // Box only the final result, intermediate values are kept unboxed.
+        if (type instanceof IntType)
+            return evalLong(node);
+        if (type instanceof FloatType)
+            return evalDouble(node);
+        if (type instanceof BoolType)
+            return evalBool(node);
+
+        // string concatenation: built at once for the whole chain, without intermediate strings
+        ExpressionNode[] operands = attributes.concatenation(node);
+        String[] parts = new String[operands.length];
+        int length = 0;
+        for (int i = 0; i < operands.length; ++i) {
+            parts[i] = convertToString(get(operands[i]));
+            length += parts[i].length();
         }
+        allocate(Allocations.stringSize(length));
+        StringBuilder builder = new StringBuilder(length);
+        for (String part: parts)
+            builder.append(part);
+        return builder.toString();
+    }
 
-        Object left  = get(node.left);
-        Object right = get(node.right);
+    // ---------------------------------------------------------------------------------------------
 
-        if (node.operator == BinaryOperator.ADD
-                && (leftType instanceof StringType || rightType instanceof StringType))
-            return convertToString(left) + convertToString(right);
+    /**
+     * Evaluates an expression whose static type is {@code Int}, without boxing intermediate values
+     * whenever possible.
+     */
+    private long evalLong (ExpressionNode node)
+    {
+        if (node instanceof IntLiteralNode)
+            return ((IntLiteralNode) node).value;
 
-        boolean floating = leftType instanceof FloatType || rightType instanceof FloatType;
-        boolean numeric  = floating || leftType instanceof IntType;
+        if (node instanceof ReferenceNode) {
+            // Int-valued references always refer to a variable or parameter.
+            DeclarationNode decl = attributes.decl(node);
+            return frame(decl).primitives[slot(decl)];
+        }
 
-        if (numeric)
-            return numericOp(node, floating, (Number) left, (Number) right);
+        if (node instanceof ParenthesizedNode)
+            return evalLong(((ParenthesizedNode) node).expression);
 
-        switch (node.operator) {
-            case EQUALITY:
-                return  leftType.isPrimitive() ? left.equals(right) : left == right;
-            case NOT_EQUALS:
-                return  leftType.isPrimitive() ? !left.equals(right) : left != right;
+        if (node instanceof ArrayAccessNode) {
+            ArrayAccessNode access = (ArrayAccessNode) node;
+            Object array = getNonNullArray(access.array);
+            if (array instanceof long[])
+                return ((long[]) array)[checkedIndex(array, access.index)];
+            return (long) arrayAccess(array, access.index);
         }
 
-        throw new Error("should not reach here");
+        if (node instanceof BinaryExpressionNode) {
+            // Int-valued binary expressions are always arithmetic between two Int operands.
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            long left  = evalLong(binary.left);
+            long right = evalLong(binary.right);
+            switch (binary.operator) {
+                case MULTIPLY:  return left * right;
+                case DIVIDE:    return left / right;
+                case REMAINDER: return left % right;
+                case ADD:       return left + right;
+                case SUBTRACT:  return left - right;
+                default:
+                    throw new Error("should not reach here");
+            }
+        }
+
+        return (long) get(node);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private boolean booleanOp (BinaryExpressionNode node, boolean isAnd)
+    /**
+     * Evaluates an expression whose static type is {@code Float} or {@code Int} (in which case the
+     * value is promoted), without boxing intermediate values whenever possible.
+     */
+    private double evalDouble (ExpressionNode node)
     {
-        boolean left = get(node.left);
-        return isAnd
-                ? left && (boolean) get(node.right)
-                : left || (boolean) get(node.right);
+        if (attributes.type(node) instanceof IntType)
+            return evalLong(node);
+
+        if (node instanceof FloatLiteralNode)
+            return ((FloatLiteralNode) node).value;
+
+        if (node instanceof ReferenceNode) {
+            // Float-valued references always refer to a variable or parameter.
+            DeclarationNode decl = attributes.decl(node);
+            return Double.longBitsToDouble(frame(decl).primitives[slot(decl)]);
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return evalDouble(((ParenthesizedNode) node).expression);
+
+        if (node instanceof ArrayAccessNode) {
+            ArrayAccessNode access = (ArrayAccessNode) node;
+            Object array = getNonNullArray(access.array);
+            if (array instanceof double[])
+                return ((double[]) array)[checkedIndex(array, access.index)];
+            return ((Number) arrayAccess(array, access.index)).doubleValue();
+        }
+
+        if (node instanceof BinaryExpressionNode) {
+            // Float-valued binary expressions are always arithmetic with a Float operand.
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            double left  = evalDouble(binary.left);
+            double right = evalDouble(binary.right);
+            switch (binary.operator) {
+                case MULTIPLY:  return left * right;
+                case DIVIDE:    return left / right;
+                case REMAINDER: return left % right;
+                case ADD:       return left + right;
+                case SUBTRACT:  return left - right;
+                default:
+                    throw new Error("should not reach here");
+            }
+        }
+
+        // Not necessarily a Double, e.g. the result of an Int function used as a Float function.
+        return ((Number) get(node)).doubleValue();
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object numericOp
-            (BinaryExpressionNode node, boolean floating, Number left, Number right)
+    /**
+     * Evaluates an expression whose static type is {@code Bool}, without boxing intermediate
+     * values whenever possible.
+     */
+    private boolean evalBool (ExpressionNode node)
     {
-        long ileft, iright;
-        double fleft, fright;
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node);
+            if (decl instanceof SyntheticDeclarationNode)
+                return decl == rootScope._true; // only true and false are built-in Bool variables
+            return frame(decl).primitives[slot(decl)] != 0;
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return evalBool(((ParenthesizedNode) node).expression);
 
-        if (floating) {
-            fleft  = left.doubleValue();
-            fright = right.doubleValue();
-            ileft = iright = 0;
-        } else {
-            ileft  = left.longValue();
-            iright = right.longValue();
-            fleft = fright = 0;
+        if (node instanceof ArrayAccessNode) {
+            ArrayAccessNode access = (ArrayAccessNode) node;
+            Object array = getNonNullArray(access.array);
+            if (array instanceof boolean[])
+                return ((boolean[]) array)[checkedIndex(array, access.index)];
+            return (boolean) arrayAccess(array, access.index);
         }
 
-        Object result;
-        if (floating)
+        if (node instanceof UnaryExpressionNode) {
+            // there is only NOT
+            assert ((UnaryExpressionNode) node).operator == UnaryOperator.NOT;
+            return !evalBool(((UnaryExpressionNode) node).operand);
+        }
+
+        if (node instanceof BinaryExpressionNode)
+            return evalBoolBinary((BinaryExpressionNode) node);
+
+        return (boolean) get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean evalBoolBinary (BinaryExpressionNode node)
+    {
+        // Cases where both operands should not be evaluated.
+        switch (node.operator) {
+            case OR:  return evalBool(node.left) || evalBool(node.right);
+            case AND: return evalBool(node.left) && evalBool(node.right);
+        }
+
+        Type leftType  = attributes.type(node.left);
+        Type rightType = attributes.type(node.right);
+
+        if (leftType instanceof FloatType || rightType instanceof FloatType) {
+            double left  = evalDouble(node.left);
+            double right = evalDouble(node.right);
             switch (node.operator) {
-                case MULTIPLY:      return fleft *  fright;
-                case DIVIDE:        return fleft /  fright;
-                case REMAINDER:     return fleft %  fright;
-                case ADD:           return fleft +  fright;
-                case SUBTRACT:      return fleft -  fright;
-                case GREATER:       return fleft >  fright;
-                case LOWER:         return fleft <  fright;
-                case GREATER_EQUAL: return fleft >= fright;
-                case LOWER_EQUAL:   return fleft <= fright;
-                case EQUALITY:      return fleft == fright;
-                case NOT_EQUALS:    return fleft != fright;
+                case GREATER:       return left >  right;
+                case LOWER:         return left <  right;
+                case GREATER_EQUAL: return left >= right;
+                case LOWER_EQUAL:   return left <= right;
+                case EQUALITY:      return left == right;
+                case NOT_EQUALS:    return left != right;
                 default:
                     throw new Error("should not reach here");
             }
-        else
+        }
+
+        if (leftType instanceof IntType) {
+            long left  = evalLong(node.left);
+            long right = evalLong(node.right);
             switch (node.operator) {
-                case MULTIPLY:      return ileft *  iright;
-                case DIVIDE:        return ileft /  iright;
-                case REMAINDER:     return ileft %  iright;
-                case ADD:           return ileft +  iright;
-                case SUBTRACT:      return ileft -  iright;
-                case GREATER:       return ileft >  iright;
-                case LOWER:         return ileft <  iright;
-                case GREATER_EQUAL: return ileft >= iright;
-                case LOWER_EQUAL:   return ileft <= iright;
-                case EQUALITY:      return ileft == iright;
-                case NOT_EQUALS:    return ileft != iright;
+                case GREATER:       return left >  right;
+                case LOWER:         return left <  right;
+                case GREATER_EQUAL: return left >= right;
+                case LOWER_EQUAL:   return left <= right;
+                case EQUALITY:      return left == right;
+                case NOT_EQUALS:    return left != right;
                 default:
                     throw new Error("should not reach here");
             }
+        }
+
+        if (leftType instanceof BoolType) {
+            boolean left  = evalBool(node.left);
+            boolean right = evalBool(node.right);
+            return node.operator == BinaryOperator.EQUALITY ? left == right : left != right;
+        }
+
+        Object left  = get(node.left);
+        Object right = get(node.right);
+        return node.operator == BinaryOperator.EQUALITY ? left == right : left != right;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     public Object assignment (AssignmentNode node)
     {
-        if (node.left instanceof ReferenceNode) {
-            Scope scope = reactor.get(node.left, "scope");
-            String name = ((ReferenceNode) node.left).name;
-            Object rvalue = get(node.right);
-            assign(scope, name, rvalue, reactor.get(node, "type"));
-            return rvalue;
-        }
+        if (node.left instanceof ReferenceNode)
+            return load(assignVariable(node));
 
         if (node.left instanceof ArrayAccessNode) {
             ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
-            Object[] array = getNonNullArray(arrayAccess.array);
-            int index = getIndex(arrayAccess.index);
-            try {
-                return array[index] = get(node.right);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                throw new PassthroughException(e);
-            }
+            Object array = getNonNullArray(arrayAccess.array);
+            int index = checkedIndex(array, arrayAccess.index);
+
+            if (array instanceof long[])
+                return ((long[]) array)[index] = evalLong(node.right);
+            if (array instanceof double[])
+                return ((double[]) array)[index] = evalDouble(node.right);
+            if (array instanceof boolean[])
+                return ((boolean[]) array)[index] = evalBool(node.right);
+            return ((Object[]) array)[index] = get(node.right);
         }
 
         if (node.left instanceof FieldAccessNode) {
@@ -284,9 +686,8 @@ public final class Interpreter
             if (object == Null.INSTANCE)
                 throw new PassthroughException(
                     new NullPointerException("accessing field of null object"));
-            Map<String, Object> struct = cast(object);
             Object right = get(node.right);
-            struct.put(fieldAccess.fieldName, right);
+            ((Struct) object).fields[attributes.fieldIndex(fieldAccess)] = right;
             return right;
         }
 
@@ -297,7 +698,7 @@ public final class Interpreter
 
     private int getIndex (ExpressionNode node)
     {
-        long index = get(node);
+        long index = evalLong(node);
         if (index < 0)
             throw new ArrayIndexOutOfBoundsException("Negative index: " + index);
         if (index >= Integer.MAX_VALUE - 1)
@@ -307,65 +708,126 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object[] getNonNullArray (ExpressionNode node)
+    /**
+     * Evaluates the index expression and checks that it is within the bounds of {@code array}.
+     */
+    private int checkedIndex (Object array, ExpressionNode node)
+    {
+        try {
+            int index = getIndex(node);
+            int length = Array.getLength(array);
+            if (index >= length)
+                throw new ArrayIndexOutOfBoundsException(
+                    "Index " + index + " out of bounds for length " + length);
+            return index;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new PassthroughException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object getNonNullArray (ExpressionNode node)
     {
         Object object = get(node);
         if (object == Null.INSTANCE)
             throw new PassthroughException(new NullPointerException("indexing null array"));
-        return (Object[]) object;
+        return object;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object unaryExpression (UnaryExpressionNode node)
-    {
-        // there is only NOT
-        assert node.operator == UnaryOperator.NOT;
-        return ! (boolean) get(node.operand);
+    private Object unaryExpression (UnaryExpressionNode node) {
+        return evalBool(node);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object arrayAccess (ArrayAccessNode node)
-    {
-        Object[] array = getNonNullArray(node.array);
-        try {
-            return array[getIndex(node.index)];
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new PassthroughException(e);
-        }
+    private Object arrayAccess (ArrayAccessNode node) {
+        return arrayAccess(getNonNullArray(node.array), node.index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the (boxed) element of {@code array} at the index given by the {@code index}
+     * expression, whatever the representation of the array.
+     */
+    private Object arrayAccess (Object array, ExpressionNode index) {
+        return arrayElement(array, checkedIndex(array, index));
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Object root (RootNode node)
     {
-        assert storage == null;
-        rootScope = reactor.get(node, "scope");
-        storage = rootStorage = new ScopeStorage(rootScope, null);
-        storage.initRoot(rootScope);
+        assert frame == null;
+        rootScope = attributes.scope(node);
+        frame = rootFrame = new Frame(0, attributes.frameSize(node), null);
+        if (tiers != null) tiers.start(rootScope, attributes, output);
 
         try {
-            node.statements.forEach(this::run);
-        } catch (Return r) {
-            return r.value;
             // allow returning from the main script
+            statements(node.statements);
+            return returnValue();
         } finally {
-            storage = null;
+            frame = null;
+            returning = false;
         }
-        return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Void block (BlockNode node) {
-        Scope scope = reactor.get(node, "scope");
-        storage = new ScopeStorage(scope, storage);
-        node.statements.forEach(this::run);
-        storage = storage.parent;
+        // The block's variables live in the frame of the surrounding function.
+        statements(node.statements);
         return null;
     }
 
+    // ---------------------------------------------------------------------------------------------
+    // region [Profiling]
+    // ---------------------------------------------------------------------------------------------
+
+    private <S extends StatementNode> Function<S, Object> profiled (Function<S, Object> handler) {
+        return node -> {
+            profiler.executed(node);
+            return handler.apply(node);
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object profiledRoot (RootNode node)
+    {
+        profiler.start();
+        try {
+            return root(node);
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void profiledBlock (BlockNode node)
+    {
+        profiler.executed(node);
+        // function bodies are only executed by funCall, after setting currentFunction
+        FunDeclarationNode function = currentFunction;
+        if (function == null || function.block != node)
+            return block(node);
+
+        profiler.enter(function);
+        try {
+            return block(node);
+        } finally {
+            profiler.exit(function);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // endregion
+
     // ---------------------------------------------------------------------------------------------
 
     private Constructor constructor (ConstructorNode node) {
@@ -375,22 +837,72 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object expressionStmt (ExpressionStatementNode node) {
-        get(node.expression);
+    private Object expressionStmt (ExpressionStatementNode node)
+    {
+        if (node.expression instanceof AssignmentNode
+                && ((AssignmentNode) node.expression).left instanceof ReferenceNode)
+            assignVariable((AssignmentNode) node.expression); // avoids boxing the value
+        else if (isPrintedConcatenation(node.expression))
+            printConcatenation((FunCallNode) node.expression);
+        else
+            get(node.expression);
         return null;  // discard value
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns true if the expression calls {@code print} on a string concatenation whose operands
+     * are all literals or references. As these can't fail or print, each operand can be printed as
+     * soon as it is evaluated, without changing the output.
+     */
+    private boolean isPrintedConcatenation (ExpressionNode node)
+    {
+        if (!(node instanceof FunCallNode)) return false;
+        FunCallNode call = (FunCallNode) node;
+        return call.function instanceof ReferenceNode
+            && attributes.decl(call.function) == rootScope.print
+            && call.arguments.get(0) instanceof BinaryExpressionNode
+            && attributes.type(call.arguments.get(0)) instanceof StringType
+            && Arrays.stream(attributes.concatenation((BinaryExpressionNode) call.arguments.get(0)))
+                .allMatch(it -> it instanceof ReferenceNode
+                    || it instanceof StringLiteralNode
+                    || it instanceof IntLiteralNode
+                    || it instanceof FloatLiteralNode);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints the operands of a string concatenation one after the other, without building the
+     * string, which is not used.
+     */
+    private void printConcatenation (FunCallNode node)
+    {
+        BinaryExpressionNode concatenation = (BinaryExpressionNode) node.arguments.get(0);
+        for (ExpressionNode operand: attributes.concatenation(concatenation)) {
+            Type type = attributes.type(operand);
+            if (type instanceof IntType)
+                output.print(evalLong(operand));
+            else if (type instanceof FloatType)
+                output.print(evalDouble(operand));
+            else
+                output.print(convertToString(get(operand)));
+        }
+        output.println();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object fieldAccess (FieldAccessNode node)
     {
         Object stem = get(node.stem);
         if (stem == Null.INSTANCE)
             throw new PassthroughException(
                 new NullPointerException("accessing field of null object"));
-        return stem instanceof Map
-                ? Util.<Map<String, Object>>cast(stem).get(node.fieldName)
-                : (long) ((Object[]) stem).length; // only field on arrays
+        return stem instanceof Struct
+                ? ((Struct) stem).fields[attributes.fieldIndex(node)]
+                : (long) Array.getLength(stem); // only field on arrays
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -406,25 +918,36 @@ public final class Interpreter
         if (decl instanceof SyntheticDeclarationNode)
             return builtin(((SyntheticDeclarationNode) decl).name(), args);
 
-        if (decl instanceof Constructor)
-            return buildStruct(((Constructor) decl).declaration, args);
-
-        ScopeStorage oldStorage = storage;
-        Scope scope = reactor.get(decl, "scope");
-        storage = new ScopeStorage(scope, storage);
+        if (decl instanceof Constructor) {
+            StructDeclarationNode struct = ((Constructor) decl).declaration;
+            allocate(Allocations.structSize(struct.fields.size()));
+            return buildStruct(struct, args);
+        }
 
         FunDeclarationNode funDecl = (FunDeclarationNode) decl;
-        coIterate(args, funDecl.parameters,
-                (arg, param) -> storage.set(scope, param.name, arg));
+        consumeFuel();
+
+        if (tiers != null) {
+            MethodHandle compiled = tiers.enter(funDecl);
+            if (compiled != null)
+                return TieredCompilation.invoke(compiled, args);
+        }
+
+        Frame oldFrame = frame;
+        FunDeclarationNode oldFunction = currentFunction;
+        frame = new Frame(attributes.depth(funDecl), attributes.frameSize(funDecl), frame);
+        currentFunction = funDecl;
+
+        for (int i = 0; i < args.length; ++i)
+            store(funDecl.parameters.get(i), args[i]);
 
         try {
             get(funDecl.block);
-        } catch (Return r) {
-            return r.value;
+            return returnValue();
         } finally {
-            storage = oldStorage;
+            frame = oldFrame;
+            currentFunction = oldFunction;
         }
-        return null;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -433,18 +956,28 @@ public final class Interpreter
     {
         assert name.equals("print"); // only one at the moment
         String out = convertToString(args[0]);
-        System.out.println(out);
+        output.println(out);
         return out;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private String convertToString (Object arg)
+    /**
+     * Converts a value to its string representation, as done by string concatenation and {@code
+     * print}. Also used by the other execution modes sharing the same value representation.
+     */
+    public static String convertToString (Object arg)
     {
         if (arg == Null.INSTANCE)
             return "null";
         else if (arg instanceof Object[])
             return Arrays.deepToString((Object[]) arg);
+        else if (arg instanceof long[])
+            return Arrays.toString((long[]) arg);
+        else if (arg instanceof double[])
+            return Arrays.toString((double[]) arg);
+        else if (arg instanceof boolean[])
+            return Arrays.toString((boolean[]) arg);
         else if (arg instanceof FunDeclarationNode)
             return ((FunDeclarationNode) arg).name;
         else if (arg instanceof StructDeclarationNode)
@@ -457,19 +990,50 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private HashMap<String, Object> buildStruct (StructDeclarationNode node, Object[] args)
+    /**
+     * Returns the (boxed) element at the given index of an array, whatever its representation.
+     * Also used by the other execution modes sharing the same value representation.
+     */
+    public static Object arrayElement (Object array, int index)
+    {
+        if (array instanceof long[])    return ((long[]) array)[index];
+        if (array instanceof double[])  return ((double[]) array)[index];
+        if (array instanceof boolean[]) return ((boolean[]) array)[index];
+        return ((Object[]) array)[index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores a (boxed) value at the given index of an array, whatever its representation. Also used
+     * by the other execution modes sharing the same value representation.
+     */
+    public static void setArrayElement (Object array, int index, Object value)
     {
-        HashMap<String, Object> struct = new HashMap<>();
-        for (int i = 0; i < node.fields.size(); ++i)
-            struct.put(node.fields.get(i).name, args[i]);
-        return struct;
+        if (array instanceof long[])
+            ((long[]) array)[index] = (long) value;
+        else if (array instanceof double[])
+            ((double[]) array)[index] = ((Number) value).doubleValue();
+        else if (array instanceof boolean[])
+            ((boolean[]) array)[index] = (boolean) value;
+        else
+            ((Object[]) array)[index] = value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds a structure instance from the constructor arguments.
+     */
+    public static Struct buildStruct (StructDeclarationNode node, Object[] args) {
+        return new Struct(node, args);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Void ifStmt (IfNode node)
     {
-        if (get(node.condition))
+        if (evalBool(node.condition))
             get(node.trueStatement);
         else if (node.falseStatement != null)
             get(node.falseStatement);
@@ -480,8 +1044,18 @@ public final class Interpreter
 
     private Void whileStmt (WhileNode node)
     {
-        while (get(node.condition))
+        while (evalBool(node.condition)) {
             get(node.body);
+            if (returning)
+                break;
+            consumeFuel();
+            if (tiers == null)
+                continue;
+            if (currentFunction != null)
+                tiers.backEdge(currentFunction);
+            else if (tiers.loopBackEdge(node, frame))
+                break; // the loop completed in compiled code
+        }
         return null;
     }
 
@@ -489,42 +1063,156 @@ public final class Interpreter
 
     private Object reference (ReferenceNode node)
     {
-        Scope scope = reactor.get(node, "scope");
-        DeclarationNode decl = reactor.get(node, "decl");
+        DeclarationNode decl = attributes.decl(node);
 
-        if (decl instanceof VarDeclarationNode
-        || decl instanceof ParameterNode
-        || decl instanceof SyntheticDeclarationNode
+        if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode)
+            return load(decl);
+
+        if (decl instanceof SyntheticDeclarationNode
                 && ((SyntheticDeclarationNode) decl).kind() == DeclarationKind.VARIABLE)
-            return scope == rootScope
-                ? rootStorage.get(scope, node.name)
-                : storage.get(scope, node.name);
+            return decl == rootScope._true
+                ? Boolean.TRUE
+                : decl == rootScope._false
+                    ? Boolean.FALSE
+                    : Null.INSTANCE;
 
         return decl; // structure or function
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the slot of the given variable or parameter declaration in its frame.
+     */
+    private int slot (DeclarationNode decl) {
+        return attributes.slot(decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame holding the given variable or parameter declaration.
+     */
+    private Frame frame (DeclarationNode decl)
+    {
+        int depth = attributes.depth(decl);
+        return depth == frame.depth
+            ? frame
+            : depth == 0
+                ? rootFrame
+                : frame.lookup(depth);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Void returnStmt (ReturnNode node) {
-        throw new Return(node.expression == null ? null : get(node.expression));
+        returned = node.expression == null ? null : get(node.expression);
+        returning = true;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Completes the execution of a function body (or of the top-level code): returns the value
+     * of the executed return statement (null if none) and clears the return state.
+     */
+    private Object returnValue ()
+    {
+        if (!returning) return null;
+        Object value = returned;
+        returning = false;
+        returned = null;
+        return value;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Void varDecl (VarDeclarationNode node)
     {
-        Scope scope = reactor.get(node, "scope");
-        assign(scope, node.name, get(node.initializer), reactor.get(node, "type"));
+        assign(node, node.initializer);
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private void assign (Scope scope, String name, Object value, Type targetType)
+    /**
+     * Performs an assignment whose left side is a reference, and returns the declaration of the
+     * assigned variable.
+     */
+    private DeclarationNode assignVariable (AssignmentNode node)
     {
-        if (value instanceof Long && targetType instanceof FloatType)
-            value = ((Long) value).doubleValue();
-        storage.set(scope, name, value);
+        DeclarationNode decl = attributes.decl(node.left);
+        if (decl instanceof SyntheticDeclarationNode)
+            throw new UnsupportedOperationException("assigning to a built-in variable");
+        assign(decl, node.right);
+        return decl;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates {@code value} and assigns it to the variable or parameter declared by {@code decl},
+     * without boxing primitive values. Performs the implicit Int to Float conversion if needed.
+     */
+    private void assign (DeclarationNode decl, ExpressionNode value)
+    {
+        Frame frame = frame(decl);
+        int slot = slot(decl);
+        Type type = attributes.type(decl);
+
+        if (type instanceof IntType)
+            frame.primitives[slot] = evalLong(value);
+        else if (type instanceof FloatType)
+            frame.primitives[slot] = Double.doubleToRawLongBits(evalDouble(value));
+        else if (type instanceof BoolType)
+            frame.primitives[slot] = evalBool(value) ? 1 : 0;
+        else
+            frame.objects[slot] = get(value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores a (boxed) value in the variable or parameter declared by {@code decl}. Performs the
+     * implicit Int to Float conversion if needed.
+     */
+    private void store (DeclarationNode decl, Object value)
+    {
+        Frame frame = frame(decl);
+        int slot = slot(decl);
+        Type type = attributes.type(decl);
+
+        if (type instanceof IntType)
+            frame.primitives[slot] = (long) value;
+        else if (type instanceof FloatType)
+            frame.primitives[slot] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+        else if (type instanceof BoolType)
+            frame.primitives[slot] = (boolean) value ? 1 : 0;
+        else
+            frame.objects[slot] = value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the variable or parameter declared by {@code decl}, boxing it if its
+     * type is primitive.
+     */
+    private Object load (DeclarationNode decl)
+    {
+        Frame frame = frame(decl);
+        int slot = slot(decl);
+        Type type = attributes.type(decl);
+
+        if (type instanceof IntType)
+            return frame.primitives[slot];
+        else if (type instanceof FloatType)
+            return Double.longBitsToDouble(frame.primitives[slot]);
+        else if (type instanceof BoolType)
+            return frame.primitives[slot] != 0;
+        else
+            return frame.objects[slot];
     }
 
     // ---------------------------------------------------------------------------------------------
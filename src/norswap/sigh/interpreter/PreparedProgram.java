@@ -0,0 +1,39 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.FrozenAttributes;
+import norswap.sigh.ast.RootNode;
+import norswap.uranium.Reactor;
+
+/**
+ * A program that has been parsed and analyzed, ready to be executed by {@link Interpreter}s.
+ *
+ * <p>A prepared program is immutable: it holds the tree and a {@link FrozenAttributes} copy of
+ * its attributes, which are only read during execution. It can therefore be executed by many
+ * interpreters at once, on different threads, each interpreter holding the state of a single
+ * execution (variables, call frames).
+ *
+ * <p>The reactor is kept to look up the attributes of the nodes that are not part of the tree
+ * (built-in declarations), and must not be modified anymore.
+ */
+public final class PreparedProgram
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public final RootNode root;
+    final Reactor reactor;
+    final FrozenAttributes attributes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prepares the program whose tree is {@code root}, which must have been analyzed by {@code
+     * reactor} without errors.
+     */
+    public PreparedProgram (Reactor reactor, RootNode root) {
+        this.root = root;
+        this.reactor = reactor;
+        this.attributes = FrozenAttributes.freeze(reactor, root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,250 @@
+package norswap.sigh.interpreter;
+
+import norswap.autumn.positions.LineMap;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.StatementNode;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects a profile of the executions of an {@link Interpreter} on which it has been installed
+ * (see {@link Interpreter#setProfiler}).
+ *
+ * <p>The profile comprises the number of invocations and the cumulative time spent in each
+ * function, the number of times each statement was executed, and the time spent in each calling
+ * context (sequence of calls from the top-level code), which can be exported in the "collapsed
+ * stacks" format read by flame graph tools (e.g. {@code flamegraph.pl}).
+ *
+ * <p>The profile accumulates over all executions, until {@link #clear} is called. A profiler must
+ * not be used by multiple interpreters at once.
+ *
+ * <p>Functions and statements are identified in reports by their start position in the source,
+ * obtained from their {@link SighNode#span} and a {@link LineMap} for the source.
+ */
+public final class Profiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class FunctionStats {
+        long invocations;
+        long nanos;
+        /** Number of invocations of the function that are currently on the stack. */
+        int active;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A node in the calling context tree, whose root stands for the top-level code. */
+    private static final class CallContext {
+        final FunDeclarationNode function;
+        final CallContext parent;
+        final Map<FunDeclarationNode, CallContext> children = new IdentityHashMap<>();
+        long selfNanos;
+
+        CallContext (FunDeclarationNode function, CallContext parent) {
+            this.function = function;
+            this.parent = parent;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    // Identity maps, as nodes implement structural equality.
+    private final Map<FunDeclarationNode, FunctionStats> functions = new IdentityHashMap<>();
+    private final Map<StatementNode, long[]> statements = new IdentityHashMap<>();
+    private CallContext root = new CallContext(null, null);
+
+    /** Context of the function (or top-level code) being executed. */
+    private CallContext context;
+    /** Start time of the current invocation of the function of each active context. */
+    private final ArrayList<long[]> timers = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Forgets the profile collected so far.
+     */
+    public void clear () {
+        functions.clear();
+        statements.clear();
+        root = new CallContext(null, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region [Recording]
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when the execution of the top-level code starts.
+     */
+    void start () {
+        context = root;
+        timers.clear();
+        timers.add(new long[] { System.nanoTime(), 0 });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when the execution of the top-level code ends, normally or not.
+     */
+    void stop () {
+        exitContext();
+        context = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void executed (StatementNode node) {
+        long[] count = statements.get(node);
+        if (count == null) statements.put(node, new long[] { 1 });
+        else ++count[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when the body of {@code function} starts to execute.
+     */
+    void enter (FunDeclarationNode function)
+    {
+        FunctionStats stats = functions.computeIfAbsent(function, k -> new FunctionStats());
+        ++stats.invocations;
+        ++stats.active;
+        context = context.children.computeIfAbsent(function, k -> new CallContext(k, context));
+        // [start time, time spent in callees]
+        timers.add(new long[] { System.nanoTime(), 0 });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when the body of {@code function} has completed, normally or not.
+     */
+    void exit (FunDeclarationNode function)
+    {
+        long elapsed = exitContext();
+        FunctionStats stats = functions.get(function);
+        // only count the outermost invocation of recursive functions
+        if (--stats.active == 0)
+            stats.nanos += elapsed;
+        context = context.parent;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pops the timer of the current context, charges its self time and returns its total time.
+     */
+    private long exitContext ()
+    {
+        long[] timer = timers.remove(timers.size() - 1);
+        long elapsed = System.nanoTime() - timer[0];
+        context.selfNanos += elapsed - timer[1];
+        if (!timers.isEmpty())
+            timers.get(timers.size() - 1)[1] += elapsed;
+        return elapsed;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // endregion
+    // region [Results]
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of times the function was invoked.
+     */
+    public long invocations (FunDeclarationNode function) {
+        FunctionStats stats = functions.get(function);
+        return stats == null ? 0 : stats.invocations;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the time spent in the function (including its callees) in nanoseconds. The time
+     * spent in recursive invocations is only counted once.
+     */
+    public long nanos (FunDeclarationNode function) {
+        FunctionStats stats = functions.get(function);
+        return stats == null ? 0 : stats.nanos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of times the statement was executed.
+     */
+    public long executions (StatementNode statement) {
+        long[] count = statements.get(statement);
+        return count == null ? 0 : count[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a report listing the functions by decreasing cumulative time, then the statements by
+     * decreasing execution count.
+     */
+    public String report (LineMap map)
+    {
+        StringBuilder b = new StringBuilder("functions:\n");
+
+        List<Map.Entry<FunDeclarationNode, FunctionStats>> funs = new ArrayList<>(functions.entrySet());
+        funs.sort((a, c) -> Long.compare(c.getValue().nanos, a.getValue().nanos));
+        for (Map.Entry<FunDeclarationNode, FunctionStats> entry: funs)
+            b.append(String.format("  %-30s %10d calls %12.3f ms%n",
+                frameName(entry.getKey(), map),
+                entry.getValue().invocations,
+                entry.getValue().nanos / 1e6));
+
+        b.append("statements:\n");
+
+        List<Map.Entry<StatementNode, long[]>> stmts = new ArrayList<>(statements.entrySet());
+        stmts.sort((a, c) -> Long.compare(c.getValue()[0], a.getValue()[0]));
+        for (Map.Entry<StatementNode, long[]> entry: stmts)
+            b.append(String.format("  %-10s %10d  %s%n",
+                entry.getKey().span.startString(map),
+                entry.getValue()[0],
+                entry.getKey()));
+
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the time spent in each calling context, in the collapsed stacks format: one line per
+     * context, made of the {@code ;}-separated frames of the context, followed by a space and the
+     * time spent in the context itself (excluding callees) in nanoseconds.
+     *
+     * <p>The top-level code is named {@code main}, and functions {@code name@line:column}.
+     */
+    public String collapsedStacks (LineMap map) {
+        StringBuilder b = new StringBuilder();
+        collapsedStacks(root, "main", map, b);
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void collapsedStacks (CallContext context, String stack, LineMap map, StringBuilder b)
+    {
+        b.append(stack).append(' ').append(context.selfNanos).append('\n');
+        for (CallContext child: context.children.values())
+            collapsedStacks(child, stack + ";" + frameName(child.function, map), map, b);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String frameName (FunDeclarationNode function, LineMap map) {
+        return function.name + "@" + function.span.startString(map);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // endregion
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,38 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.StructDeclarationNode;
+
+/**
+ * Class representing structure instances in the interpreter (and the other execution modes
+ * sharing its value representation).
+ *
+ * <p>The layout of the instance is fixed by its declaration: field values are stored in {@link
+ * #fields} in declaration order. Semantic analysis assigns a {@code fieldIndex} attribute to each
+ * access to a structure field, so that accessing a field is a single array access.
+ *
+ * <p>Like in Sigh, two instances are only equal if they are the same object.
+ */
+public final class Struct
+{
+    public final StructDeclarationNode declaration;
+    public final Object[] fields;
+
+    /**
+     * Creates a structure instance, using (not copying) the given array of field values.
+     */
+    public Struct (StructDeclarationNode declaration, Object[] fields) {
+        this.declaration = declaration;
+        this.fields = fields;
+    }
+
+    @Override public String toString ()
+    {
+        StringBuilder b = new StringBuilder("{");
+        for (int i = 0; i < fields.length; ++i) {
+            if (i > 0) b.append(", ");
+            b.append(declaration.fields.get(i).name).append('=')
+             .append(Interpreter.convertToString(fields[i]));
+        }
+        return b.append('}').toString();
+    }
+}
@@ -0,0 +1,697 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.FrozenAttributes;
+import norswap.sigh.OutputSink;
+import norswap.sigh.ast.*;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.FunType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import norswap.sigh.types.VoidType;
+import norswap.uranium.Reactor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Second execution tier for the {@link Interpreter}: counts the invocations and loop back-edges of
+ * each function, and compiles the functions that become hot to JVM bytecode (using {@link
+ * BytecodeCompiler}) in the background. Once compiled, the interpreter routes calls to these
+ * functions to the generated static methods.
+ *
+ * <p>Only functions whose parameters and return value are of type {@code Int}, {@code Float},
+ * {@code Bool}, {@code String} (or {@code Void}) are compiled, as these values can easily be
+ * converted between the interpreter and the bytecode representations. Additionally, the functions
+ * must only use their own variables, must not declare other functions, must only call eligible
+ * functions and builtins, and must not manipulate values of other types (e.g. arrays or {@code
+ * null}). A compiled function includes all the functions it calls.
+ *
+ * <p>Top-level loops are never re-entered, so the back-edges of each top-level loop are counted
+ * separately. A hot loop satisfying the same restrictions (and not containing {@code return}) is
+ * compiled, and the interpreter then continues its execution in the compiled code (on-stack
+ * replacement): the variables of the top-level frame used by the loop are loaded into the JVM
+ * locals of the compiled method, then written back when the loop completes.
+ *
+ * <p>Profiles are only updated by the interpreter thread. An instance must not be shared between
+ * interpreters running concurrently.
+ */
+public final class TieredCompilation
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Default number of invocations and back-edges after which a function is compiled. */
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    private static final ExecutorService DEFAULT_EXECUTOR =
+        Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sigh-tiered-compilation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Per-function profiling and compilation state. */
+    private static final class Profile
+    {
+        int count;
+        boolean submitted;
+        Boolean eligible;
+        volatile MethodHandle compiled;
+        /** For loops, variables to transfer to and from the compiled code. */
+        List<VarDeclarationNode> live;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+    private final int threshold;
+    private final Executor executor;
+    private final IdentityHashMap<FunDeclarationNode, Profile> profiles = new IdentityHashMap<>();
+    private final IdentityHashMap<WhileNode, Profile> loopProfiles = new IdentityHashMap<>();
+    private final List<String> compiledFunctions = new ArrayList<>();
+    private int compiledLoops = 0;
+    private RootScope rootScope;
+    private FrozenAttributes attributes;
+
+    // Guarded by this, as they are also accessed by the compilation tasks.
+
+    /** Sink of the current execution. */
+    private OutputSink output;
+    /** The classes compiled so far, whose output is redirected to the sink of each execution. */
+    private final List<Class<?>> compiledClasses = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a tiered compilation policy where functions are compiled after {@code threshold}
+     * invocations and back-edges, by tasks submitted to {@code executor}.
+     */
+    public TieredCompilation (Reactor reactor, int threshold, Executor executor) {
+        this.reactor = reactor;
+        this.threshold = threshold;
+        this.executor = executor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public TieredCompilation (Reactor reactor) {
+        this(reactor, DEFAULT_THRESHOLD, DEFAULT_EXECUTOR);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the names of the hot functions that have been compiled so far, in order of
+     * compilation. Functions only compiled as callees of hot functions are not included.
+     */
+    public synchronized List<String> compiledFunctions () {
+        return new ArrayList<>(compiledFunctions);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of top-level loops that have been compiled so far.
+     */
+    public synchronized int compiledLoops () {
+        return compiledLoops;
+    }
+
+    // =============================================================================================
+    // region [Profiling]
+    // =============================================================================================
+
+    /**
+     * Called by the interpreter when it starts executing a program, whose output compiled code
+     * must also be sent to.
+     */
+    void start (RootScope rootScope, FrozenAttributes attributes, OutputSink output)
+    {
+        this.rootScope = rootScope;
+        this.attributes = attributes;
+        synchronized (this) {
+            this.output = output;
+            for (Class<?> klass: compiledClasses)
+                CompilationResult.setOutput(klass, output);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Profile profile (FunDeclarationNode function) {
+        return profiles.computeIfAbsent(function, it -> new Profile());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records an invocation of the function, and returns a handle to its compiled version if
+     * available (or null). The handle takes and returns values in the interpreter representation,
+     * with the arguments in an array.
+     */
+    MethodHandle enter (FunDeclarationNode function)
+    {
+        Profile profile = profile(function);
+        MethodHandle compiled = profile.compiled;
+        if (compiled != null) return compiled;
+        record(function, profile, 1);
+        // compilation may have completed synchronously
+        return profile.compiled;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records a loop back-edge within the function.
+     */
+    void backEdge (FunDeclarationNode function) {
+        Profile profile = profile(function);
+        if (profile.compiled == null) record(function, profile, 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records a back-edge of a top-level loop, running in {@code frame} (the top-level frame). If a
+     * compiled version of the loop is available, runs the rest of the loop with it (on-stack
+     * replacement) and returns true. Returns false if the loop must keep being interpreted.
+     */
+    boolean loopBackEdge (WhileNode loop, Frame frame)
+    {
+        Profile profile = loopProfiles.computeIfAbsent(loop, it -> new Profile());
+        if (profile.compiled == null) {
+            if (profile.submitted || ++profile.count < threshold)
+                return false;
+            profile.submitted = true;
+            submitLoop(loop, profile);
+            // compilation may have completed synchronously
+            if (profile.compiled == null)
+                return false;
+        }
+
+        runLoop(profile.compiled, frame, profile.live);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void record (FunDeclarationNode function, Profile profile, int increment)
+    {
+        if (profile.submitted || (profile.count += increment) < threshold)
+            return;
+
+        profile.submitted = true;
+        if (!eligible(function))
+            return;
+
+        Set<FunDeclarationNode> functions = new LinkedHashSet<>();
+        callees(function, functions);
+
+        if (!uniqueNames(functions))
+            return;
+
+        FrozenAttributes attributes = this.attributes;
+        executor.execute(() -> compile(function, functions, profile, attributes));
+    }
+
+    private void submitLoop (WhileNode loop, Profile profile)
+    {
+        if (!eligibleStatement(loop, 0, new HashSet<>()))
+            return;
+
+        Set<FunDeclarationNode> functions = new LinkedHashSet<>();
+        collectCallees(loop, functions);
+        if (!uniqueNames(functions))
+            return;
+
+        // Variables declared outside the loop must be transferred to and from the compiled code.
+        Set<VarDeclarationNode> live = new LinkedHashSet<>();
+        Set<VarDeclarationNode> declared = new HashSet<>();
+        collectVariables(loop, live, declared);
+        live.removeAll(declared);
+        profile.live = new ArrayList<>(live);
+
+        FrozenAttributes attributes = this.attributes;
+        executor.execute(() ->
+            compileLoop(loop, profile.live, functions, profile, attributes));
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Compilation]
+    // =============================================================================================
+
+    /**
+     * Compiles the function (along with its callees, in {@code functions}) and stores a handle to
+     * it in its profile. This runs on the executor, so the state it needs is passed by the
+     * interpreter thread, except for the fields guarded by this object.
+     */
+    private void compile (FunDeclarationNode function, Set<FunDeclarationNode> functions,
+            Profile profile, FrozenAttributes attributes)
+    {
+        MethodHandle handle;
+        try {
+            String className = "SighTiered$" + classCounter.incrementAndGet();
+            CompilationResult result = new BytecodeCompiler(reactor, attributes)
+                .compileFunctions(className, functions);
+            // A new loader per class lets the class be collected with the interpreter.
+            Class<?> klass = result.load(new ByteArrayClassLoader());
+            register(klass);
+            handle = adapt(function, klass);
+        } catch (Throwable t) {
+            // Should not happen for eligible functions: keep interpreting.
+            return;
+        }
+
+        profile.compiled = handle;
+        synchronized (this) {
+            compiledFunctions.add(function.name);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the loop and stores a handle to it in its profile, see {@link #compile}.
+     */
+    private void compileLoop (WhileNode loop, List<VarDeclarationNode> live,
+            Set<FunDeclarationNode> functions, Profile profile, FrozenAttributes attributes)
+    {
+        MethodHandle handle;
+        try {
+            String className = "SighTiered$" + classCounter.incrementAndGet();
+            CompilationResult result = new BytecodeCompiler(reactor, attributes)
+                .compileLoop(className, loop, live, functions);
+            Class<?> klass = result.load(new ByteArrayClassLoader());
+            register(klass);
+            handle = MethodHandles.lookup()
+                .findStatic(klass, "loop", MethodType.methodType(void.class, long[].class, Object[].class));
+        } catch (Throwable t) {
+            // Should not happen for eligible loops: keep interpreting.
+            return;
+        }
+
+        profile.compiled = handle;
+        synchronized (this) {
+            ++compiledLoops;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records a compiled class, and sends its output to the sink of the current execution.
+     */
+    private synchronized void register (Class<?> klass) {
+        compiledClasses.add(klass);
+        CompilationResult.setOutput(klass, output);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the compiled version of a loop on the given frame, converting the representation of
+     * {@code null} strings for the live variables.
+     */
+    private void runLoop (MethodHandle compiled, Frame frame, List<VarDeclarationNode> live)
+    {
+        for (VarDeclarationNode variable: live)
+            if (attributes.type(variable) instanceof StringType
+                    && frame.objects[slot(variable)] == Null.INSTANCE)
+                frame.objects[slot(variable)] = null;
+        try {
+            compiled.invokeExact(frame.primitives, frame.objects);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        } finally {
+            for (VarDeclarationNode variable: live)
+                if (attributes.type(variable) instanceof StringType
+                        && frame.objects[slot(variable)] == null)
+                    frame.objects[slot(variable)] = Null.INSTANCE;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int slot (VarDeclarationNode variable) {
+        return attributes.slot(variable);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final MethodHandle TO_INTERPRETER;
+    private static final MethodHandle FROM_INTERPRETER_STRING;
+    private static final MethodHandle FROM_INTERPRETER_DOUBLE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TO_INTERPRETER = lookup.unreflect(
+                TieredCompilation.class.getDeclaredMethod("toInterpreter", Object.class));
+            FROM_INTERPRETER_STRING = lookup.unreflect(
+                TieredCompilation.class.getDeclaredMethod("fromInterpreterString", Object.class));
+            FROM_INTERPRETER_DOUBLE = lookup.unreflect(
+                TieredCompilation.class.getDeclaredMethod("fromInterpreterDouble", Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static Object toInterpreter (Object value) {
+        return value == null ? Null.INSTANCE : value;
+    }
+
+    private static String fromInterpreterString (Object value) {
+        return value == Null.INSTANCE ? null : (String) value;
+    }
+
+    private static double fromInterpreterDouble (Object value) {
+        // Int values can be passed for Float parameters.
+        return ((Number) value).doubleValue();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adapts the static method for the function to a handle taking an {@code Object[]} of
+     * arguments and returning an {@code Object}, performing the conversion between the
+     * interpreter and the bytecode representations.
+     */
+    private MethodHandle adapt (FunDeclarationNode function, Class<?> klass) throws Exception
+    {
+        Method method = null;
+        for (Method it: klass.getMethods())
+            if (it.getName().equals(function.name)) method = it;
+
+        MethodHandle handle = MethodHandles.lookup().unreflect(method);
+        Class<?>[] params = method.getParameterTypes();
+
+        for (int i = 0; i < params.length; ++i) {
+            if (params[i] == String.class)
+                handle = MethodHandles.filterArguments(handle, i, FROM_INTERPRETER_STRING);
+            else if (params[i] == double.class)
+                handle = MethodHandles.filterArguments(handle, i, FROM_INTERPRETER_DOUBLE);
+        }
+
+        if (method.getReturnType() == String.class)
+            handle = MethodHandles.filterReturnValue(handle,
+                TO_INTERPRETER.asType(TO_INTERPRETER.type().changeParameterType(0, String.class)));
+
+        return handle
+            .asType(handle.type().generic())
+            .asSpreader(Object[].class, params.length);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls the compiled version of a function, obtained from {@link #enter}.
+     */
+    static Object invoke (MethodHandle compiled, Object[] args)
+    {
+        try {
+            return (Object) compiled.invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Eligibility]
+    // =============================================================================================
+
+    private boolean eligible (FunDeclarationNode function) {
+        return eligible(function, new HashSet<>());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Determines if the function is eligible for compilation. Assumes that the functions in {@code
+     * visiting} are (otherwise the recursion would not terminate).
+     */
+    private boolean eligible (FunDeclarationNode function, Set<FunDeclarationNode> visiting)
+    {
+        Profile profile = profile(function);
+        if (profile.eligible != null)
+            return profile.eligible;
+        if (!visiting.add(function))
+            return true;
+
+        FunType type = attributes.type(function);
+        boolean eligible = allowedType(type.returnType)
+            && function.parameters.stream().allMatch(it -> allowedType(attributes.type(it)))
+            && eligibleStatement(function.block, attributes.depth(function), visiting);
+
+        // Results assuming other functions are eligible are only final at the top.
+        if (!eligible || visiting.size() == 1)
+            profile.eligible = eligible;
+        visiting.remove(function);
+        return eligible;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean allowedType (Type type) {
+        return type instanceof IntType
+            || type instanceof FloatType
+            || type instanceof BoolType
+            || type instanceof StringType
+            || type instanceof VoidType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean eligibleStatement (StatementNode node, int depth, Set<FunDeclarationNode> visiting)
+    {
+        if (node instanceof BlockNode)
+            return ((BlockNode) node).statements.stream()
+                .allMatch(it -> eligibleStatement(it, depth, visiting));
+
+        if (node instanceof VarDeclarationNode)
+            return allowedType(attributes.type(node))
+                && eligibleExpression(((VarDeclarationNode) node).initializer, depth, visiting);
+
+        if (node instanceof ExpressionStatementNode)
+            return eligibleExpression(((ExpressionStatementNode) node).expression, depth, visiting);
+
+        if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            return eligibleExpression(ifNode.condition, depth, visiting)
+                && eligibleStatement(ifNode.trueStatement, depth, visiting)
+                && (ifNode.falseStatement == null
+                    || eligibleStatement(ifNode.falseStatement, depth, visiting));
+        }
+
+        if (node instanceof WhileNode)
+            return eligibleExpression(((WhileNode) node).condition, depth, visiting)
+                && eligibleStatement(((WhileNode) node).body, depth, visiting);
+
+        // Returning from top-level code (compiled as part of a loop) exits the program.
+        if (node instanceof ReturnNode) {
+            ExpressionNode expression = ((ReturnNode) node).expression;
+            return depth > 0
+                && (expression == null || eligibleExpression(expression, depth, visiting));
+        }
+
+        // nested function & structure declarations
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean eligibleExpression (ExpressionNode node, int depth, Set<FunDeclarationNode> visiting)
+    {
+        if (!allowedType(attributes.type(node)))
+            return false;
+
+        if (node instanceof IntLiteralNode
+                || node instanceof FloatLiteralNode
+                || node instanceof StringLiteralNode)
+            return true;
+
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node);
+            if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode)
+                return attributes.depth(decl) == depth;
+            return decl == rootScope._true || decl == rootScope._false;
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return eligibleExpression(((ParenthesizedNode) node).expression, depth, visiting);
+
+        if (node instanceof UnaryExpressionNode)
+            return eligibleExpression(((UnaryExpressionNode) node).operand, depth, visiting);
+
+        if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            // Strings are compared by reference, but literals are interned in bytecode.
+            if ((binary.operator == BinaryOperator.EQUALITY
+                    || binary.operator == BinaryOperator.NOT_EQUALS)
+                    && attributes.type(binary.left) instanceof StringType)
+                return false;
+            return eligibleExpression(binary.left, depth, visiting)
+                && eligibleExpression(binary.right, depth, visiting);
+        }
+
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assignment = (AssignmentNode) node;
+            return assignment.left instanceof ReferenceNode
+                && eligibleExpression(assignment.left, depth, visiting)
+                && eligibleExpression(assignment.right, depth, visiting);
+        }
+
+        if (node instanceof FunCallNode) {
+            FunCallNode call = (FunCallNode) node;
+            if (!(call.function instanceof ReferenceNode))
+                return false;
+            DeclarationNode decl = attributes.decl(call.function);
+            boolean callee = decl == rootScope.print
+                || decl instanceof FunDeclarationNode
+                    && eligible((FunDeclarationNode) decl, visiting);
+            return callee && call.arguments.stream()
+                .allMatch(it -> eligibleExpression(it, depth, visiting));
+        }
+
+        // arrays, structures, null, function values
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns true if all the functions have different names, as compiled functions become static
+     * methods named after the function.
+     */
+    private static boolean uniqueNames (Set<FunDeclarationNode> functions) {
+        Set<String> names = new HashSet<>();
+        for (FunDeclarationNode it: functions)
+            if (!names.add(it.name)) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Collects the variables referenced in ({@code used}) and declared in ({@code declared}) the
+     * given statement or expression.
+     */
+    private void collectVariables (SighNode node, Set<VarDeclarationNode> used,
+            Set<VarDeclarationNode> declared)
+    {
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node);
+            if (decl instanceof VarDeclarationNode)
+                used.add((VarDeclarationNode) decl);
+        }
+        else if (node instanceof VarDeclarationNode) {
+            declared.add((VarDeclarationNode) node);
+            collectVariables(((VarDeclarationNode) node).initializer, used, declared);
+        }
+        else if (node instanceof FunCallNode)
+            // the callee must be a function, whose variables are not needed
+            ((FunCallNode) node).arguments.forEach(it -> collectVariables(it, used, declared));
+        else if (node instanceof BlockNode)
+            ((BlockNode) node).statements.forEach(it -> collectVariables(it, used, declared));
+        else if (node instanceof ExpressionStatementNode)
+            collectVariables(((ExpressionStatementNode) node).expression, used, declared);
+        else if (node instanceof IfNode) {
+            collectVariables(((IfNode) node).condition, used, declared);
+            collectVariables(((IfNode) node).trueStatement, used, declared);
+            collectVariables(((IfNode) node).falseStatement, used, declared);
+        }
+        else if (node instanceof WhileNode) {
+            collectVariables(((WhileNode) node).condition, used, declared);
+            collectVariables(((WhileNode) node).body, used, declared);
+        }
+        else if (node instanceof ParenthesizedNode)
+            collectVariables(((ParenthesizedNode) node).expression, used, declared);
+        else if (node instanceof UnaryExpressionNode)
+            collectVariables(((UnaryExpressionNode) node).operand, used, declared);
+        else if (node instanceof BinaryExpressionNode) {
+            collectVariables(((BinaryExpressionNode) node).left, used, declared);
+            collectVariables(((BinaryExpressionNode) node).right, used, declared);
+        }
+        else if (node instanceof AssignmentNode) {
+            collectVariables(((AssignmentNode) node).left, used, declared);
+            collectVariables(((AssignmentNode) node).right, used, declared);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Collects the function and all functions it (transitively) calls.
+     */
+    private void callees (FunDeclarationNode function, Set<FunDeclarationNode> out)
+    {
+        if (!out.add(function)) return;
+        collectCallees(function.block, out);
+    }
+
+    private void collectCallees (SighNode node, Set<FunDeclarationNode> out)
+    {
+        if (node instanceof FunCallNode) {
+            FunCallNode call = (FunCallNode) node;
+            DeclarationNode decl = attributes.decl(call.function);
+            if (decl instanceof FunDeclarationNode)
+                callees((FunDeclarationNode) decl, out);
+            call.arguments.forEach(it -> collectCallees(it, out));
+        }
+        else if (node instanceof BlockNode)
+            ((BlockNode) node).statements.forEach(it -> collectCallees(it, out));
+        else if (node instanceof VarDeclarationNode)
+            collectCallees(((VarDeclarationNode) node).initializer, out);
+        else if (node instanceof ExpressionStatementNode)
+            collectCallees(((ExpressionStatementNode) node).expression, out);
+        else if (node instanceof IfNode) {
+            collectCallees(((IfNode) node).condition, out);
+            collectCallees(((IfNode) node).trueStatement, out);
+            collectCallees(((IfNode) node).falseStatement, out);
+        }
+        else if (node instanceof WhileNode) {
+            collectCallees(((WhileNode) node).condition, out);
+            collectCallees(((WhileNode) node).body, out);
+        }
+        else if (node instanceof ReturnNode)
+            collectCallees(((ReturnNode) node).expression, out);
+        else if (node instanceof ParenthesizedNode)
+            collectCallees(((ParenthesizedNode) node).expression, out);
+        else if (node instanceof UnaryExpressionNode)
+            collectCallees(((UnaryExpressionNode) node).operand, out);
+        else if (node instanceof BinaryExpressionNode) {
+            collectCallees(((BinaryExpressionNode) node).left, out);
+            collectCallees(((BinaryExpressionNode) node).right, out);
+        }
+        else if (node instanceof AssignmentNode)
+            collectCallees(((AssignmentNode) node).right, out);
+    }
+
+    // endregion
+    // =============================================================================================
+}
@@ -0,0 +1,610 @@
+package norswap.sigh.optimizer;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.Scope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * Avoids evaluating the same expressions repeatedly, by storing their value in new variables:
+ *
+ * <ul>
+ *     <li>Loop-invariant code motion: the expressions of a {@code while} loop (condition and body)
+ *     whose value can't change during the loop are evaluated once, before the loop.</li>
+ *     <li>Common subexpression elimination: the expressions that occur several times in a
+ *     statement are evaluated once, before the statement.</li>
+ * </ul>
+ *
+ * <p>For instance, {@code while i < a.length { i = i + 1 }} becomes {@code var hoisted$1: Int =
+ * a.length while i < hoisted$1 { i = i + 1 }}.
+ *
+ * <p>Only expressions without side effects are moved: no calls, assignments or allocations
+ * (including string concatenations, as strings are compared by identity). Their type must be
+ * {@code Int}, {@code Float}, {@code Bool} or an array of these.
+ *
+ * <p>An expression is invariant in a loop if the variables it reads are declared outside the loop
+ * and aren't assigned in the loop (nor in a function, if the loop contains calls), and if the
+ * memory it reads can't be written in the loop, even through an alias. Since any two references
+ * may alias, a field access is only invariant if the loop doesn't write a field of the same name,
+ * and an array access if the loop doesn't write any array element. Neither is invariant if the
+ * loop calls a function. Array lengths never change, so {@code a.length} is invariant whenever
+ * {@code a} is.
+ *
+ * <p>Moving an expression may not change which exceptions are thrown. An expression that may throw
+ * (e.g. an array access or an integer division) is only moved if an identical expression is
+ * always evaluated, before anything that could have a side effect or throw, by the loop condition
+ * (for loops) or by the statement (for statements).
+ *
+ * <p>The new names contain {@code $}, which can't occur in identifiers, and are distinct from the
+ * names declared in the program. If the program declares anything under the names {@code Int},
+ * {@code Float} or {@code Bool}, the tree is left unchanged.
+ */
+final class CodeMotion extends Rewriter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Names used by the new declarations, which the program must not redeclare. */
+    private static final List<String> RESERVED = Arrays.asList("Int", "Float", "Bool");
+
+    // ---------------------------------------------------------------------------------------------
+
+    // Identity maps, as nodes implement structural equality.
+
+    /** Maps the expressions to replace to the variable holding their value. */
+    private final IdentityHashMap<ExpressionNode, String> replaced = new IdentityHashMap<>();
+
+    /** Variables that are assigned in a function other than the one that declares them. */
+    private final Set<DeclarationNode> captured =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Names declared in the program. */
+    private final Set<String> names = new HashSet<>();
+
+    /** Counter used to make new names unique. */
+    private int counter = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    CodeMotion (Reactor reactor) {
+        super(reactor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the version of the tree rooted at {@code root} where invariant and common
+     * subexpressions are evaluated once.
+     */
+    RootNode optimize (RootNode root)
+    {
+        ArrayDeque<FunDeclarationNode> stack = new ArrayDeque<>();
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT, POST_VISIT);
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.registerFallback(PRE_VISIT, node -> {
+            if (node instanceof DeclarationNode)
+                names.add(((DeclarationNode) node).name());
+            if (!(node instanceof AssignmentNode)) return;
+            ExpressionNode left = ((AssignmentNode) node).left;
+            if (left instanceof ReferenceNode) {
+                DeclarationNode decl = attributes.decl(left);
+                if (function(decl) != stack.peek())
+                    captured.add(decl);
+            }
+        });
+        walker.register(FunDeclarationNode.class, PRE_VISIT, node -> {
+            names.add(node.name);
+            stack.push(node);
+        });
+        walker.register(FunDeclarationNode.class, POST_VISIT, node -> stack.pop());
+        walker.walk(root);
+
+        for (String name: RESERVED)
+            if (names.contains(name)) return root;
+
+        return rewrite(root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the function that declares the variable, or null for a top-level variable.
+     */
+    private FunDeclarationNode function (DeclarationNode decl)
+    {
+        for (Scope scope = attributes.scope(decl); scope != null; scope = scope.parent)
+            if (scope.node instanceof FunDeclarationNode)
+                return (FunDeclarationNode) scope.node;
+        return null;
+    }
+
+    // =============================================================================================
+    // region [Expressions]
+    // =============================================================================================
+
+    /**
+     * Returns the subexpressions of the expression, in evaluation order.
+     */
+    private static List<ExpressionNode> children (ExpressionNode node)
+    {
+        if (node instanceof ParenthesizedNode)
+            return Collections.singletonList(((ParenthesizedNode) node).expression);
+        if (node instanceof UnaryExpressionNode)
+            return Collections.singletonList(((UnaryExpressionNode) node).operand);
+        if (node instanceof FieldAccessNode)
+            return Collections.singletonList(((FieldAccessNode) node).stem);
+        if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            return Arrays.asList(binary.left, binary.right);
+        }
+        if (node instanceof ArrayAccessNode) {
+            ArrayAccessNode access = (ArrayAccessNode) node;
+            return Arrays.asList(access.array, access.index);
+        }
+        if (node instanceof FunCallNode) {
+            FunCallNode call = (FunCallNode) node;
+            List<ExpressionNode> children = new ArrayList<>();
+            children.add(call.function);
+            children.addAll(call.arguments);
+            return children;
+        }
+        if (node instanceof ArrayLiteralNode)
+            return ((ArrayLiteralNode) node).components;
+        if (node instanceof AssignmentNode)
+            return reads((AssignmentNode) node);
+        return Collections.emptyList(); // literals, references, constructors
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the expressions read by the assignment: the subexpressions of its left side, and
+     * its right side.
+     */
+    private static List<ExpressionNode> reads (AssignmentNode node)
+    {
+        List<ExpressionNode> reads = new ArrayList<>();
+        if (!(node.left instanceof ReferenceNode))
+            reads.addAll(children(node.left));
+        reads.add(node.right);
+        return reads;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether evaluating the expression has no side effect (it may still throw).
+     */
+    private boolean pure (ExpressionNode node)
+    {
+        if (replaced.containsKey(node)
+                || node instanceof IntLiteralNode || node instanceof FloatLiteralNode
+                || node instanceof StringLiteralNode || node instanceof ReferenceNode)
+            return true;
+        if (node instanceof BinaryExpressionNode && attributes.type(node) instanceof StringType)
+            return false; // allocates a new string
+        if (node instanceof ParenthesizedNode || node instanceof UnaryExpressionNode
+                || node instanceof BinaryExpressionNode || node instanceof FieldAccessNode
+                || node instanceof ArrayAccessNode)
+            return children(node).stream().allMatch(this::pure);
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether evaluating the expression (which must be pure) can't throw.
+     */
+    private boolean safe (ExpressionNode node)
+    {
+        if (node instanceof BinaryExpressionNode && !safe((BinaryExpressionNode) node))
+            return false;
+        if (node instanceof ParenthesizedNode || node instanceof UnaryExpressionNode
+                || node instanceof BinaryExpressionNode)
+            return children(node).stream().allMatch(this::safe);
+        // field and array accesses may fail on null or out of bounds
+        return replaced.containsKey(node) || node instanceof IntLiteralNode
+            || node instanceof FloatLiteralNode || node instanceof StringLiteralNode
+            || node instanceof ReferenceNode;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the operator can't throw (only integer division and remainder can).
+     */
+    private boolean safe (BinaryExpressionNode node) {
+        return node.operator != BinaryOperator.DIVIDE && node.operator != BinaryOperator.REMAINDER
+            || !(attributes.type(node) instanceof IntType);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the expression can be stored in a new variable: it must be pure, not trivial
+     * (a literal or reference), of a type that can be declared, and not already replaced.
+     */
+    private boolean candidate (ExpressionNode node)
+    {
+        ExpressionNode inner = node;
+        while (inner instanceof ParenthesizedNode)
+            inner = ((ParenthesizedNode) inner).expression;
+        if (inner instanceof ReferenceNode || children(inner).isEmpty())
+            return false;
+        return !replaced.containsKey(node)
+            && pure(node)
+            && typeNode(node, attributes.type(node)) != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a type node for the type, or null if it can't be declared by this pass.
+     */
+    private static TypeNode typeNode (SighNode node, Type type)
+    {
+        if (type instanceof IntType || type instanceof FloatType || type instanceof BoolType)
+            return new SimpleTypeNode(node.span, type.name());
+        if (type instanceof ArrayType) {
+            TypeNode component = typeNode(node, ((ArrayType) type).componentType);
+            return component == null ? null : new ArrayTypeNode(node.span, component);
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the expressions are identical: same structure, and references that resolve to the
+     * same declarations.
+     */
+    private boolean same (ExpressionNode a, ExpressionNode b)
+    {
+        if (!a.equals(b)) return false;
+        if (a instanceof ReferenceNode)
+            return attributes.decl(a) == attributes.decl(b);
+        List<ExpressionNode> as = children(a), bs = children(b);
+        for (int i = 0; i < as.size(); ++i)
+            if (!same(as.get(i), bs.get(i))) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean containsSame (List<ExpressionNode> nodes, ExpressionNode node) {
+        return nodes.stream().anyMatch(it -> same(it, node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds to {@code out} the candidate expressions that are always evaluated when {@code node} is,
+     * before anything that could have a side effect or throw, assuming that what is evaluated
+     * before {@code node} can't if {@code clean} is true. Returns whether this is still true after
+     * evaluating {@code node}.
+     */
+    private boolean definite (ExpressionNode node, boolean clean,
+            Predicate<ExpressionNode> candidate, List<ExpressionNode> out)
+    {
+        if (replaced.containsKey(node))
+            return clean;
+        if (clean && candidate.test(node))
+            out.add(node);
+
+        if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            boolean left = definite(binary.left, clean, candidate, out);
+            if (binary.operator == BinaryOperator.AND || binary.operator == BinaryOperator.OR)
+                // the right operand is not always evaluated
+                return left && pure(binary.right) && safe(binary.right);
+            return definite(binary.right, left, candidate, out) && safe(binary) && pure(node);
+        }
+
+        if (node instanceof ParenthesizedNode || node instanceof UnaryExpressionNode
+                || node instanceof FieldAccessNode || node instanceof ArrayAccessNode) {
+            for (ExpressionNode child: children(node))
+                clean = definite(child, clean, candidate, out);
+            return clean && safe(node);
+        }
+
+        return clean && (node instanceof IntLiteralNode || node instanceof FloatLiteralNode
+            || node instanceof StringLiteralNode || node instanceof ReferenceNode);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds to {@code out} the outermost candidate expressions of {@code node} that satisfy the
+     * predicate, in pre-order.
+     */
+    private void select (ExpressionNode node, Predicate<ExpressionNode> ok,
+            List<ExpressionNode> out)
+    {
+        if (replaced.containsKey(node))
+            return;
+        if (candidate(node) && ok.test(node))
+            out.add(node);
+        else
+            for (ExpressionNode child: children(node))
+                select(child, ok, out);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Declares a new variable for each group of identical expressions in {@code selected}, which
+     * is initialized with the first expression of the group, and replaces the expressions of the
+     * group by a reference to the variable. Groups of less than {@code minSize} expressions are
+     * ignored. Returns the declarations.
+     */
+    private List<StatementNode> replace (List<ExpressionNode> selected, String prefix, int minSize)
+    {
+        List<List<ExpressionNode>> groups = new ArrayList<>();
+        outer: for (ExpressionNode node: selected) {
+            for (List<ExpressionNode> group: groups)
+                if (same(group.get(0), node)) {
+                    group.add(node);
+                    continue outer;
+                }
+            groups.add(new ArrayList<>(Collections.singletonList(node)));
+        }
+
+        List<StatementNode> declarations = new ArrayList<>();
+        for (List<ExpressionNode> group: groups) {
+            if (group.size() < minSize) continue;
+            ExpressionNode first = group.get(0);
+            String name;
+            do name = prefix + "$" + ++counter; while (names.contains(name));
+            declarations.add(new VarDeclarationNode(first.span, name,
+                typeNode(first, attributes.type(first)), rewrite(first)));
+            for (ExpressionNode node: group)
+                replaced.put(node, name);
+        }
+        return declarations;
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Loops]
+    // =============================================================================================
+
+    /**
+     * What a loop may modify.
+     */
+    private final class Loop
+    {
+        final Set<DeclarationNode> declared = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<DeclarationNode> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<String> fields = new HashSet<>();
+        boolean elements = false;
+        boolean calls = false;
+
+        Loop (WhileNode node)
+        {
+            ReflectiveFieldWalker<SighNode> walker =
+                new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+            walker.registerFallback(PRE_VISIT, it -> {});
+            walker.register(VarDeclarationNode.class, PRE_VISIT, declared::add);
+            walker.register(ParameterNode.class, PRE_VISIT, declared::add);
+            walker.register(AssignmentNode.class, PRE_VISIT, it -> {
+                if (it.left instanceof ReferenceNode)
+                    assigned.add(attributes.decl(it.left));
+                else if (it.left instanceof FieldAccessNode)
+                    fields.add(((FieldAccessNode) it.left).fieldName);
+                else
+                    elements = true;
+            });
+            walker.register(FunCallNode.class, PRE_VISIT, it -> {
+                // constructors and built-in functions (print) don't modify variables or memory
+                if (!(it.function instanceof ConstructorNode || it.function instanceof ReferenceNode
+                        && attributes.decl(it.function) instanceof SyntheticDeclarationNode))
+                    calls = true;
+            });
+            walker.walk(node);
+        }
+
+        /**
+         * Whether the value of the (pure) expression can't change during the loop.
+         */
+        boolean invariant (ExpressionNode node)
+        {
+            if (replaced.containsKey(node))
+                return true; // declared before the loop, never assigned
+            if (node instanceof ReferenceNode) {
+                DeclarationNode decl = attributes.decl(node);
+                if (decl instanceof SyntheticDeclarationNode)
+                    return true; // true, false, null
+                return (decl instanceof VarDeclarationNode || decl instanceof ParameterNode)
+                    && !declared.contains(decl)
+                    && !assigned.contains(decl)
+                    && !(calls && captured.contains(decl));
+            }
+            if (node instanceof FieldAccessNode) {
+                FieldAccessNode access = (FieldAccessNode) node;
+                boolean length = attributes.type(access.stem) instanceof ArrayType;
+                if (!length && (calls || fields.contains(access.fieldName)))
+                    return false;
+            }
+            if (node instanceof ArrayAccessNode && (calls || elements))
+                return false;
+            return children(node).stream().allMatch(this::invariant);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the expressions read by the statement to {@code out}, including those in nested
+     * statements but not in nested declarations of functions and structures.
+     */
+    private static void reads (StatementNode node, List<ExpressionNode> out)
+    {
+        if (node instanceof ExpressionStatementNode) {
+            ExpressionNode expression = ((ExpressionStatementNode) node).expression;
+            if (expression instanceof AssignmentNode)
+                out.addAll(reads((AssignmentNode) expression));
+            else
+                out.add(expression);
+        }
+        else if (node instanceof VarDeclarationNode)
+            out.add(((VarDeclarationNode) node).initializer);
+        else if (node instanceof ReturnNode) {
+            ExpressionNode expression = ((ReturnNode) node).expression;
+            if (expression != null) out.add(expression);
+        }
+        else if (node instanceof BlockNode)
+            for (StatementNode statement: ((BlockNode) node).statements)
+                reads(statement, out);
+        else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            out.add(ifNode.condition);
+            reads(ifNode.trueStatement, out);
+            if (ifNode.falseStatement != null)
+                reads(ifNode.falseStatement, out);
+        }
+        else if (node instanceof WhileNode) {
+            out.add(((WhileNode) node).condition);
+            reads(((WhileNode) node).body, out);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Declares variables for the invariant expressions of the loop, before the loop.
+     */
+    private List<StatementNode> hoist (WhileNode node)
+    {
+        Loop loop = new Loop(node);
+        Predicate<ExpressionNode> invariant = it -> candidate(it) && loop.invariant(it);
+
+        List<ExpressionNode> definite = new ArrayList<>();
+        definite(node.condition, true, invariant, definite);
+
+        List<ExpressionNode> reads = new ArrayList<>();
+        reads(node, reads);
+        List<ExpressionNode> selected = new ArrayList<>();
+        for (ExpressionNode read: reads)
+            select(read, it -> loop.invariant(it) && (safe(it) || containsSame(definite, it)),
+                selected);
+
+        return replace(selected, "hoisted", 1);
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Statements]
+    // =============================================================================================
+
+    /**
+     * Declares variables for the expressions that are evaluated several times by the statement
+     * (excluding nested statements), before the statement.
+     */
+    private List<StatementNode> eliminate (StatementNode node)
+    {
+        List<ExpressionNode> reads = new ArrayList<>();
+        boolean lvalue = false; // can the evaluation of an lvalue fail before the right side?
+        if (node instanceof IfNode)
+            reads.add(((IfNode) node).condition);
+        else if (node instanceof ExpressionStatementNode
+                && ((ExpressionStatementNode) node).expression instanceof AssignmentNode) {
+            AssignmentNode assignment =
+                (AssignmentNode) ((ExpressionStatementNode) node).expression;
+            reads.addAll(reads(assignment));
+            lvalue = !(assignment.left instanceof ReferenceNode);
+        }
+        else if (node instanceof ExpressionStatementNode || node instanceof VarDeclarationNode
+                || node instanceof ReturnNode)
+            reads(node, reads);
+
+        // all reads must be pure for the values to remain the same
+        if (reads.isEmpty() || !reads.stream().allMatch(this::pure))
+            return Collections.emptyList();
+
+        List<ExpressionNode> candidates = new ArrayList<>();
+        for (ExpressionNode read: reads)
+            collect(read, candidates);
+
+        List<ExpressionNode> definite = new ArrayList<>();
+        boolean clean = true;
+        for (int i = 0; i < reads.size(); ++i) {
+            // the lvalue access follows its subexpressions and precedes the right side
+            if (lvalue && i == reads.size() - 1) clean = false;
+            clean = definite(reads.get(i), clean, this::candidate, definite);
+        }
+
+        List<ExpressionNode> selected = new ArrayList<>();
+        for (ExpressionNode read: reads)
+            select(read, it -> candidates.stream().filter(c -> same(c, it)).count() > 1
+                    && (safe(it) || containsSame(definite, it)),
+                selected);
+
+        return replace(selected, "common", 2);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds all the candidate expressions of {@code node} to {@code out}.
+     */
+    private void collect (ExpressionNode node, List<ExpressionNode> out)
+    {
+        if (replaced.containsKey(node)) return;
+        if (candidate(node)) out.add(node);
+        for (ExpressionNode child: children(node))
+            collect(child, out);
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Rewrites]
+    // =============================================================================================
+
+    @Override protected <T extends SighNode> T rewrite (SighNode node)
+    {
+        String name = replaced.get(node);
+        if (name == null)
+            return super.rewrite(node);
+        @SuppressWarnings("unchecked")
+        T reference = (T) new ReferenceNode(node.span, name);
+        return reference;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected List<StatementNode> expand (StatementNode node)
+    {
+        List<StatementNode> declarations = node instanceof WhileNode
+            ? hoist((WhileNode) node)
+            : eliminate(node);
+
+        if (declarations.isEmpty())
+            return super.expand(node);
+
+        List<StatementNode> statements = new ArrayList<>(declarations);
+        statements.addAll(super.expand(node));
+        return statements;
+    }
+
+    // endregion
+    // =============================================================================================
+}
@@ -0,0 +1,340 @@
+package norswap.sigh.optimizer;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * Simplifies the tree using the values that are known at compile time:
+ *
+ * <ul>
+ *     <li>Arithmetic, comparisons and logical operators whose operands are literals are folded
+ *     into a literal. Short-circuiting operators with a literal left operand are simplified.
+ *     Integer divisions by zero are left as is, to fail at run time.</li>
+ *     <li>References to variables that are never assigned after their declaration, and whose
+ *     initializer folds to a literal, are replaced by that literal (constant propagation).</li>
+ *     <li>{@code if} statements whose condition folds to a literal are replaced by the branch
+ *     that is taken, and {@code while} loops whose condition is false are removed.</li>
+ *     <li>The statements that follow a statement that always returns (as per the {@code returns}
+ *     attribute) in a block are removed, except for declarations, as functions and structures can
+ *     be used before their declaration.</li>
+ * </ul>
+ *
+ * <p>Strings are compared by identity in Sigh, so comparisons between strings are not folded, and
+ * neither are string concatenations: each concatenation yields a new string at run time, while a
+ * folded one would be a literal, which the compiled code interns.
+ *
+ * <p>Boolean literals are represented by references to {@code true} and {@code false}, which are
+ * not reserved words. If the program declares anything under these names, boolean values are not
+ * folded.
+ */
+final class ConstantFolding extends Rewriter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    // Identity maps, as nodes implement structural equality.
+
+    /** Variables that are assigned after their declaration. */
+    private final Set<DeclarationNode> assigned =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Maps the variables known to hold a constant to this constant. */
+    private final IdentityHashMap<VarDeclarationNode, Object> constants = new IdentityHashMap<>();
+
+    /** Maps the {@code if} statements whose condition is constant to the statement taken. */
+    private final IdentityHashMap<IfNode, StatementNode> taken = new IdentityHashMap<>();
+
+    /** Whether {@code true} and {@code false} are references to the built-in booleans. */
+    private boolean booleans = true;
+
+    // ---------------------------------------------------------------------------------------------
+
+    ConstantFolding (Reactor reactor) {
+        super(reactor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the simplified version of the tree rooted at {@code root}.
+     */
+    RootNode optimize (RootNode root)
+    {
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, node -> {
+            if (node instanceof DeclarationNode) {
+                String name = ((DeclarationNode) node).name();
+                if (name.equals("true") || name.equals("false"))
+                    booleans = false;
+            }
+            else if (node instanceof AssignmentNode) {
+                ExpressionNode left = ((AssignmentNode) node).left;
+                if (left instanceof ReferenceNode)
+                    assigned.add(attributes.decl(left));
+            }
+        });
+        walker.walk(root);
+        return rewrite(root);
+    }
+
+    // =============================================================================================
+    // region [Constants]
+    // =============================================================================================
+
+    /**
+     * Returns the value of the expression if it is a literal (a {@link Long}, {@link Double},
+     * {@link String} or {@link Boolean}), or null otherwise. Must be called on rewritten nodes.
+     */
+    private Object constant (ExpressionNode node)
+    {
+        if (node instanceof IntLiteralNode)
+            return ((IntLiteralNode) node).value;
+        if (node instanceof FloatLiteralNode)
+            return ((FloatLiteralNode) node).value;
+        if (node instanceof StringLiteralNode)
+            return ((StringLiteralNode) node).value;
+        if (booleans && node instanceof ReferenceNode) {
+            String name = ((ReferenceNode) node).name;
+            if (name.equals("true"))  return true;
+            if (name.equals("false")) return false;
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a literal for the value, converted to the given type (an {@code Int} value of type
+     * {@code Float} yields a {@code Float} literal), or null if there is no literal for it.
+     */
+    private ExpressionNode literal (SighNode node, Object value, Type type)
+    {
+        if (type instanceof FloatType && value instanceof Number)
+            return new FloatLiteralNode(node.span, ((Number) value).doubleValue());
+        if (value instanceof Long)
+            return new IntLiteralNode(node.span, (long) value);
+        if (value instanceof Double)
+            return new FloatLiteralNode(node.span, (double) value);
+        if (value instanceof String)
+            return new StringLiteralNode(node.span, value);
+        if (value instanceof Boolean && booleans)
+            return new ReferenceNode(node.span, value.toString());
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a literal for the value of the node's type, or {@code fallback} if there is no
+     * literal for it.
+     */
+    private ExpressionNode literal (ExpressionNode node, Object value, ExpressionNode fallback) {
+        ExpressionNode literal = value == null ? null : literal(node, value, attributes.type(node));
+        return literal != null ? literal : fallback;
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Expressions]
+    // =============================================================================================
+
+    @Override protected SighNode reference (ReferenceNode node)
+    {
+        DeclarationNode decl = attributes.decl(node);
+        Object value = decl instanceof VarDeclarationNode ? constants.get(decl) : null;
+        return literal(node, value, (ExpressionNode) super.reference(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode parenthesized (ParenthesizedNode node)
+    {
+        ExpressionNode expression = rewrite(node.expression);
+        return constant(expression) != null
+            ? expression
+            : new ParenthesizedNode(node.span, expression);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode unaryExpression (UnaryExpressionNode node)
+    {
+        // there is only NOT
+        ExpressionNode operand = rewrite(node.operand);
+        Object value = constant(operand);
+        return value instanceof Boolean
+            ? literal(node, !(boolean) value, attributes.type(node))
+            : new UnaryExpressionNode(node.span, node.operator, operand);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode binaryExpression (BinaryExpressionNode node)
+    {
+        ExpressionNode left  = rewrite(node.left);
+        ExpressionNode right = rewrite(node.right);
+        Object l = constant(left);
+        Object r = constant(right);
+        BinaryExpressionNode unfolded =
+            new BinaryExpressionNode(node.span, left, node.operator, right);
+
+        if (node.operator == BinaryOperator.AND || node.operator == BinaryOperator.OR) {
+            if (!(l instanceof Boolean)) return unfolded;
+            boolean shortCircuits = (boolean) l == (node.operator == BinaryOperator.OR);
+            return shortCircuits ? left : right;
+        }
+
+        if (l == null || r == null)
+            return unfolded;
+
+        return literal(node, fold(node.operator, l, r), unfolded);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Folds the operation on two literal values, returning null if it can't be folded.
+     */
+    private Object fold (BinaryOperator operator, Object l, Object r)
+    {
+        if (l instanceof Long && r instanceof Long) {
+            long a = (long) l, b = (long) r;
+            switch (operator) {
+                case MULTIPLY:      return a * b;
+                case DIVIDE:        return b == 0 ? null : a / b;
+                case REMAINDER:     return b == 0 ? null : a % b;
+                case ADD:           return a + b;
+                case SUBTRACT:      return a - b;
+                case GREATER:       return a > b;
+                case LOWER:         return a < b;
+                case GREATER_EQUAL: return a >= b;
+                case LOWER_EQUAL:   return a <= b;
+                case EQUALITY:      return a == b;
+                case NOT_EQUALS:    return a != b;
+                default:            return null;
+            }
+        }
+
+        if (l instanceof Number && r instanceof Number) {
+            double a = ((Number) l).doubleValue(), b = ((Number) r).doubleValue();
+            switch (operator) {
+                case MULTIPLY:      return a * b;
+                case DIVIDE:        return a / b;
+                case REMAINDER:     return a % b;
+                case ADD:           return a + b;
+                case SUBTRACT:      return a - b;
+                case GREATER:       return a > b;
+                case LOWER:         return a < b;
+                case GREATER_EQUAL: return a >= b;
+                case LOWER_EQUAL:   return a <= b;
+                case EQUALITY:      return a == b;
+                case NOT_EQUALS:    return a != b;
+                default:            return null;
+            }
+        }
+
+        if (l instanceof Boolean && r instanceof Boolean) {
+            switch (operator) {
+                case EQUALITY:      return l == r;
+                case NOT_EQUALS:    return l != r;
+                default:            return null;
+            }
+        }
+
+        return null;
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Statements]
+    // =============================================================================================
+
+    @Override protected SighNode varDecl (VarDeclarationNode node)
+    {
+        VarDeclarationNode rewritten = (VarDeclarationNode) super.varDecl(node);
+        Object value = constant(rewritten.initializer);
+        if (value != null && !assigned.contains(node))
+            constants.put(node, value);
+        return rewritten;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected List<StatementNode> statements (List<StatementNode> statements)
+    {
+        List<StatementNode> result = new ArrayList<>(statements.size());
+        boolean reachable = true;
+
+        for (StatementNode statement: statements) {
+            if (!reachable && !(statement instanceof DeclarationNode))
+                continue;
+            result.addAll(expand(statement));
+            reachable = reachable && !returns(statement);
+        }
+
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the statement (from the input tree, and already rewritten) always returns.
+     */
+    private boolean returns (StatementNode node)
+    {
+        StatementNode taken = node instanceof IfNode ? this.taken.get(node) : null;
+        if (taken != null)
+            return returns(taken);
+
+        if (!(node instanceof BlockNode || node instanceof IfNode || node instanceof ReturnNode))
+            return false;
+        boolean returns = reactor.get(node, "returns");
+        return returns;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode ifStmt (IfNode node)
+    {
+        ExpressionNode condition = rewrite(node.condition);
+        Object value = constant(condition);
+
+        // A declaration as branch would be declared in the surrounding scope.
+        if (!(value instanceof Boolean)
+                || node.trueStatement instanceof DeclarationNode
+                || node.falseStatement instanceof DeclarationNode)
+            return new IfNode(node.span,
+                condition,
+                statement(node.trueStatement),
+                node.falseStatement == null ? null : statement(node.falseStatement));
+
+        StatementNode branch = (boolean) value ? node.trueStatement : node.falseStatement;
+        if (branch == null)
+            return null;
+        taken.put(node, branch);
+        return rewrite(branch);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode whileStmt (WhileNode node)
+    {
+        ExpressionNode condition = rewrite(node.condition);
+        return Boolean.FALSE.equals(constant(condition))
+            ? null
+            : new WhileNode(node.span, condition, statement(node.body));
+    }
+
+    // endregion
+    // =============================================================================================
+}
@@ -0,0 +1,635 @@
+package norswap.sigh.optimizer;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.DeclarationContext;
+import norswap.sigh.scopes.Scope;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.FunType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+import norswap.sigh.types.VoidType;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * Replaces calls to small functions by the body of the function.
+ *
+ * <p>A function is inlined if it is not recursive (directly or not), does not declare functions or
+ * structures, and is small: it counts at most {@link #SMALL_SIZE} nodes, or at most {@link
+ * #MAX_SIZE} nodes and is called in at most {@link #MAX_CALLS} places. Its declaration is kept, as
+ * it may still be used as a value.
+ *
+ * <p>Only calls that form a whole statement are inlined: call statements, and calls that are the
+ * initializer of a variable, the value assigned to a variable or the returned value. The call is
+ * replaced by a block that binds the arguments to new variables standing for the parameters,
+ * followed by the body of the function, whose parameters and variables are renamed. Returns
+ * assign the result variable, declared before the block, and set a flag variable that guards the
+ * rest of the body. For instance, with {@code fun add (a: Int, b: Int): Int { return a + b }},
+ * {@code var x: Int = add(1, 2)} becomes:
+ *
+ * <pre>{@code
+ * var result$3: Int = 0
+ * { var a$1: Int = 1 var b$2: Int = 2 result$3 = a$1 + b$2 }
+ * var x: Int = result$3
+ * }</pre>
+ *
+ * <p>The new names contain {@code $}, which can't occur in identifiers, and so can't clash with
+ * those of the program. A call is only inlined if the names the function uses resolve to the same
+ * declarations at the call site, and the variables they denote are declared before the call site.
+ * If the program declares anything under the names used by the inlined code ({@code true},
+ * {@code false}, {@code null} and {@code Bool}), no function is inlined.
+ */
+final class Inliner extends Rewriter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Functions with at most that many nodes are always inlined. */
+    static final int SMALL_SIZE = 12;
+
+    /** Functions with more nodes are never inlined. */
+    static final int MAX_SIZE = 40;
+
+    /** Functions with more than {@link #SMALL_SIZE} nodes and called in more than that many places
+     * are not inlined. */
+    static final int MAX_CALLS = 3;
+
+    /** Names used by the inlined code, which the program must not redeclare. */
+    private static final List<String> RESERVED = Arrays.asList("true", "false", "null", "Bool");
+
+    // ---------------------------------------------------------------------------------------------
+
+    // Identity maps, as nodes implement structural equality.
+
+    /** The functions to inline. */
+    private final Set<FunDeclarationNode> inlined =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** The functions to inline whose returns must set a flag to skip the rest of the body. */
+    private final Set<FunDeclarationNode> flagged =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Scopes of the nodes being rewritten (innermost first). */
+    private final ArrayDeque<Scope> scopes = new ArrayDeque<>();
+
+    /** The calls being inlined (innermost first). */
+    private final ArrayDeque<Inlining> inlinings = new ArrayDeque<>();
+
+    /** Counter used to make new names unique. */
+    private int counter = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A call being inlined.
+     */
+    private static final class Inlining
+    {
+        final FunDeclarationNode function;
+        final Scope scope;
+        final int position;
+        final IdentityHashMap<DeclarationNode, String> names = new IdentityHashMap<>();
+        String result;
+        String returned;
+
+        Inlining (FunDeclarationNode function, Scope scope, int position) {
+            this.function = function;
+            this.scope = scope;
+            this.position = position;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    Inliner (Reactor reactor) {
+        super(reactor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the version of the tree rooted at {@code root} where the calls to small functions
+     * are inlined.
+     */
+    RootNode optimize (RootNode root)
+    {
+        IdentityHashMap<FunDeclarationNode, Integer> sizes = new IdentityHashMap<>();
+        IdentityHashMap<FunDeclarationNode, Integer> calls = new IdentityHashMap<>();
+        IdentityHashMap<FunDeclarationNode, Set<FunDeclarationNode>> callees =
+            new IdentityHashMap<>();
+        Set<FunDeclarationNode> nesting = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<FunDeclarationNode> stack = new ArrayDeque<>();
+        boolean[] unshadowed = { true };
+
+        Consumer<SighNode> visit = node -> {
+            for (FunDeclarationNode function: stack)
+                sizes.merge(function, 1, Integer::sum);
+
+            if (node instanceof DeclarationNode
+                    && RESERVED.contains(((DeclarationNode) node).name()))
+                unshadowed[0] = false;
+            if (node instanceof FunDeclarationNode || node instanceof StructDeclarationNode)
+                nesting.addAll(stack);
+
+            if (node instanceof ReferenceNode) {
+                DeclarationNode decl = attributes.decl(node);
+                if (decl instanceof FunDeclarationNode)
+                    for (FunDeclarationNode function: stack)
+                        callees.get(function).add((FunDeclarationNode) decl);
+            }
+            else if (node instanceof FunCallNode) {
+                FunDeclarationNode function = function((FunCallNode) node);
+                if (function != null)
+                    calls.merge(function, 1, Integer::sum);
+            }
+        };
+
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT, POST_VISIT);
+        walker.registerFallback(PRE_VISIT, visit);
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.register(FunDeclarationNode.class, PRE_VISIT, node -> {
+            visit.accept(node);
+            callees.put(node, Collections.newSetFromMap(new IdentityHashMap<>()));
+            sizes.put(node, 0);
+            stack.push(node);
+        });
+        walker.register(FunDeclarationNode.class, POST_VISIT, node -> stack.pop());
+        walker.walk(root);
+
+        if (unshadowed[0])
+            for (FunDeclarationNode function: sizes.keySet()) {
+                int size = sizes.get(function);
+                if (nesting.contains(function) || reaches(callees, function, function)) continue;
+                int count = calls.getOrDefault(function, 0);
+                if (size > SMALL_SIZE && (size > MAX_SIZE || count > MAX_CALLS)) continue;
+                inlined.add(function);
+                if (flagged(function.block.statements))
+                    flagged.add(function);
+            }
+
+        return rewrite(root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code target} can be called (directly or not) from {@code function}.
+     */
+    private static boolean reaches (IdentityHashMap<FunDeclarationNode, Set<FunDeclarationNode>>
+            callees, FunDeclarationNode function, FunDeclarationNode target)
+    {
+        Set<FunDeclarationNode> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<FunDeclarationNode> work = new ArrayDeque<>(callees.get(function));
+        while (!work.isEmpty()) {
+            FunDeclarationNode next = work.pop();
+            if (next == target) return true;
+            if (visited.add(next))
+                work.addAll(callees.get(next));
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the declaration of the called function if the call refers to a function by its name,
+     * or null otherwise.
+     */
+    private FunDeclarationNode function (FunCallNode call)
+    {
+        if (!(call.function instanceof ReferenceNode)) return null;
+        DeclarationNode decl = attributes.decl(call.function);
+        return decl instanceof FunDeclarationNode ? (FunDeclarationNode) decl : null;
+    }
+
+    // =============================================================================================
+    // region [Returns]
+    // =============================================================================================
+
+    /**
+     * Whether the statement contains a return statement.
+     */
+    private static boolean containsReturn (StatementNode node)
+    {
+        boolean[] contains = { false };
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, it -> {});
+        walker.register(ReturnNode.class, PRE_VISIT, it -> contains[0] = true);
+        walker.walk(node);
+        return contains[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the statement always returns.
+     */
+    private boolean returns (StatementNode node)
+    {
+        if (!(node instanceof BlockNode || node instanceof IfNode || node instanceof ReturnNode))
+            return false;
+        boolean returns = reactor.get(node, "returns");
+        return returns;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the inlined statements need a flag to skip the statements that follow a return (see
+     * {@link #body}).
+     */
+    private boolean flagged (List<StatementNode> statements)
+    {
+        for (int i = 0; i < statements.size(); ++i) {
+            StatementNode statement = statements.get(i);
+            if (!containsReturn(statement))
+                continue;
+            if (statement instanceof WhileNode)
+                return true;
+            if (i < statements.size() - 1 && !returns(statement))
+                return true;
+            if (statement instanceof BlockNode
+                    && flagged(((BlockNode) statement).statements))
+                return true;
+            if (statement instanceof IfNode) {
+                IfNode node = (IfNode) statement;
+                if (flagged(Collections.singletonList(node.trueStatement))) return true;
+                if (node.falseStatement != null
+                        && flagged(Collections.singletonList(node.falseStatement)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rewrites statements of the inlined function. The returns are replaced by assignments of the
+     * result and flag variables, and the statements that follow a statement that may return are
+     * guarded by a test of the flag. Loops that may return test the flag before their condition.
+     */
+    private List<StatementNode> body (List<StatementNode> statements)
+    {
+        List<StatementNode> result = new ArrayList<>();
+
+        for (int i = 0; i < statements.size(); ++i) {
+            StatementNode statement = statements.get(i);
+            if (!containsReturn(statement)) {
+                result.addAll(expand(statement));
+                continue;
+            }
+
+            result.addAll(returning(statement));
+            List<StatementNode> rest = statements.subList(i + 1, statements.size());
+            if (!returns(statement) && !rest.isEmpty())
+                result.add(new IfNode(statement.span, notReturned(statement),
+                    new BlockNode(statement.span, body(rest)), null));
+            break;
+        }
+
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rewrites a statement of the inlined function that contains a return (see {@link #body}).
+     */
+    private List<StatementNode> returning (StatementNode node)
+    {
+        Inlining inlining = inlinings.peek();
+
+        if (node instanceof ReturnNode) {
+            ReturnNode ret = (ReturnNode) node;
+            Function<ExpressionNode, List<StatementNode>> result = value -> {
+                List<StatementNode> statements = new ArrayList<>();
+                if (value != null)
+                    statements.add(assignment(node, inlining.result, value));
+                if (inlining.returned != null)
+                    statements.add(assignment(node, inlining.returned,
+                        new ReferenceNode(node.span, "true")));
+                return statements;
+            };
+            List<StatementNode> inlined = ret.expression instanceof FunCallNode
+                ? inline((FunCallNode) ret.expression, node.span.start, result)
+                : null;
+            return inlined != null ? inlined : result.apply(rewrite(ret.expression));
+        }
+
+        if (node instanceof BlockNode) {
+            scopes.push(attributes.scope(node));
+            BlockNode block = new BlockNode(node.span, body(((BlockNode) node).statements));
+            scopes.pop();
+            return Collections.singletonList(block);
+        }
+
+        if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            return Collections.singletonList(new IfNode(node.span,
+                rewrite(ifNode.condition),
+                branch(ifNode.trueStatement),
+                ifNode.falseStatement == null ? null : branch(ifNode.falseStatement)));
+        }
+
+        // only loops remain
+        WhileNode loop = (WhileNode) node;
+        ExpressionNode condition = new BinaryExpressionNode(loop.condition.span,
+            notReturned(loop.condition), BinaryOperator.AND, rewrite(loop.condition));
+        return Collections.singletonList(new WhileNode(node.span, condition, branch(loop.body)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rewrites a branch or loop body of the inlined function, which contains a return.
+     */
+    private StatementNode branch (StatementNode node)
+    {
+        List<StatementNode> statements = body(Collections.singletonList(node));
+        return statements.size() == 1
+            ? statements.get(0)
+            : new BlockNode(node.span, statements);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExpressionNode notReturned (SighNode node) {
+        return new UnaryExpressionNode(node.span, UnaryOperator.NOT,
+            new ReferenceNode(node.span, inlinings.peek().returned));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static StatementNode assignment (SighNode node, String name, ExpressionNode value) {
+        return new ExpressionStatementNode(node.span,
+            new AssignmentNode(node.span, new ReferenceNode(node.span, name), value));
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Inlining]
+    // =============================================================================================
+
+    /**
+     * Inlines the call, whose result is used by the statements returned by {@code use}, which is
+     * passed a reference to the result (or null for {@code Void} functions). The call must start
+     * its statement, which starts at {@code position}.
+     *
+     * <p>Returns the statements that replace the call, or null if the call can't be inlined.
+     */
+    private List<StatementNode> inline (FunCallNode call, int position,
+            Function<ExpressionNode, List<StatementNode>> use)
+    {
+        FunDeclarationNode function = function(call);
+        if (function == null || !inlined.contains(function) || !resolves(function, position))
+            return null;
+
+        for (Inlining outer: inlinings)
+            if (outer.function == function) return null; // not recursive, but better safe
+
+        Type returnType = ((FunType) attributes.type(function)).returnType;
+        List<ExpressionNode> arguments = rewrite(call.arguments);
+
+        Inlining inlining = new Inlining(function, scopes.peek(), position);
+        String suffix = "$" + ++counter;
+        if (!(returnType instanceof VoidType))
+            inlining.result = "result" + suffix;
+        if (flagged.contains(function))
+            inlining.returned = "returned" + suffix;
+        inlinings.push(inlining);
+        scopes.push(attributes.scope(function));
+
+        List<StatementNode> block = new ArrayList<>();
+        for (int i = 0; i < arguments.size(); ++i) {
+            ParameterNode parameter = function.parameters.get(i);
+            block.add(new VarDeclarationNode(call.arguments.get(i).span,
+                name(parameter), rewrite(parameter.type), arguments.get(i)));
+        }
+        if (inlining.returned != null)
+            block.add(new VarDeclarationNode(call.span, inlining.returned,
+                new SimpleTypeNode(call.span, "Bool"), new ReferenceNode(call.span, "false")));
+        scopes.push(attributes.scope(function.block));
+        block.addAll(body(function.block.statements));
+        scopes.pop();
+
+        scopes.pop();
+        inlinings.pop();
+
+        List<StatementNode> statements = new ArrayList<>();
+        ExpressionNode result = null;
+        if (inlining.result != null) {
+            statements.add(new VarDeclarationNode(call.span, inlining.result,
+                rewrite(function.returnType), defaultValue(call, returnType)));
+            result = new ReferenceNode(call.span, inlining.result);
+        }
+        statements.add(new BlockNode(call.span, block));
+        statements.addAll(use.apply(result));
+        return statements;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the names used in the function resolve to the same declarations at the call sites
+     * (the current one and those of the enclosing inlined calls), and the variables they denote
+     * are declared before these call sites.
+     */
+    private boolean resolves (FunDeclarationNode function, int position)
+    {
+        ArrayDeque<Inlining> sites = new ArrayDeque<>(inlinings);
+        sites.push(new Inlining(function, scopes.peek(), position));
+        Scope scope = attributes.scope(function);
+        boolean[] resolves = { true };
+
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, node -> {});
+        walker.register(ReferenceNode.class, PRE_VISIT, node -> {
+            DeclarationNode decl = attributes.decl(node);
+            if (!local(function, decl))
+                resolves[0] &= resolves(sites, node.name, decl);
+        });
+        walker.register(SimpleTypeNode.class, PRE_VISIT, node -> {
+            DeclarationContext ctx = scope.lookup(node.name);
+            resolves[0] &= ctx != null && resolves(sites, node.name, ctx.declaration);
+        });
+        walker.walk(function);
+        return resolves[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean resolves (ArrayDeque<Inlining> sites, String name, DeclarationNode decl)
+    {
+        for (Inlining site: sites) {
+            DeclarationContext ctx = site.scope.lookup(name);
+            if (ctx == null || ctx.declaration != decl)
+                return false;
+            if (decl instanceof VarDeclarationNode && decl.span.start >= site.position)
+                return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the declaration is a parameter or variable of the function.
+     */
+    private boolean local (FunDeclarationNode function, DeclarationNode decl)
+    {
+        if (!(decl instanceof ParameterNode || decl instanceof VarDeclarationNode))
+            return false;
+        Scope scope = attributes.scope(decl);
+        for (; scope != null; scope = scope.parent)
+            if (scope.node == function)
+                return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the new name of the parameter or variable if it belongs to an inlined function,
+     * or null otherwise.
+     */
+    private String name (DeclarationNode decl)
+    {
+        for (Inlining inlining: inlinings)
+            if (local(inlining.function, decl))
+                return inlining.names.computeIfAbsent(decl,
+                    it -> it.name() + "$" + ++counter);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value the result variable of an inlined call is initialized with.
+     */
+    private static ExpressionNode defaultValue (SighNode node, Type type)
+    {
+        if (type instanceof IntType)
+            return new IntLiteralNode(node.span, 0);
+        if (type instanceof FloatType)
+            return new FloatLiteralNode(node.span, 0.0);
+        if (type instanceof BoolType)
+            return new ReferenceNode(node.span, "false");
+        return new ReferenceNode(node.span, "null");
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Rewrites]
+    // =============================================================================================
+
+    @Override protected List<StatementNode> expand (StatementNode node)
+    {
+        List<StatementNode> inlined = null;
+        int position = node.span.start;
+
+        if (node instanceof ExpressionStatementNode) {
+            ExpressionNode expression = ((ExpressionStatementNode) node).expression;
+            if (expression instanceof FunCallNode)
+                inlined = inline((FunCallNode) expression, position,
+                    result -> Collections.emptyList());
+            else if (expression instanceof AssignmentNode) {
+                AssignmentNode assignment = (AssignmentNode) expression;
+                // other targets may have side effects that must happen before the call
+                if (assignment.left instanceof ReferenceNode
+                        && assignment.right instanceof FunCallNode)
+                    inlined = inline((FunCallNode) assignment.right, position,
+                        result -> Collections.singletonList(new ExpressionStatementNode(node.span,
+                            new AssignmentNode(assignment.span,
+                                rewrite(assignment.left), result))));
+            }
+        }
+        else if (node instanceof VarDeclarationNode) {
+            VarDeclarationNode decl = (VarDeclarationNode) node;
+            if (decl.initializer instanceof FunCallNode)
+                inlined = inline((FunCallNode) decl.initializer, position,
+                    result -> Collections.singletonList(new VarDeclarationNode(node.span,
+                        varName(decl), rewrite(decl.type), result)));
+        }
+        else if (node instanceof ReturnNode) {
+            ReturnNode ret = (ReturnNode) node;
+            if (ret.expression instanceof FunCallNode)
+                inlined = inline((FunCallNode) ret.expression, position,
+                    result -> Collections.singletonList(new ReturnNode(node.span, result)));
+        }
+
+        return inlined != null ? inlined : super.expand(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private String varName (VarDeclarationNode node) {
+        String name = name(node);
+        return name != null ? name : node.name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode reference (ReferenceNode node)
+    {
+        String name = name(attributes.decl(node));
+        return name != null
+            ? new ReferenceNode(node.span, name)
+            : super.reference(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode varDecl (VarDeclarationNode node) {
+        return new VarDeclarationNode(node.span, varName(node),
+            rewrite(node.type), rewrite(node.initializer));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode root (RootNode node)
+    {
+        scopes.push(attributes.scope(node));
+        SighNode result = super.root(node);
+        scopes.pop();
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode block (BlockNode node)
+    {
+        scopes.push(attributes.scope(node));
+        SighNode result = super.block(node);
+        scopes.pop();
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override protected SighNode funDecl (FunDeclarationNode node)
+    {
+        scopes.push(attributes.scope(node));
+        SighNode result = super.funDecl(node);
+        scopes.pop();
+        return result;
+    }
+
+    // endregion
+    // =============================================================================================
+}
@@ -0,0 +1,95 @@
+package norswap.sigh.optimizer;
+
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.ast.RootNode;
+import norswap.uranium.Reactor;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Optimizes Sigh programs by rewriting their tree, between semantic analysis and the execution
+ * backends (interpreters, VM, bytecode compiler).
+ *
+ * <p>The optimized tree is a new tree, which must be analyzed again (by a new reactor) before being
+ * executed. Since the optimized tree is valid Sigh code, this ensures that the backends can treat
+ * it like any other tree.
+ *
+ * <p>The optimizations are:
+ * <ul>
+ *     <li>Inlining of calls to small functions (see {@link Inliner}).</li>
+ *     <li>Constant folding and propagation, and dead code elimination (see {@link
+ *     ConstantFolding}), which also simplifies the inlined code when the arguments are
+ *     constant.</li>
+ *     <li>Loop-invariant code motion and common subexpression elimination (see {@link
+ *     CodeMotion}).</li>
+ * </ul>
+ */
+public final class Optimizer
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** The optimization passes, in the order in which they run. */
+    public enum Pass { INLINING, CONSTANT_FOLDING, CODE_MOTION }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Optimizer () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an optimized version of the tree rooted at {@code root}, which must have been
+     * analyzed by {@code reactor} without errors. The returned tree is not analyzed.
+     */
+    public static RootNode optimize (Reactor reactor, RootNode root) {
+        return optimize(reactor, root, EnumSet.allOf(Pass.class));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #optimize(Reactor, RootNode)}, but only runs the given passes.
+     */
+    public static RootNode optimize (Reactor reactor, RootNode root, Set<Pass> passes)
+    {
+        boolean first = true;
+        for (Pass pass: Pass.values()) {
+            if (!passes.contains(pass)) continue;
+            // the tree rewritten by the previous pass must be analyzed again
+            if (!first) reactor = analyze(root);
+            first = false;
+
+            switch (pass) {
+                case INLINING:
+                    root = new Inliner(reactor).optimize(root);
+                    break;
+                case CONSTANT_FOLDING:
+                    root = new ConstantFolding(reactor).optimize(root);
+                    break;
+                case CODE_MOTION:
+                    root = new CodeMotion(reactor).optimize(root);
+                    break;
+            }
+        }
+        return root;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Analyzes an optimized tree with a new reactor, which is returned. Throws an error if the
+     * analysis fails, as this indicates a bug in the optimizer.
+     */
+    public static Reactor analyze (RootNode root)
+    {
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+        if (!reactor.errors().isEmpty())
+            throw new Error("optimized tree failed semantic analysis: "
+                + reactor.reportErrors(Object::toString));
+        return reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
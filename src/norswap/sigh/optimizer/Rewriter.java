@@ -0,0 +1,321 @@
+package norswap.sigh.optimizer;
+
+import norswap.sigh.FrozenAttributes;
+import norswap.sigh.ast.*;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ValuedVisitor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base class for the optimization passes, which rewrite an analyzed tree into a new tree.
+ *
+ * <p>By default, each node is copied, with its children rewritten. Passes override the methods of
+ * the nodes they transform. Statements can be removed by rewriting them to null, or replaced by
+ * several statements by overriding {@link #expand}.
+ *
+ * <p>The attributes of the input tree are read from the reactor that analyzed it. The output tree
+ * is not analyzed: it must be analyzed by a new reactor before being used. As a result, the output
+ * tree must be valid Sigh code (and in particular, its references must resolve to the intended
+ * declarations).
+ *
+ * <p>Type nodes are copied like other nodes: semantic analysis attaches attributes to them, so a
+ * type node must not occur twice in a tree (which would happen when a pass duplicates code).
+ */
+abstract class Rewriter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final ValuedVisitor<SighNode, SighNode> visitor = new ValuedVisitor<>();
+    protected final Reactor reactor;
+    protected final FrozenAttributes attributes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Rewriter (Reactor reactor)
+    {
+        this.reactor = reactor;
+        this.attributes = FrozenAttributes.unfrozen(reactor);
+
+        // expressions
+        visitor.register(IntLiteralNode.class,           this::intLiteral);
+        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
+        visitor.register(StringLiteralNode.class,        this::stringLiteral);
+        visitor.register(ReferenceNode.class,            this::reference);
+        visitor.register(ConstructorNode.class,          this::constructor);
+        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
+        visitor.register(ParenthesizedNode.class,        this::parenthesized);
+        visitor.register(FieldAccessNode.class,          this::fieldAccess);
+        visitor.register(ArrayAccessNode.class,          this::arrayAccess);
+        visitor.register(FunCallNode.class,              this::funCall);
+        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
+        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
+        visitor.register(AssignmentNode.class,           this::assignment);
+
+        // statement groups & declarations
+        visitor.register(RootNode.class,                 this::root);
+        visitor.register(BlockNode.class,                this::block);
+        visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FieldDeclarationNode.class,     this::fieldDecl);
+        visitor.register(ParameterNode.class,            this::parameter);
+        visitor.register(FunDeclarationNode.class,       this::funDecl);
+        visitor.register(StructDeclarationNode.class,    this::structDecl);
+
+        // statements
+        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
+        visitor.register(IfNode.class,                   this::ifStmt);
+        visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ReturnNode.class,               this::returnStmt);
+
+        // types
+        visitor.register(SimpleTypeNode.class,           this::simpleType);
+        visitor.register(ArrayTypeNode.class,            this::arrayType);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @SuppressWarnings("unchecked")
+    protected <T extends SighNode> T rewrite (SighNode node) {
+        return node == null ? null : (T) visitor.apply(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rewrites the nodes of the list, omitting those rewritten to null.
+     */
+    protected <T extends SighNode> List<T> rewrite (List<? extends T> nodes)
+    {
+        List<T> result = new ArrayList<>(nodes.size());
+        for (T node: nodes) {
+            T rewritten = rewrite(node);
+            if (rewritten != null) result.add(rewritten);
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rewrites a statement into the list of statements that replace it: by default, its rewritten
+     * version if it isn't null. Passes that replace a statement by several statements override
+     * this method.
+     */
+    protected List<StatementNode> expand (StatementNode node) {
+        StatementNode rewritten = rewrite(node);
+        return rewritten == null
+            ? Collections.emptyList()
+            : Collections.singletonList(rewritten);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rewrites a statement that cannot be omitted (e.g. the body of a loop), replacing it by an
+     * empty block if it is rewritten to null, and by a block if it is expanded to several
+     * statements.
+     *
+     * <p>A variable declaration in such a position is declared in the surrounding scope, so it
+     * isn't expanded, as it can't be wrapped in a block.
+     */
+    protected StatementNode statement (StatementNode node)
+    {
+        if (node instanceof VarDeclarationNode)
+            return rewrite(node);
+
+        List<StatementNode> statements = expand(node);
+        return statements.size() == 1
+            ? statements.get(0)
+            : new BlockNode(node.span, new ArrayList<>(statements));
+    }
+
+    // =============================================================================================
+    // region [Expressions]
+    // =============================================================================================
+
+    protected SighNode intLiteral (IntLiteralNode node) {
+        return new IntLiteralNode(node.span, node.value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode floatLiteral (FloatLiteralNode node) {
+        return new FloatLiteralNode(node.span, node.value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode stringLiteral (StringLiteralNode node) {
+        return new StringLiteralNode(node.span, node.value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode reference (ReferenceNode node) {
+        return new ReferenceNode(node.span, node.name);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode constructor (ConstructorNode node) {
+        return new ConstructorNode(node.span, rewrite(node.ref));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode arrayLiteral (ArrayLiteralNode node) {
+        return new ArrayLiteralNode(node.span, rewrite(node.components));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode parenthesized (ParenthesizedNode node) {
+        return new ParenthesizedNode(node.span, rewrite(node.expression));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode fieldAccess (FieldAccessNode node) {
+        return new FieldAccessNode(node.span, rewrite(node.stem), node.fieldName);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode arrayAccess (ArrayAccessNode node) {
+        return new ArrayAccessNode(node.span, rewrite(node.array), rewrite(node.index));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode funCall (FunCallNode node) {
+        return new FunCallNode(node.span, rewrite(node.function), rewrite(node.arguments));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode unaryExpression (UnaryExpressionNode node) {
+        return new UnaryExpressionNode(node.span, node.operator, rewrite(node.operand));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode binaryExpression (BinaryExpressionNode node) {
+        return new BinaryExpressionNode(node.span,
+            rewrite(node.left), node.operator, rewrite(node.right));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode assignment (AssignmentNode node) {
+        return new AssignmentNode(node.span, rewrite(node.left), rewrite(node.right));
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Statement Groups & Declarations]
+    // =============================================================================================
+
+    protected SighNode root (RootNode node) {
+        return new RootNode(node.span, statements(node.statements));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode block (BlockNode node) {
+        return new BlockNode(node.span, statements(node.statements));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rewrites the statements of a block or of the root node.
+     */
+    protected List<StatementNode> statements (List<StatementNode> statements)
+    {
+        List<StatementNode> result = new ArrayList<>(statements.size());
+        for (StatementNode statement: statements)
+            result.addAll(expand(statement));
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode varDecl (VarDeclarationNode node) {
+        return new VarDeclarationNode(node.span, node.name,
+            rewrite(node.type), rewrite(node.initializer));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode fieldDecl (FieldDeclarationNode node) {
+        return new FieldDeclarationNode(node.span, node.name, rewrite(node.type));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode parameter (ParameterNode node) {
+        return new ParameterNode(node.span, node.name, rewrite(node.type));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode funDecl (FunDeclarationNode node) {
+        return new FunDeclarationNode(node.span, node.name,
+            rewrite(node.parameters), rewrite(node.returnType), rewrite(node.block));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode structDecl (StructDeclarationNode node) {
+        return new StructDeclarationNode(node.span, node.name, rewrite(node.fields));
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Statements]
+    // =============================================================================================
+
+    protected SighNode expressionStmt (ExpressionStatementNode node) {
+        return new ExpressionStatementNode(node.span, rewrite(node.expression));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode ifStmt (IfNode node) {
+        return new IfNode(node.span,
+            rewrite(node.condition),
+            statement(node.trueStatement),
+            node.falseStatement == null ? null : statement(node.falseStatement));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode whileStmt (WhileNode node) {
+        return new WhileNode(node.span, rewrite(node.condition), statement(node.body));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode returnStmt (ReturnNode node) {
+        return new ReturnNode(node.span, rewrite(node.expression));
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Types]
+    // =============================================================================================
+
+    protected SighNode simpleType (SimpleTypeNode node) {
+        return new SimpleTypeNode(node.span, node.name);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    protected SighNode arrayType (ArrayTypeNode node) {
+        return new ArrayTypeNode(node.span, rewrite(node.componentType));
+    }
+
+    // endregion
+    // =============================================================================================
+}
@@ -0,0 +1,129 @@
+package norswap.sigh.vm;
+
+/**
+ * Instructions of the Sigh VM.
+ *
+ * <p>Instructions are stored in an {@code int[]} code buffer: an opcode followed by its operands.
+ * The comment next to each opcode lists its operands. Most operands are register numbers, with the
+ * following conventions:
+ * <ul>
+ *     <li>{@code p*}: a primitive register (holding an {@code Int}, a {@code Float} as raw double
+ *     bits, or a {@code Bool} as 0 or 1)</li>
+ *     <li>{@code o*}: an object register</li>
+ *     <li>{@code d*}: destination register</li>
+ * </ul>
+ *
+ * <p>Other operands are indices in the constant pools ({@code lk} for the {@code long} pool and
+ * {@code k} for the object pool), jump targets (index in the code buffer), or counts.
+ */
+public final class Opcodes
+{
+    private Opcodes() {}
+
+    // ---------------------------------------------------------------------------------------------
+    // constants & moves
+
+    public static final int LCONST          =  0; // pd, lk
+    public static final int OCONST          =  1; // od, k
+    public static final int PMOVE           =  2; // pd, p
+    public static final int OMOVE           =  3; // od, o
+    public static final int PLOAD_OUTER     =  4; // pd, depth, slot
+    public static final int OLOAD_OUTER     =  5; // od, depth, slot
+    public static final int PSTORE_OUTER    =  6; // depth, slot, p
+    public static final int OSTORE_OUTER    =  7; // depth, slot, o
+
+    // ---------------------------------------------------------------------------------------------
+    // arithmetic
+
+    public static final int LADD            = 10; // pd, p1, p2
+    public static final int LSUB            = 11; // pd, p1, p2
+    public static final int LMUL            = 12; // pd, p1, p2
+    public static final int LDIV            = 13; // pd, p1, p2
+    public static final int LREM            = 14; // pd, p1, p2
+    public static final int DADD            = 15; // pd, p1, p2
+    public static final int DSUB            = 16; // pd, p1, p2
+    public static final int DMUL            = 17; // pd, p1, p2
+    public static final int DDIV            = 18; // pd, p1, p2
+    public static final int DREM            = 19; // pd, p1, p2
+    public static final int L2D             = 20; // pd, p
+
+    // ---------------------------------------------------------------------------------------------
+    // comparisons (result is 0 or 1)
+
+    public static final int LEQ             = 30; // pd, p1, p2
+    public static final int LNE             = 31; // pd, p1, p2
+    public static final int LLT             = 32; // pd, p1, p2
+    public static final int LLE             = 33; // pd, p1, p2
+    public static final int LGT             = 34; // pd, p1, p2
+    public static final int LGE             = 35; // pd, p1, p2
+    public static final int DEQ             = 36; // pd, p1, p2
+    public static final int DNE             = 37; // pd, p1, p2
+    public static final int DLT             = 38; // pd, p1, p2
+    public static final int DLE             = 39; // pd, p1, p2
+    public static final int DGT             = 40; // pd, p1, p2
+    public static final int DGE             = 41; // pd, p1, p2
+    public static final int OEQ             = 42; // pd, o1, o2
+    public static final int ONE             = 43; // pd, o1, o2
+    public static final int NOT             = 44; // pd, p
+
+    // ---------------------------------------------------------------------------------------------
+    // control flow
+
+    public static final int JUMP            = 50; // target
+    public static final int JUMP_IF_FALSE   = 51; // p, target
+    public static final int JUMP_IF_TRUE    = 52; // p, target
+
+    // ---------------------------------------------------------------------------------------------
+    // boxing
+
+    public static final int BOX_LONG        = 60; // od, p
+    public static final int BOX_DOUBLE      = 61; // od, p
+    public static final int BOX_BOOL        = 62; // od, p
+    public static final int UNBOX_LONG      = 63; // pd, o
+    public static final int UNBOX_DOUBLE    = 64; // pd, o
+    public static final int UNBOX_BOOL      = 65; // pd, o
+
+    // ---------------------------------------------------------------------------------------------
+    // strings, arrays & structures
+
+    public static final int TO_STRING       = 70; // od, o
+    public static final int CONCAT          = 71; // od, o1, o2
+    public static final int NEW_ARRAY       = 72; // od, o_first, count
+    public static final int ARRAY_GET       = 73; // od, o_array, p_index
+    public static final int ARRAY_SET       = 74; // o_array, p_index, o_value
+    public static final int ARRAY_LENGTH    = 75; // pd, o_array
+    public static final int NEW_STRUCT      = 76; // od, k (declaration), o_first, count
+    public static final int FIELD_GET       = 77; // od, o_struct, field index
+    public static final int FIELD_SET       = 78; // o_struct, field index, o_value
+
+    // ---------------------------------------------------------------------------------------------
+    // calls
+
+    /** Call to a function value, arguments and result are boxed. */
+    public static final int CALL            = 80; // od, o_function, o_first, count
+
+    /**
+     * Call to a known function, with one argument register per parameter (primitive or object
+     * depending on the type of the parameter). The destination register is primitive or object
+     * depending on the return type (ignored for {@code Void}).
+     */
+    public static final int CALL_DIRECT     = 81; // d, k (VMFunction), args...
+
+    public static final int PRINT           = 82; // od, o
+    public static final int RETURN          = 83; //
+    public static final int RETURN_P        = 84; // p
+    public static final int RETURN_O        = 85; // o
+
+    // ---------------------------------------------------------------------------------------------
+    // primitive arrays ({@code long[]}, {@code double[]} and {@code boolean[]})
+
+    public static final int NEW_LARRAY      = 90; // od, p_first, count
+    public static final int NEW_DARRAY      = 91; // od, p_first, count
+    public static final int NEW_BARRAY      = 92; // od, p_first, count
+    public static final int LARRAY_GET      = 93; // pd, o_array, p_index
+    public static final int DARRAY_GET      = 94; // pd, o_array, p_index
+    public static final int BARRAY_GET      = 95; // pd, o_array, p_index
+    public static final int LARRAY_SET      = 96; // o_array, p_index, p_value
+    public static final int DARRAY_SET      = 97; // o_array, p_index, p_value
+    public static final int BARRAY_SET      = 98; // o_array, p_index, p_value
+}
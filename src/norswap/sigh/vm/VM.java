@@ -0,0 +1,600 @@
+package norswap.sigh.vm;
+
+import norswap.sigh.OutputSink;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.StructDeclarationNode;
+import norswap.sigh.interpreter.Constructor;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.Null;
+import norswap.sigh.interpreter.Struct;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import java.lang.reflect.Array;
+
+import static norswap.sigh.vm.Opcodes.*;
+import static norswap.sigh.vm.VMFunction.*;
+
+/**
+ * Executes programs compiled by {@link VMCompiler}.
+ *
+ * <p>The runtime value representation is the same as that of {@link Interpreter}, but primitive
+ * values are kept unboxed in primitive registers. Errors caused by the program (null accesses,
+ * out of bounds indices) are thrown as the corresponding Java exceptions.
+ *
+ * <p>Calls do not recurse on the Java stack: {@link #execute} keeps the current {@link VMFrame},
+ * whose frames are linked to the frame of their caller, and switches between them on calls and
+ * returns. The recursion depth of Sigh programs is therefore only limited by the heap size.
+ *
+ * <p>This also makes execution suspendable: after {@link #start}, {@link #resume} runs the program
+ * for a time slice (counted in jumps and calls), after which it can be resumed again — possibly on
+ * another thread. This allows interleaving the execution of many programs on a few threads.
+ */
+public final class VM
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private VMProgram program;
+    private VMFrame rootFrame;
+
+    /** The frame being executed, null if no program is running. */
+    private VMFrame current;
+
+    /** Value returned by the top-level code, once it completes. */
+    private Object result;
+
+    private OutputSink output = OutputSink.stdout();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the sink receiving the output of {@code print} (by default, a sink writing to the
+     * standard output). The sink is flushed when the program completes or throws.
+     */
+    public void setOutput (OutputSink output) {
+        this.output = output;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the program to completion and returns the value returned by its top-level code.
+     */
+    public Object run (VMProgram program)
+    {
+        start(program);
+        resume(Long.MAX_VALUE);
+        return result();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prepares the execution of the program, which is then run by calling {@link #resume}.
+     */
+    public void start (VMProgram program)
+    {
+        if (current != null)
+            throw new IllegalStateException("a program is already running");
+        this.program = program;
+        this.result = null;
+        current = rootFrame = new VMFrame(program.main, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Continues the execution of the started program, for at most {@code slice} jumps and calls.
+     * Returns true if the program completed, in which case its result is available through
+     * {@link #result()}. If the program throws, it cannot be resumed.
+     */
+    public boolean resume (long slice)
+    {
+        if (current == null)
+            throw new IllegalStateException("no program is running");
+        try {
+            boolean completed = execute(slice);
+            if (completed) stop();
+            return completed;
+        } catch (RuntimeException | Error e) {
+            stop();
+            throw e;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void stop () {
+        program = null;
+        rootFrame = null;
+        current = null;
+        output.flush();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value returned by the top-level code of the last program that completed.
+     */
+    public Object result () {
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private VMFrame outer (VMFrame frame, int depth)
+    {
+        if (depth == 0) return rootFrame;
+        for (VMFrame it = frame; it != null; it = it.parent)
+            if (it.depth == depth) return it;
+        throw new Error("[implementation bug] no frame at depth " + depth);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int index (long index)
+    {
+        if (index < 0)
+            throw new ArrayIndexOutOfBoundsException("Negative index: " + index);
+        if (index >= Integer.MAX_VALUE - 1)
+            throw new ArrayIndexOutOfBoundsException("Index exceeds max array index (2ˆ31 - 2): " + index);
+        return (int) index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object array (Object object)
+    {
+        if (object == Null.INSTANCE)
+            throw new NullPointerException("indexing null array");
+        return object;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object[] fields (Object object)
+    {
+        if (object == Null.INSTANCE)
+            throw new NullPointerException("accessing field of null object");
+        return ((Struct) object).fields;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private String print (Object value)
+    {
+        String out = Interpreter.convertToString(value);
+        output.println(out);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes the current frame, and the frames it calls or returns to, until the top-level code
+     * returns (then returns true) or {@code budget} jumps and calls have been executed (then
+     * returns false, with the state saved in the current frame).
+     */
+    private boolean execute (long budget)
+    {
+        frames: while (true) {
+            final VMFrame frame = current;
+            final VMFunction function = frame.function;
+            final int[] code = function.code;
+            final Object[] constants = function.constants;
+            final long[] longs = function.longConstants;
+            final long[] p = frame.primitives;
+            final Object[] o = frame.objects;
+            int pc = frame.pc;
+
+            while (true) {
+                switch (code[pc]) {
+
+                    // constants & moves
+
+                    case LCONST:
+                        p[code[pc + 1]] = longs[code[pc + 2]];
+                        pc += 3; break;
+                    case OCONST:
+                        o[code[pc + 1]] = constants[code[pc + 2]];
+                        pc += 3; break;
+                    case PMOVE:
+                        p[code[pc + 1]] = p[code[pc + 2]];
+                        pc += 3; break;
+                    case OMOVE:
+                        o[code[pc + 1]] = o[code[pc + 2]];
+                        pc += 3; break;
+                    case PLOAD_OUTER:
+                        p[code[pc + 1]] = outer(frame, code[pc + 2]).primitives[code[pc + 3]];
+                        pc += 4; break;
+                    case OLOAD_OUTER:
+                        o[code[pc + 1]] = outer(frame, code[pc + 2]).objects[code[pc + 3]];
+                        pc += 4; break;
+                    case PSTORE_OUTER:
+                        outer(frame, code[pc + 1]).primitives[code[pc + 2]] = p[code[pc + 3]];
+                        pc += 4; break;
+                    case OSTORE_OUTER:
+                        outer(frame, code[pc + 1]).objects[code[pc + 2]] = o[code[pc + 3]];
+                        pc += 4; break;
+
+                    // arithmetic
+
+                    case LADD:
+                        p[code[pc + 1]] = p[code[pc + 2]] + p[code[pc + 3]];
+                        pc += 4; break;
+                    case LSUB:
+                        p[code[pc + 1]] = p[code[pc + 2]] - p[code[pc + 3]];
+                        pc += 4; break;
+                    case LMUL:
+                        p[code[pc + 1]] = p[code[pc + 2]] * p[code[pc + 3]];
+                        pc += 4; break;
+                    case LDIV:
+                        p[code[pc + 1]] = p[code[pc + 2]] / p[code[pc + 3]];
+                        pc += 4; break;
+                    case LREM:
+                        p[code[pc + 1]] = p[code[pc + 2]] % p[code[pc + 3]];
+                        pc += 4; break;
+                    case DADD:
+                        p[code[pc + 1]] = dbits(d(p[code[pc + 2]]) + d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case DSUB:
+                        p[code[pc + 1]] = dbits(d(p[code[pc + 2]]) - d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case DMUL:
+                        p[code[pc + 1]] = dbits(d(p[code[pc + 2]]) * d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case DDIV:
+                        p[code[pc + 1]] = dbits(d(p[code[pc + 2]]) / d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case DREM:
+                        p[code[pc + 1]] = dbits(d(p[code[pc + 2]]) % d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case L2D:
+                        p[code[pc + 1]] = dbits((double) p[code[pc + 2]]);
+                        pc += 3; break;
+
+                    // comparisons
+
+                    case LEQ:
+                        p[code[pc + 1]] = p[code[pc + 2]] == p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case LNE:
+                        p[code[pc + 1]] = p[code[pc + 2]] != p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case LLT:
+                        p[code[pc + 1]] = p[code[pc + 2]] <  p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case LLE:
+                        p[code[pc + 1]] = p[code[pc + 2]] <= p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case LGT:
+                        p[code[pc + 1]] = p[code[pc + 2]] >  p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case LGE:
+                        p[code[pc + 1]] = p[code[pc + 2]] >= p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case DEQ:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) == d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case DNE:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) != d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case DLT:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) <  d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case DLE:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) <= d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case DGT:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) >  d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case DGE:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) >= d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case OEQ:
+                        p[code[pc + 1]] = o[code[pc + 2]] == o[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case ONE:
+                        p[code[pc + 1]] = o[code[pc + 2]] != o[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case NOT:
+                        p[code[pc + 1]] = p[code[pc + 2]] ^ 1;
+                        pc += 3; break;
+
+                    // control flow
+
+                    case JUMP:
+                        pc = code[pc + 1];
+                        if (--budget == 0) {
+                            frame.pc = pc;
+                            return false;
+                        }
+                        break;
+                    case JUMP_IF_FALSE:
+                        pc = p[code[pc + 1]] == 0 ? code[pc + 2] : pc + 3; break;
+                    case JUMP_IF_TRUE:
+                        pc = p[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3; break;
+
+                    // boxing
+
+                    case BOX_LONG:
+                        o[code[pc + 1]] = p[code[pc + 2]];
+                        pc += 3; break;
+                    case BOX_DOUBLE:
+                        o[code[pc + 1]] = d(p[code[pc + 2]]);
+                        pc += 3; break;
+                    case BOX_BOOL:
+                        o[code[pc + 1]] = p[code[pc + 2]] != 0;
+                        pc += 3; break;
+                    case UNBOX_LONG:
+                        p[code[pc + 1]] = (Long) o[code[pc + 2]];
+                        pc += 3; break;
+                    case UNBOX_DOUBLE:
+                        p[code[pc + 1]] = dbits(((Number) o[code[pc + 2]]).doubleValue());
+                        pc += 3; break;
+                    case UNBOX_BOOL:
+                        p[code[pc + 1]] = (Boolean) o[code[pc + 2]] ? 1 : 0;
+                        pc += 3; break;
+
+                    // strings, arrays & structures
+
+                    case TO_STRING:
+                        o[code[pc + 1]] = Interpreter.convertToString(o[code[pc + 2]]);
+                        pc += 3; break;
+                    case CONCAT:
+                        o[code[pc + 1]] = (String) o[code[pc + 2]] + (String) o[code[pc + 3]];
+                        pc += 4; break;
+                    case NEW_ARRAY: {
+                        Object[] array = new Object[code[pc + 3]];
+                        System.arraycopy(o, code[pc + 2], array, 0, array.length);
+                        o[code[pc + 1]] = array;
+                        pc += 4; break;
+                    }
+                    case ARRAY_GET:
+                        o[code[pc + 1]] = Interpreter.arrayElement(
+                            array(o[code[pc + 2]]), index(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case ARRAY_SET:
+                        Interpreter.setArrayElement(
+                            array(o[code[pc + 1]]), index(p[code[pc + 2]]), o[code[pc + 3]]);
+                        pc += 4; break;
+                    case ARRAY_LENGTH:
+                        p[code[pc + 1]] = Array.getLength(array(o[code[pc + 2]]));
+                        pc += 3; break;
+                    case NEW_LARRAY: {
+                        long[] array = new long[code[pc + 3]];
+                        System.arraycopy(p, code[pc + 2], array, 0, array.length);
+                        o[code[pc + 1]] = array;
+                        pc += 4; break;
+                    }
+                    case NEW_DARRAY: {
+                        double[] array = new double[code[pc + 3]];
+                        for (int i = 0, r = code[pc + 2]; i < array.length; ++i)
+                            array[i] = Double.longBitsToDouble(p[r + i]);
+                        o[code[pc + 1]] = array;
+                        pc += 4; break;
+                    }
+                    case NEW_BARRAY: {
+                        boolean[] array = new boolean[code[pc + 3]];
+                        for (int i = 0, r = code[pc + 2]; i < array.length; ++i)
+                            array[i] = p[r + i] != 0;
+                        o[code[pc + 1]] = array;
+                        pc += 4; break;
+                    }
+                    case LARRAY_GET: {
+                        Object array = array(o[code[pc + 2]]);
+                        int index = index(p[code[pc + 3]]);
+                        p[code[pc + 1]] = array instanceof long[]
+                            ? ((long[]) array)[index]
+                            : (long) Interpreter.arrayElement(array, index);
+                        pc += 4; break;
+                    }
+                    case DARRAY_GET: {
+                        Object array = array(o[code[pc + 2]]);
+                        int index = index(p[code[pc + 3]]);
+                        p[code[pc + 1]] = Double.doubleToRawLongBits(array instanceof double[]
+                            ? ((double[]) array)[index]
+                            : ((Number) Interpreter.arrayElement(array, index)).doubleValue());
+                        pc += 4; break;
+                    }
+                    case BARRAY_GET: {
+                        Object array = array(o[code[pc + 2]]);
+                        int index = index(p[code[pc + 3]]);
+                        p[code[pc + 1]] = (array instanceof boolean[]
+                            ? ((boolean[]) array)[index]
+                            : (boolean) Interpreter.arrayElement(array, index)) ? 1 : 0;
+                        pc += 4; break;
+                    }
+                    case LARRAY_SET: {
+                        Object array = array(o[code[pc + 1]]);
+                        int index = index(p[code[pc + 2]]);
+                        long value = p[code[pc + 3]];
+                        if (array instanceof long[])
+                            ((long[]) array)[index] = value;
+                        else if (array instanceof double[]) // Int value in a Float array
+                            ((double[]) array)[index] = value;
+                        else
+                            Interpreter.setArrayElement(array, index, value);
+                        pc += 4; break;
+                    }
+                    case DARRAY_SET: {
+                        Object array = array(o[code[pc + 1]]);
+                        int index = index(p[code[pc + 2]]);
+                        double value = Double.longBitsToDouble(p[code[pc + 3]]);
+                        if (array instanceof double[])
+                            ((double[]) array)[index] = value;
+                        else
+                            Interpreter.setArrayElement(array, index, value);
+                        pc += 4; break;
+                    }
+                    case BARRAY_SET: {
+                        Object array = array(o[code[pc + 1]]);
+                        int index = index(p[code[pc + 2]]);
+                        boolean value = p[code[pc + 3]] != 0;
+                        if (array instanceof boolean[])
+                            ((boolean[]) array)[index] = value;
+                        else
+                            Interpreter.setArrayElement(array, index, value);
+                        pc += 4; break;
+                    }
+                    case NEW_STRUCT: {
+                        Object[] args = new Object[code[pc + 4]];
+                        System.arraycopy(o, code[pc + 3], args, 0, args.length);
+                        StructDeclarationNode decl = (StructDeclarationNode) constants[code[pc + 2]];
+                        o[code[pc + 1]] = Interpreter.buildStruct(decl, args);
+                        pc += 5; break;
+                    }
+                    case FIELD_GET:
+                        o[code[pc + 1]] = fields(o[code[pc + 2]])[code[pc + 3]];
+                        pc += 4; break;
+                    case FIELD_SET:
+                        fields(o[code[pc + 1]])[code[pc + 2]] = o[code[pc + 3]];
+                        pc += 4; break;
+
+                    // calls
+
+                    case CALL: {
+                        Object value = o[code[pc + 2]];
+                        VMFunction callee = callable(value);
+                        if (callee == null) {
+                            o[code[pc + 1]] = callBuiltin(value, o, code[pc + 3], code[pc + 4]);
+                            pc += 5; break;
+                        }
+                        VMFrame calleeFrame = new VMFrame(callee, frame);
+                        int first = code[pc + 3];
+                        for (int i = 0; i < callee.paramSlots.length; ++i) {
+                            int slot = callee.paramSlots[i];
+                            Object arg = o[first + i];
+                            switch (callee.paramKinds[i]) {
+                                case LONG:   calleeFrame.primitives[slot] = (Long) arg; break;
+                                case DOUBLE: calleeFrame.primitives[slot] =
+                                                dbits(((Number) arg).doubleValue()); break;
+                                case BOOL:   calleeFrame.primitives[slot] = (Boolean) arg ? 1 : 0; break;
+                                default:     calleeFrame.objects[slot] = arg;
+                            }
+                        }
+                        frame.resultRegister = code[pc + 1];
+                        frame.boxResult = true;
+                        frame.pc = pc + 5;
+                        current = calleeFrame;
+                        if (--budget == 0) return false;
+                        continue frames;
+                    }
+                    case CALL_DIRECT: {
+                        VMFunction callee = (VMFunction) constants[code[pc + 2]];
+                        VMFrame calleeFrame = new VMFrame(callee, frame);
+                        int count = callee.paramSlots.length;
+                        for (int i = 0; i < count; ++i) {
+                            int reg = code[pc + 3 + i];
+                            int slot = callee.paramSlots[i];
+                            if (callee.paramKinds[i] == OBJECT)
+                                calleeFrame.objects[slot] = o[reg];
+                            else
+                                calleeFrame.primitives[slot] = p[reg];
+                        }
+                        frame.resultRegister = code[pc + 1];
+                        frame.boxResult = false;
+                        frame.pc = pc + 3 + count;
+                        current = calleeFrame;
+                        if (--budget == 0) return false;
+                        continue frames;
+                    }
+                    case PRINT:
+                        o[code[pc + 1]] = print(o[code[pc + 2]]);
+                        pc += 3; break;
+                    case RETURN:
+                        if (returnTo(frame, 0, null)) return true;
+                        continue frames;
+                    case RETURN_P:
+                        if (returnTo(frame, p[code[pc + 1]], null)) return true;
+                        continue frames;
+                    case RETURN_O:
+                        if (returnTo(frame, 0, o[code[pc + 1]])) return true;
+                        continue frames;
+
+                    default:
+                        throw new Error("unknown opcode " + code[pc] + " at " + function + ":" + pc);
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pops the frame, storing the returned value (in {@code primitive} or {@code object} depending
+     * on the return kind of the function) in the caller's result register. Returns true if the
+     * frame was the top-level frame, whose result is saved in {@link #result}.
+     */
+    private boolean returnTo (VMFrame frame, long primitive, Object object)
+    {
+        VMFrame caller = frame.parent;
+        byte kind = frame.function.returnKind;
+
+        if (caller == null || caller.boxResult) {
+            Object boxed;
+            switch (kind) {
+                case LONG:   boxed = primitive; break;
+                case DOUBLE: boxed = d(primitive); break;
+                case BOOL:   boxed = primitive != 0; break;
+                default:     boxed = object;
+            }
+            if (caller == null) {
+                result = boxed;
+                return true;
+            }
+            caller.objects[caller.resultRegister] = boxed;
+        }
+        else if (kind == OBJECT)
+            caller.objects[caller.resultRegister] = object;
+        else if (kind != VOID)
+            caller.primitives[caller.resultRegister] = primitive;
+
+        current = caller;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the compiled function for a function value, or null if the value is a builtin
+     * or a constructor.
+     */
+    private VMFunction callable (Object value)
+    {
+        if (value == Null.INSTANCE)
+            throw new NullPointerException("calling a null function");
+        return value instanceof FunDeclarationNode
+            ? program.functions.get((FunDeclarationNode) value)
+            : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls a builtin or constructor value, whose arguments are boxed in {@code o[first ..
+     * first+count[}.
+     */
+    private Object callBuiltin (Object value, Object[] o, int first, int count)
+    {
+        Object[] args = new Object[count];
+        System.arraycopy(o, first, args, 0, count);
+
+        if (value instanceof SyntheticDeclarationNode) {
+            assert ((SyntheticDeclarationNode) value).name().equals("print"); // only one
+            return print(args[0]);
+        }
+
+        return Interpreter.buildStruct(((Constructor) value).declaration, args);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static double d (long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long dbits (double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
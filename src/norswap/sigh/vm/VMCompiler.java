@@ -0,0 +1,1006 @@
+package norswap.sigh.vm;
+
+import norswap.sigh.FrozenAttributes;
+import norswap.sigh.ast.*;
+import norswap.sigh.interpreter.Constructor;
+import norswap.sigh.interpreter.Null;
+import norswap.sigh.scopes.DeclarationKind;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.FunType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ValuedVisitor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static norswap.sigh.vm.Opcodes.*;
+import static norswap.sigh.vm.VMFunction.*;
+
+/**
+ * Lowers an analyzed Sigh tree to register-based code for the {@link VM}.
+ *
+ * <p>Compilation is a single pass over each function body. Variables live in the registers whose
+ * number is the slot assigned by semantic analysis, so reading a local variable requires no
+ * instruction. Temporaries are allocated above the variables, and released at the end of each
+ * statement. Expressions of type {@code Int}, {@code Float} and {@code Bool} are computed in
+ * primitive registers, and only boxed when used as objects.
+ *
+ * <p>Variables of other functions (including the top-level code) are accessed through the
+ * {@code *_OUTER} instructions. The limitations are the same as those of the interpreter.
+ *
+ * <p>Expression compilation methods take a destination register, or -1 if the result can be put
+ * in any register. They return the register holding the result, which, when no destination is
+ * supplied, can be the register of a local variable: the caller must not write to it.
+ */
+public final class VMCompiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final ValuedVisitor<SighNode, Void> visitor = new ValuedVisitor<>();
+    private final Reactor reactor;
+    private FrozenAttributes attributes;
+    private RootScope rootScope;
+
+    private final IdentityHashMap<FunDeclarationNode, VMFunction> functions
+        = new IdentityHashMap<>();
+    private final ArrayDeque<FunDeclarationNode> pending = new ArrayDeque<>();
+
+    // state of the function being compiled
+
+    private VMFunction function;
+    private int[] code;
+    private int size;
+    private ArrayList<Object> constants;
+    private HashMap<Object, Integer> constantIndices;
+    private long[] longConstants;
+    private int longCount;
+    private int frameSize;
+    private int nextPrimitive, nextObject;
+    private int maxPrimitive, maxObject;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public VMCompiler (Reactor reactor)
+    {
+        this.reactor = reactor;
+
+        // statement groups & declarations
+        visitor.register(BlockNode.class,                this::block);
+        visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FunDeclarationNode.class,       this::funDecl);
+
+        // statements
+        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
+        visitor.register(IfNode.class,                   this::ifStmt);
+        visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ReturnNode.class,               this::returnStmt);
+
+        // other declarations (structures, fields, parameters) have no run-time effect
+        visitor.registerFallback(node -> null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public VMProgram compile (RootNode root)
+    {
+        attributes = FrozenAttributes.freeze(reactor, root);
+        rootScope = attributes.scope(root);
+        VMFunction main = new VMFunction("<main>", 0);
+        main.paramSlots = new int[0];
+        main.paramKinds = new byte[0];
+        main.returnKind = OBJECT;
+        compileBody(main, attributes.frameSize(root), root.statements);
+
+        while (!pending.isEmpty()) {
+            FunDeclarationNode decl = pending.removeFirst();
+            compileBody(function(decl), attributes.frameSize(decl), decl.block.statements);
+        }
+
+        return new VMProgram(main, functions);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void compileBody (VMFunction function, int frameSize, List<StatementNode> statements)
+    {
+        this.function = function;
+        this.code = new int[64];
+        this.size = 0;
+        this.constants = new ArrayList<>();
+        this.constantIndices = new HashMap<>();
+        this.longConstants = new long[8];
+        this.longCount = 0;
+        this.frameSize = frameSize;
+        this.nextPrimitive = maxPrimitive = frameSize;
+        this.nextObject = maxObject = frameSize;
+
+        statements.forEach(this::statement);
+        emitReturn(); // implicit return at the end of the body
+
+        function.code = Arrays.copyOf(code, size);
+        function.constants = constants.toArray();
+        function.longConstants = Arrays.copyOf(longConstants, longCount);
+        function.primitiveCount = maxPrimitive;
+        function.objectCount = maxObject;
+    }
+
+    // =============================================================================================
+    // region [Utilities]
+    // =============================================================================================
+
+    private void emit (int... words)
+    {
+        if (size + words.length > code.length)
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+        System.arraycopy(words, 0, code, size, words.length);
+        size += words.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Emits a jump instruction whose target is to be patched, and returns the patch position. */
+    private int jump (int... words) {
+        emit(words);
+        return size - 1;
+    }
+
+    /** Makes the jump whose target is at position {@code patch} jump to the current position. */
+    private void land (int patch) {
+        code[patch] = size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int constant (Object value)
+    {
+        // Strings are compared by reference and nodes have structural equality: only pool values
+        // with the same identity, except for boxed primitives and constructors.
+        Object key = value instanceof Number
+                || value instanceof Boolean
+                || value instanceof Constructor
+            ? value
+            : new IdentityKey(value);
+        Integer index = constantIndices.get(key);
+        if (index != null) return index;
+        constants.add(value);
+        constantIndices.put(key, constants.size() - 1);
+        return constants.size() - 1;
+    }
+
+    private static final class IdentityKey {
+        final Object value;
+        IdentityKey (Object value) { this.value = value; }
+        @Override public int hashCode () { return System.identityHashCode(value); }
+        @Override public boolean equals (Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).value == value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int longConstant (long value)
+    {
+        for (int i = 0; i < longCount; ++i)
+            if (longConstants[i] == value) return i;
+        if (longCount == longConstants.length)
+            longConstants = Arrays.copyOf(longConstants, longCount * 2);
+        longConstants[longCount] = value;
+        return longCount++;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int temporary (boolean primitive)
+    {
+        if (primitive) {
+            maxPrimitive = Math.max(maxPrimitive, nextPrimitive + 1);
+            return nextPrimitive++;
+        } else {
+            maxObject = Math.max(maxObject, nextObject + 1);
+            return nextObject++;
+        }
+    }
+
+    /** Returns {@code dest} if it is a register, or a new temporary otherwise. */
+    private int target (int dest, boolean primitive) {
+        return dest >= 0 ? dest : temporary(primitive);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Type type (SighNode node) {
+        return attributes.type(node);
+    }
+
+    private int slot (DeclarationNode decl) {
+        return attributes.slot(decl);
+    }
+
+    private int depth (DeclarationNode decl) {
+        return attributes.depth(decl);
+    }
+
+    private boolean isLocal (DeclarationNode decl) {
+        return depth(decl) == function.depth;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private VMFunction function (FunDeclarationNode decl)
+    {
+        VMFunction function = functions.get(decl);
+        if (function != null) return function;
+
+        function = new VMFunction(decl.name, attributes.depth(decl));
+        FunType type = attributes.type(decl);
+        function.paramSlots = decl.parameters.stream().mapToInt(this::slot).toArray();
+        function.paramKinds = new byte[type.paramTypes.length];
+        for (int i = 0; i < type.paramTypes.length; ++i)
+            function.paramKinds[i] = kind(type.paramTypes[i]);
+        function.returnKind = kind(type.returnType);
+        functions.put(decl, function);
+        return function;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether evaluating the expression may write variables. If so, operands that were evaluated
+     * before it must not be left in the registers of local variables.
+     */
+    private static boolean hasSideEffects (ExpressionNode node)
+    {
+        if (node instanceof FunCallNode || node instanceof AssignmentNode)
+            return true;
+        if (node instanceof ParenthesizedNode)
+            return hasSideEffects(((ParenthesizedNode) node).expression);
+        if (node instanceof UnaryExpressionNode)
+            return hasSideEffects(((UnaryExpressionNode) node).operand);
+        if (node instanceof BinaryExpressionNode)
+            return hasSideEffects(((BinaryExpressionNode) node).left)
+                || hasSideEffects(((BinaryExpressionNode) node).right);
+        if (node instanceof ArrayAccessNode)
+            return hasSideEffects(((ArrayAccessNode) node).array)
+                || hasSideEffects(((ArrayAccessNode) node).index);
+        if (node instanceof FieldAccessNode)
+            return hasSideEffects(((FieldAccessNode) node).stem);
+        if (node instanceof ArrayLiteralNode)
+            return ((ArrayLiteralNode) node).components.stream()
+                .anyMatch(VMCompiler::hasSideEffects);
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Copies {@code reg} to a temporary if it is a variable register and {@code next} (evaluated
+     * after it) may write variables.
+     */
+    private int protect (int reg, boolean primitive, ExpressionNode next)
+    {
+        if (reg >= frameSize || !hasSideEffects(next))
+            return reg;
+        int temp = temporary(primitive);
+        emit(primitive ? PMOVE : OMOVE, temp, reg);
+        return temp;
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Primitive Expressions]
+    // =============================================================================================
+
+    /**
+     * Compiles an expression whose value lives in a primitive register, if it is a reference to a
+     * variable or a direct call. Returns -1 if the expression is of another kind.
+     */
+    private int compilePrimitiveLeaf (ExpressionNode node, int dest)
+    {
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node);
+            if (!(decl instanceof VarDeclarationNode || decl instanceof ParameterNode))
+                return -1;
+            return load(decl, dest, true);
+        }
+
+        if (node instanceof FunCallNode) {
+            FunDeclarationNode decl = directCallee((FunCallNode) node);
+            if (decl != null)
+                return directCall((FunCallNode) node, decl, dest);
+        }
+
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Compiles an expression of type {@code Int}. */
+    private int compileLong (ExpressionNode node, int dest)
+    {
+        if (node instanceof IntLiteralNode) {
+            int d = target(dest, true);
+            emit(LCONST, d, longConstant(((IntLiteralNode) node).value));
+            return d;
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return compileLong(((ParenthesizedNode) node).expression, dest);
+
+        if (node instanceof BinaryExpressionNode) {
+            // Int-valued binary expressions are always arithmetic between two Int operands.
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            int left  = protect(compileLong(binary.left, -1), true, binary.right);
+            int right = compileLong(binary.right, -1);
+            int d = target(dest, true);
+            emit(arithmeticOpcode(binary.operator, LADD), d, left, right);
+            return d;
+        }
+
+        if (node instanceof ArrayAccessNode)
+            return arrayAccess((ArrayAccessNode) node, LARRAY_GET, dest);
+
+        int reg = compilePrimitiveLeaf(node, dest);
+        if (reg >= 0) return reg;
+
+        int object = compileObject(node, -1);
+        int d = target(dest, true);
+        emit(UNBOX_LONG, d, object);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Compiles an expression of type {@code Float} or {@code Int} (promoted). */
+    private int compileDouble (ExpressionNode node, int dest)
+    {
+        if (type(node) instanceof IntType) {
+            int value = compileLong(node, -1);
+            int d = target(dest, true);
+            emit(L2D, d, value);
+            return d;
+        }
+
+        if (node instanceof FloatLiteralNode) {
+            int d = target(dest, true);
+            double value = ((FloatLiteralNode) node).value;
+            emit(LCONST, d, longConstant(Double.doubleToRawLongBits(value)));
+            return d;
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return compileDouble(((ParenthesizedNode) node).expression, dest);
+
+        if (node instanceof BinaryExpressionNode) {
+            // Float-valued binary expressions are always arithmetic with a Float operand.
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            int left  = protect(compileDouble(binary.left, -1), true, binary.right);
+            int right = compileDouble(binary.right, -1);
+            int d = target(dest, true);
+            emit(arithmeticOpcode(binary.operator, DADD), d, left, right);
+            return d;
+        }
+
+        if (node instanceof ArrayAccessNode)
+            return arrayAccess((ArrayAccessNode) node, DARRAY_GET, dest);
+
+        int reg = compilePrimitiveLeaf(node, dest);
+        if (reg >= 0) return reg;
+
+        // Not necessarily a Double, e.g. the result of an Int function used as a Float function.
+        int object = compileObject(node, -1);
+        int d = target(dest, true);
+        emit(UNBOX_DOUBLE, d, object);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int arithmeticOpcode (BinaryOperator operator, int add)
+    {
+        switch (operator) {
+            case ADD:       return add;
+            case SUBTRACT:  return add + (LSUB - LADD);
+            case MULTIPLY:  return add + (LMUL - LADD);
+            case DIVIDE:    return add + (LDIV - LADD);
+            case REMAINDER: return add + (LREM - LADD);
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Compiles an expression of type {@code Bool}. */
+    private int compileBool (ExpressionNode node, int dest)
+    {
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = attributes.decl(node);
+            if (decl instanceof SyntheticDeclarationNode) {
+                // only true and false are built-in Bool variables
+                int d = target(dest, true);
+                emit(LCONST, d, longConstant(decl == rootScope._true ? 1 : 0));
+                return d;
+            }
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return compileBool(((ParenthesizedNode) node).expression, dest);
+
+        if (node instanceof UnaryExpressionNode) {
+            // there is only NOT
+            int operand = compileBool(((UnaryExpressionNode) node).operand, -1);
+            int d = target(dest, true);
+            emit(NOT, d, operand);
+            return d;
+        }
+
+        if (node instanceof BinaryExpressionNode)
+            return compileBoolBinary((BinaryExpressionNode) node, dest);
+
+        if (node instanceof ArrayAccessNode)
+            return arrayAccess((ArrayAccessNode) node, BARRAY_GET, dest);
+
+        int reg = compilePrimitiveLeaf(node, dest);
+        if (reg >= 0) return reg;
+
+        int object = compileObject(node, -1);
+        int d = target(dest, true);
+        emit(UNBOX_BOOL, d, object);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int compileBoolBinary (BinaryExpressionNode node, int dest)
+    {
+        if (node.operator == BinaryOperator.AND || node.operator == BinaryOperator.OR) {
+            // Use a temporary: the destination variable might be used by the right operand.
+            int d = temporary(true);
+            compileBool(node.left, d);
+            int patch = jump(node.operator == BinaryOperator.AND ? JUMP_IF_FALSE : JUMP_IF_TRUE,
+                d, -1);
+            compileBool(node.right, d);
+            land(patch);
+            if (dest >= 0) {
+                emit(PMOVE, dest, d);
+                return dest;
+            }
+            return d;
+        }
+
+        Type leftType  = type(node.left);
+        Type rightType = type(node.right);
+        int left, right, base;
+
+        if (leftType instanceof FloatType || rightType instanceof FloatType) {
+            left  = protect(compileDouble(node.left, -1), true, node.right);
+            right = compileDouble(node.right, -1);
+            base  = DEQ;
+        } else if (leftType instanceof IntType || leftType instanceof BoolType) {
+            // Bool values are 0 or 1 and can be compared as integers.
+            left  = leftType instanceof IntType
+                ? compileLong(node.left, -1)
+                : compileBool(node.left, -1);
+            left  = protect(left, true, node.right);
+            right = leftType instanceof IntType
+                ? compileLong(node.right, -1)
+                : compileBool(node.right, -1);
+            base  = LEQ;
+        } else {
+            left  = protect(compileObject(node.left, -1), false, node.right);
+            right = compileObject(node.right, -1);
+            base  = OEQ;
+        }
+
+        int opcode;
+        switch (node.operator) {
+            case EQUALITY:      opcode = base; break;
+            case NOT_EQUALS:    opcode = base + 1; break;
+            case LOWER:         opcode = base + (LLT - LEQ); break;
+            case LOWER_EQUAL:   opcode = base + (LLE - LEQ); break;
+            case GREATER:       opcode = base + (LGT - LEQ); break;
+            case GREATER_EQUAL: opcode = base + (LGE - LEQ); break;
+            default:
+                throw new Error("should not reach here");
+        }
+
+        int d = target(dest, true);
+        emit(opcode, d, left, right);
+        return d;
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Object Expressions]
+    // =============================================================================================
+
+    /** Compiles an expression to an object register, boxing primitive values. */
+    private int compileObject (ExpressionNode node, int dest)
+    {
+        if (node instanceof IntLiteralNode)
+            return objectConstant(((IntLiteralNode) node).value, dest);
+        if (node instanceof FloatLiteralNode)
+            return objectConstant(((FloatLiteralNode) node).value, dest);
+        if (node instanceof StringLiteralNode)
+            return objectConstant(((StringLiteralNode) node).value, dest);
+        if (node instanceof ParenthesizedNode)
+            return compileObject(((ParenthesizedNode) node).expression, dest);
+        if (node instanceof ReferenceNode)
+            return reference((ReferenceNode) node, dest);
+        if (node instanceof ConstructorNode)
+            return objectConstant(
+                new Constructor(attributes.decl(((ConstructorNode) node).ref)), dest);
+        if (node instanceof ArrayLiteralNode)
+            return arrayLiteral((ArrayLiteralNode) node, dest);
+        if (node instanceof FieldAccessNode)
+            return fieldAccess((FieldAccessNode) node, dest);
+        if (node instanceof ArrayAccessNode)
+            return arrayAccess((ArrayAccessNode) node, dest);
+        if (node instanceof FunCallNode)
+            return funCall((FunCallNode) node, dest);
+        if (node instanceof AssignmentNode)
+            return assignment((AssignmentNode) node, dest);
+
+        // unary & binary expressions
+        Type type = type(node);
+        if (type instanceof IntType)
+            return box(BOX_LONG, compileLong(node, -1), dest);
+        if (type instanceof FloatType)
+            return box(BOX_DOUBLE, compileDouble(node, -1), dest);
+        if (type instanceof BoolType)
+            return box(BOX_BOOL, compileBool(node, -1), dest);
+
+        // string concatenation
+        BinaryExpressionNode binary = (BinaryExpressionNode) node;
+        int left  = protect(compileString(binary.left), false, binary.right);
+        int right = compileString(binary.right);
+        int d = target(dest, false);
+        emit(CONCAT, d, left, right);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int compileString (ExpressionNode node)
+    {
+        int value = compileObject(node, -1);
+        if (node instanceof StringLiteralNode)
+            return value;
+        int d = temporary(false);
+        emit(TO_STRING, d, value);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int objectConstant (Object value, int dest) {
+        int d = target(dest, false);
+        emit(OCONST, d, constant(value));
+        return d;
+    }
+
+    private int box (int opcode, int reg, int dest) {
+        int d = target(dest, false);
+        emit(opcode, d, reg);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int reference (ReferenceNode node, int dest)
+    {
+        DeclarationNode decl = attributes.decl(node);
+
+        if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
+            byte kind = kind(type(decl));
+            if (kind == OBJECT)
+                return load(decl, dest, false);
+            return box(kind == LONG ? BOX_LONG : kind == DOUBLE ? BOX_DOUBLE : BOX_BOOL,
+                load(decl, -1, true), dest);
+        }
+
+        if (decl instanceof SyntheticDeclarationNode
+                && ((SyntheticDeclarationNode) decl).kind() == DeclarationKind.VARIABLE)
+            return objectConstant(decl == rootScope._true
+                ? Boolean.TRUE
+                : decl == rootScope._false
+                    ? Boolean.FALSE
+                    : Null.INSTANCE,
+                dest);
+
+        return objectConstant(decl, dest); // structure or function
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Loads the given variable from the primitive or object register file. */
+    private int load (DeclarationNode decl, int dest, boolean primitive)
+    {
+        int slot = slot(decl);
+        if (isLocal(decl)) {
+            if (dest < 0 || dest == slot) return slot;
+            emit(primitive ? PMOVE : OMOVE, dest, slot);
+            return dest;
+        }
+        int d = target(dest, primitive);
+        emit(primitive ? PLOAD_OUTER : OLOAD_OUTER, d, depth(decl), slot);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int arrayLiteral (ArrayLiteralNode node, int dest)
+    {
+        // Arrays of Int, Float and Bool are built from primitive registers.
+        byte kind = kind(((ArrayType) type(node)).componentType);
+        boolean primitive = kind != OBJECT;
+        int count = node.components.size();
+        int first = primitive ? nextPrimitive : nextObject;
+        for (int i = 0; i < count; ++i)
+            temporary(primitive);
+        for (int i = 0; i < count; ++i) {
+            ExpressionNode component = node.components.get(i);
+            if (kind == LONG)
+                compileLong(component, first + i);
+            else if (kind == DOUBLE)
+                compileDouble(component, first + i);
+            else if (kind == BOOL)
+                compileBool(component, first + i);
+            else
+                compileObject(component, first + i);
+        }
+        int d = target(dest, false);
+        emit(kind == LONG ? NEW_LARRAY
+            : kind == DOUBLE ? NEW_DARRAY
+            : kind == BOOL ? NEW_BARRAY
+            : NEW_ARRAY,
+            d, first, count);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int fieldAccess (FieldAccessNode node, int dest)
+    {
+        int stem = compileObject(node.stem, -1);
+
+        if (type(node.stem) instanceof ArrayType) { // only field on arrays
+            int length = temporary(true);
+            emit(ARRAY_LENGTH, length, stem);
+            return box(BOX_LONG, length, dest);
+        }
+
+        int d = target(dest, false);
+        emit(FIELD_GET, d, stem, attributes.fieldIndex(node));
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int arrayAccess (ArrayAccessNode node, int dest) {
+        return arrayAccess(node, ARRAY_GET, dest);
+    }
+
+    /**
+     * Compiles an array access with the given opcode: {@code ARRAY_GET} to an object register, or
+     * one of the primitive {@code *ARRAY_GET} opcodes to a primitive register.
+     */
+    private int arrayAccess (ArrayAccessNode node, int opcode, int dest)
+    {
+        int array = protect(compileObject(node.array, -1), false, node.index);
+        int index = compileLong(node.index, -1);
+        int d = target(dest, opcode != ARRAY_GET);
+        emit(opcode, d, array, index);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private FunDeclarationNode directCallee (FunCallNode node)
+    {
+        if (!(node.function instanceof ReferenceNode)) return null;
+        DeclarationNode decl = attributes.decl(node.function);
+        return decl instanceof FunDeclarationNode ? (FunDeclarationNode) decl : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int funCall (FunCallNode node, int dest)
+    {
+        FunDeclarationNode decl = directCallee(node);
+        if (decl != null) {
+            byte kind = function(decl).returnKind;
+            switch (kind) {
+                case LONG:   return box(BOX_LONG,   directCall(node, decl, -1), dest);
+                case DOUBLE: return box(BOX_DOUBLE, directCall(node, decl, -1), dest);
+                case BOOL:   return box(BOX_BOOL,   directCall(node, decl, -1), dest);
+                default:     return directCall(node, decl, dest); // object or void
+            }
+        }
+
+        if (node.function instanceof ReferenceNode
+                && attributes.decl(node.function) == rootScope.print) {
+            int arg = compileObject(node.arguments.get(0), -1);
+            int d = target(dest, false);
+            emit(PRINT, d, arg);
+            return d;
+        }
+
+        int first = nextObject;
+        int count = node.arguments.size();
+        for (int i = 0; i < count; ++i)
+            temporary(false);
+
+        if (node.function instanceof ConstructorNode) {
+            for (int i = 0; i < count; ++i)
+                compileObject(node.arguments.get(i), first + i);
+            StructDeclarationNode struct =
+                attributes.decl(((ConstructorNode) node.function).ref);
+            int d = target(dest, false);
+            emit(NEW_STRUCT, d, constant(struct), first, count);
+            return d;
+        }
+
+        // The function is evaluated before the arguments, in a register it can't be evicted from.
+        int function = compileObject(node.function, temporary(false));
+        for (int i = 0; i < count; ++i)
+            compileObject(node.arguments.get(i), first + i);
+        int d = target(dest, false);
+        emit(CALL, d, function, first, count);
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a call to a known function, whose arguments are passed unboxed. The result is in a
+     * register of the file matching the function's return kind.
+     */
+    private int directCall (FunCallNode node, FunDeclarationNode decl, int dest)
+    {
+        VMFunction callee = function(decl);
+        int count = node.arguments.size();
+        int[] words = new int[3 + count];
+        words[0] = CALL_DIRECT;
+        words[2] = constant(callee);
+
+        for (int i = 0; i < count; ++i) {
+            ExpressionNode arg = node.arguments.get(i);
+            byte kind = callee.paramKinds[i];
+            int reg;
+            switch (kind) {
+                case LONG:   reg = compileLong(arg, -1);   break;
+                case DOUBLE: reg = compileDouble(arg, -1); break;
+                case BOOL:   reg = compileBool(arg, -1);   break;
+                default:     reg = compileObject(arg, -1);
+            }
+            // Later arguments may write the variable.
+            for (int j = i + 1; j < count; ++j)
+                reg = protect(reg, kind != OBJECT, node.arguments.get(j));
+            words[3 + i] = reg;
+        }
+
+        boolean primitive = callee.returnKind != OBJECT && callee.returnKind != VOID;
+        words[1] = target(dest, primitive);
+        emit(words);
+        return words[1];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int assignment (AssignmentNode node, int dest)
+    {
+        if (node.left instanceof ReferenceNode) {
+            assignVariable(node);
+            return compileObject(node.left, dest);
+        }
+
+        if (node.left instanceof ArrayAccessNode) {
+            byte kind = kind(type(node.right));
+            int value = assignElement(node, kind == OBJECT ? dest : -1);
+            return kind == OBJECT ? value
+                : box(kind == LONG ? BOX_LONG : kind == DOUBLE ? BOX_DOUBLE : BOX_BOOL, value, dest);
+        }
+
+        if (node.left instanceof FieldAccessNode) {
+            FieldAccessNode fieldAccess = (FieldAccessNode) node.left;
+            int struct = protect(compileObject(fieldAccess.stem, -1), false, node.right);
+            int value = compileObject(node.right, dest);
+            emit(FIELD_SET, struct, attributes.fieldIndex(fieldAccess), value);
+            return value;
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an assignment to an array element, and returns the register holding the assigned
+     * value: primitive values are stored without boxing them.
+     */
+    private int assignElement (AssignmentNode node, int dest)
+    {
+        ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
+        int array = protect(compileObject(arrayAccess.array, -1), false, arrayAccess.index);
+        array = protect(array, false, node.right);
+        int index = protect(compileLong(arrayAccess.index, -1), true, node.right);
+        byte kind = kind(type(node.right));
+        int value;
+
+        if (kind == LONG)
+            emit(LARRAY_SET, array, index, value = compileLong(node.right, dest));
+        else if (kind == DOUBLE)
+            emit(DARRAY_SET, array, index, value = compileDouble(node.right, dest));
+        else if (kind == BOOL)
+            emit(BARRAY_SET, array, index, value = compileBool(node.right, dest));
+        else
+            emit(ARRAY_SET, array, index, value = compileObject(node.right, dest));
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assignVariable (AssignmentNode node)
+    {
+        DeclarationNode decl = attributes.decl(node.left);
+        if (decl instanceof SyntheticDeclarationNode)
+            throw new UnsupportedOperationException("assigning to a built-in variable");
+        assign(decl, node.right);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the evaluation of {@code value} and its assignment to the variable or parameter
+     * declared by {@code decl}. Performs the implicit Int to Float conversion if needed.
+     */
+    private void assign (DeclarationNode decl, ExpressionNode value)
+    {
+        byte kind = kind(type(decl));
+        boolean primitive = kind != OBJECT;
+        boolean local = isLocal(decl);
+        int dest = local ? slot(decl) : -1;
+        int reg;
+
+        switch (kind) {
+            case LONG:   reg = compileLong(value, dest);   break;
+            case DOUBLE: reg = compileDouble(value, dest); break;
+            case BOOL:   reg = compileBool(value, dest);   break;
+            default:     reg = compileObject(value, dest);
+        }
+
+        if (!local)
+            emit(primitive ? PSTORE_OUTER : OSTORE_OUTER, depth(decl), slot(decl), reg);
+    }
+
+    // endregion
+    // =============================================================================================
+    // region [Statements]
+    // =============================================================================================
+
+    private void statement (SighNode node)
+    {
+        // Temporaries do not outlive statements.
+        int primitiveMark = nextPrimitive;
+        int objectMark = nextObject;
+        visitor.apply(node);
+        nextPrimitive = primitiveMark;
+        nextObject = objectMark;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void block (BlockNode node) {
+        node.statements.forEach(this::statement);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void varDecl (VarDeclarationNode node) {
+        assign(node, node.initializer);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void funDecl (FunDeclarationNode node) {
+        function(node);
+        pending.addLast(node);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void expressionStmt (ExpressionStatementNode node)
+    {
+        ExpressionNode expression = node.expression;
+
+        if (expression instanceof AssignmentNode
+                && ((AssignmentNode) expression).left instanceof ReferenceNode)
+            assignVariable((AssignmentNode) expression); // avoids boxing the value
+        else if (expression instanceof AssignmentNode
+                && ((AssignmentNode) expression).left instanceof ArrayAccessNode)
+            assignElement((AssignmentNode) expression, -1); // idem
+        else if (expression instanceof FunCallNode && directCallee((FunCallNode) expression) != null)
+            directCall((FunCallNode) expression, directCallee((FunCallNode) expression), -1);
+        else
+            compileObject(expression, -1);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void ifStmt (IfNode node)
+    {
+        int condition = compileBool(node.condition, -1);
+        int toFalse = jump(JUMP_IF_FALSE, condition, -1);
+        statement(node.trueStatement);
+
+        if (node.falseStatement == null) {
+            land(toFalse);
+            return null;
+        }
+
+        int toEnd = jump(JUMP, -1);
+        land(toFalse);
+        statement(node.falseStatement);
+        land(toEnd);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void whileStmt (WhileNode node)
+    {
+        int start = size;
+        int condition = compileBool(node.condition, -1);
+        int toEnd = jump(JUMP_IF_FALSE, condition, -1);
+        statement(node.body);
+        emit(JUMP, start);
+        land(toEnd);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void returnStmt (ReturnNode node)
+    {
+        if (node.expression == null) {
+            emitReturn();
+            return null;
+        }
+
+        switch (function.returnKind) {
+            case LONG:   emit(RETURN_P, compileLong(node.expression, -1));   break;
+            case DOUBLE: emit(RETURN_P, compileDouble(node.expression, -1)); break;
+            case BOOL:   emit(RETURN_P, compileBool(node.expression, -1));   break;
+            default:     emit(RETURN_O, compileObject(node.expression, -1));
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Emits a return without value (which returns null from the top-level code). */
+    private void emitReturn ()
+    {
+        if (function.returnKind == OBJECT)
+            emit(RETURN_O, objectConstant(null, -1));
+        else
+            emit(RETURN);
+    }
+
+    // endregion
+    // =============================================================================================
+}
@@ -0,0 +1,41 @@
+package norswap.sigh.vm;
+
+/**
+ * The registers of a function invocation (or of the top-level code) in the {@link VM}.
+ *
+ * <p>Like the interpreter's frames, there are two register files: one for primitive values and one
+ * for objects. The first registers hold the variables declared in the function (at the slot
+ * assigned by semantic analysis), the following hold temporaries.
+ *
+ * <p>Frames are linked to the frame of their caller, forming the call stack of the VM on the heap.
+ * When a frame is not the one executing, it records where to resume its execution and where to
+ * store the result of the pending call.
+ */
+final class VMFrame
+{
+    final VMFunction function;
+    final int depth;
+
+    /** The frame of the caller, or null for the top-level frame. */
+    final VMFrame parent;
+
+    final long[] primitives;
+    final Object[] objects;
+
+    /** Index of the next instruction to execute when resuming this frame. */
+    int pc;
+
+    /** Register in which to store the result of the pending call. */
+    int resultRegister;
+
+    /** Whether the result of the pending call must be boxed (call through a function value). */
+    boolean boxResult;
+
+    VMFrame (VMFunction function, VMFrame parent) {
+        this.function = function;
+        this.depth = function.depth;
+        this.parent = parent;
+        this.primitives = new long[function.primitiveCount];
+        this.objects = new Object[function.objectCount];
+    }
+}
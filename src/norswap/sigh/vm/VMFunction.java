@@ -0,0 +1,70 @@
+package norswap.sigh.vm;
+
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+import norswap.sigh.types.VoidType;
+
+/**
+ * A function (or the top-level code) compiled for the {@link VM}.
+ *
+ * <p>Instances are created as soon as the function is referenced, and their fields are filled when
+ * the function body is compiled.
+ */
+public final class VMFunction
+{
+    // ---------------------------------------------------------------------------------------------
+
+    // Kinds of values, determining in which register file they live and how they are (un)boxed.
+
+    public static final byte VOID   = 0;
+    public static final byte LONG   = 1;
+    public static final byte DOUBLE = 2;
+    public static final byte BOOL   = 3;
+    public static final byte OBJECT = 4;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public final String name;
+
+    /** Depth of the function (0 for the top-level code), see {@code SemanticAnalysis}. */
+    public final int depth;
+
+    int[] code;
+    Object[] constants;
+    long[] longConstants;
+
+    /** Number of registers in each register file. */
+    int primitiveCount, objectCount;
+
+    int[] paramSlots;
+    byte[] paramKinds;
+    byte returnKind;
+
+    // ---------------------------------------------------------------------------------------------
+
+    VMFunction (String name, int depth) {
+        this.name = name;
+        this.depth = depth;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static byte kind (Type type)
+    {
+        if (type instanceof IntType)    return LONG;
+        if (type instanceof FloatType)  return DOUBLE;
+        if (type instanceof BoolType)   return BOOL;
+        if (type instanceof VoidType)   return VOID;
+        return OBJECT;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,21 @@
+package norswap.sigh.vm;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import java.util.IdentityHashMap;
+
+/**
+ * A program compiled by {@link VMCompiler}, to be run by the {@link VM}.
+ */
+public final class VMProgram
+{
+    /** The top-level code. */
+    public final VMFunction main;
+
+    /** Maps function values (represented by their declaration) to their compiled code. */
+    final IdentityHashMap<FunDeclarationNode, VMFunction> functions;
+
+    VMProgram (VMFunction main, IdentityHashMap<FunDeclarationNode, VMFunction> functions) {
+        this.main = main;
+        this.functions = functions;
+    }
+}
@@ -1,19 +1,41 @@
 import norswap.autumn.Autumn;
 import norswap.autumn.ParseOptions;
 import norswap.autumn.ParseResult;
+import norswap.sigh.AllocationQuotaExceededException;
+import norswap.sigh.OutOfFuelException;
+import norswap.sigh.OutputSink;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
+import norswap.sigh.SighRunner;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.bytecode.ByteArrayClassLoader;
 import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationCache;
 import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.optimizer.Optimizer;
 import norswap.uranium.Reactor;
 import norswap.utils.IO;
+import norswap.utils.exceptions.NoStackException;
 import norswap.utils.visitors.Walker;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 import org.testng.annotations.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
 
 import static norswap.utils.Util.cast;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class BytecodeTests
@@ -24,30 +46,19 @@ public class BytecodeTests
 
     /**
      * Checks that the input program can be compiled, run and prints the {@code expected} string if
-     * non-null (to which a newline is appended if not empty).
+     * non-null (to which a newline is appended if not empty), with and without optimizations.
      */
-    public void check (String input, String expected)
-    {
-        SighGrammar grammar = new SighGrammar();
-        ParseOptions options = ParseOptions.builder().recordCallStack(true).get();
-        ParseResult parseResult = Autumn.parse(grammar.root, input, options);
-        if (!parseResult.fullMatch) throw new AssertionError(parseResult.toString());
-
-        SighNode tree = cast(parseResult.topValue());
-        Reactor reactor = new Reactor();
-        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        walker.walk(tree);
-        reactor.run();
-
-        if (!reactor.errors().isEmpty())
-            throw new AssertionError(reactor.reportErrors(Object::toString));
+    public void check (String input, String expected) {
+        check(input, expected, false);
+        check(input, expected, true);
+    }
 
-        String className = "BytecodeTestsRun";
-        BytecodeCompiler compiler = new BytecodeCompiler(reactor);
-        CompilationResult result = compiler.compile(className, tree);
+    // ---------------------------------------------------------------------------------------------
 
+    private void check (String input, String expected, boolean optimize)
+    {
         // using a new loader each time allows to overwrite the class every time.
-        Class<?> mainClass = result.load(new ByteArrayClassLoader());
+        Class<?> mainClass = compile(input, false, false, optimize);
 
         if (expected == null) {
             CompilationResult.callMain(mainClass);
@@ -68,6 +79,96 @@ public class BytecodeTests
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Compiles the input program and loads the generated classes in a new class loader, returning
+     * the main class.
+     */
+    private Class<?> compile (String input, boolean meterFuel, boolean meterAllocations) {
+        return compile(input, meterFuel, meterAllocations, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #compile(String, boolean, boolean)}, optimizing the program first if {@code
+     * optimize} is true.
+     */
+    private Class<?> compile (String input, boolean meterFuel, boolean meterAllocations,
+            boolean optimize) {
+        return compileResult(input, meterFuel, meterAllocations, optimize)
+            .load(new ByteArrayClassLoader());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #compile(String, boolean, boolean, boolean)}, but returns the generated classes
+     * without loading them.
+     */
+    private CompilationResult compileResult (String input, boolean meterFuel,
+            boolean meterAllocations, boolean optimize)
+    {
+        SighGrammar grammar = new SighGrammar();
+        ParseOptions options = ParseOptions.builder().recordCallStack(true).get();
+        ParseResult parseResult = Autumn.parse(grammar.root, input, options);
+        if (!parseResult.fullMatch) throw new AssertionError(parseResult.toString());
+
+        SighNode tree = cast(parseResult.topValue());
+        Reactor reactor = new Reactor();
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
+        walker.walk(tree);
+        reactor.run();
+
+        if (!reactor.errors().isEmpty())
+            throw new AssertionError(reactor.reportErrors(Object::toString));
+
+        if (optimize) {
+            tree = Optimizer.optimize(reactor, cast(tree));
+            reactor = Optimizer.analyze(cast(tree));
+        }
+
+        String className = "BytecodeTestsRun";
+        BytecodeCompiler compiler = new BytecodeCompiler(reactor);
+        compiler.setFuelMetering(meterFuel);
+        compiler.setAllocationMetering(meterAllocations);
+        return compiler.compile(className, tree);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of instructions with the given opcode in the method compiled from the
+     * top-level code of the input program.
+     */
+    private int count (String input, int opcode)
+    {
+        int[] count = { 0 };
+        MethodVisitor counter = new MethodVisitor(Opcodes.ASM5) {
+            @Override public void visitInsn (int op) {
+                if (op == opcode) ++count[0];
+            }
+            @Override public void visitVarInsn (int op, int index) {
+                if (op == opcode) ++count[0];
+            }
+            @Override public void visitJumpInsn (int op, org.objectweb.asm.Label label) {
+                if (op == opcode) ++count[0];
+            }
+            @Override public void visitIincInsn (int index, int increment) {
+                if (opcode == Opcodes.IINC) ++count[0];
+            }
+        };
+        byte[] bytes = compileResult(input, false, false, false).mainClass.bytes();
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override public MethodVisitor visitMethod (int access, String name, String descriptor,
+                    String signature, String[] exceptions) {
+                return name.equals("$run") ? counter : null;
+            }
+        }, 0);
+        return count[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Checks that the input <b>expression</b> can be converted to a string and printed, and that the printed
      * string corresponds to the {@code expected} string.
@@ -87,6 +188,8 @@ public class BytecodeTests
         check("print(\"\" + 1 + 2)", "12");
         check("print(1 + 2 + \"\")", "3");
         check("print(\"\" + (1 + 2))", "3");
+        check("print(\"a\" + 1 + \"b\" + 2.5 + true + [1, 2] + null)", "a1b2.5true[1, 2]null");
+        check("print(1 + 2 + \"a\" + (1 + 2) + (\"b\" + 1))", "3a3b1");
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -183,6 +286,11 @@ public class BytecodeTests
         checkExpr("\"hi\" != \"hi2\"", "true");
         checkExpr("[1] != [1]", "true");
 
+        // strings are compared by identity, also when optimized
+        checkExpr("\"a\" + 1 == \"a\" + 1", "false");
+        check("var s: String = \"a\" + 1; var t: String = \"a1\"; print(\"\" + (s == t))",
+            "false");
+
         // test short circuit
         checkExpr("true || print(\"x\") == \"y\"", "true");
         checkExpr("false && print(\"x\") == \"y\"", "false");
@@ -258,13 +366,204 @@ public class BytecodeTests
         check("fun test () { fun foo() { print(\"a\") } foo() foo() } test()", "a\na");
     }
 
+    @Test public void testFunctionValues() {
+        check("fun sq (x: Int): Int { return x * x } print(\"\" + [sq][0](3))", "9");
+        check("fun a (): Int { return 1 } fun b (): Int { return 2 }" +
+            "print(\"\" + ([a, b][1]() * 10 + [a, b][0]()))", "21");
+        // erased reference types, implicit conversion of the argument
+        check("fun greet (s: String): String { return \"hi \" + s } print([greet][0](\"a\"))", "hi a");
+        check("fun half (x: Float): Float { return x / 2 } print(\"\" + [half][0](3))", "1.5");
+        // void function, print, constructor
+        check("fun hello () { print(\"hello\") } [hello][0]()", "hello");
+        check("[print][0](\"a\")", "a");
+        check("struct P { var x: Int } print(\"\" + [$P][0](4).x)", "4");
+        // references to the same function are equal
+        check("fun id (x: Int): Int { return x } print(\"\" + (id == id))", "true");
+        check("fun id (x: Int): Int { return x } print(\"\" + (id == [id][0]))", "true");
+        check("print(\"\" + (print == print))", "true");
+    }
+
+    @Test public void testClosures() {
+        // read-only captures: enclosing local, enclosing parameter, top-level variable
+        check("var k: Int = 10 " +
+            "fun outer (x: Int): Int { var y: Int = 2 fun inner (z: Int): Int { return x * y + z + k } " +
+            "return inner(1) } print(\"\" + outer(3))", "17");
+        // captures are passed through the functions calling a capturing function
+        check("fun outer (s: String): String { " +
+            "fun a (): String { return b() } fun b (): String { return s + \"!\" } " +
+            "return a() } print(outer(\"hi\"))", "hi!");
+        // mutated captures live in cells
+        check("fun count (): Int { var n: Int = 0 fun inc () { n = n + 1 } inc() inc() inc() return n } " +
+            "print(\"\" + count())", "3");
+        check("var total: Float = 0 fun add (x: Float) { total = total + x } " +
+            "add(1.5) add(2) print(\"\" + total)", "3.5");
+        check("fun last (b: Bool): Bool { fun flip () { b = !b } flip() return b } " +
+            "print(\"\" + last(true))", "false");
+        // the enclosing function sees the assignments, and vice versa
+        check("fun f (): String { var s: String = \"a\" fun g (): String { s = s + \"b\" return s } " +
+            "g() s = s + \"c\" return g() } print(f())", "abcb");
+        // function values capture their variables (or cells)
+        check("fun adder (n: Int): Int { fun add (x: Int): Int { return x + n } return [add][0](1) } " +
+            "print(\"\" + adder(41))", "42");
+        check("fun counter (): Int { var n: Int = 0 fun inc (): Int { n = n + 1 return n } " +
+            "var a: Int = [inc][0]() var b: Int = [inc][0]() return n } print(\"\" + counter())", "2");
+    }
+
     private final String makePair =
         "struct Pair { var x: Int ; var y: Float }" +
         "var x: Pair = $Pair(1, 2.0) ;";
 
+    @Test public void testIntVariables() {
+        String sum = "var a: Int[] = [1, 2, 3] var i: Int = 0 var s: Int = 0 "
+            + "while i < a.length { s = s + a[i] i = i + 1 } ";
+        check(sum + "print(\"\" + s + \" \" + i)", "6 3");
+        // i is stored in an int local, s is not
+        assertEquals(count(sum, Opcodes.L2I), 0);
+        assertEquals(count(sum, Opcodes.IINC), 1);
+        assertEquals(count(sum, Opcodes.IF_ICMPLT), 1);
+        assertEquals(count(sum, Opcodes.ISTORE), 1);
+
+        String down = "var a: Int[] = [1, 2, 3] var i: Int = a.length "
+            + "while i > 0 { i = i - 1 a[i] = i * 2 } ";
+        check(down + "print(\"\" + a[0] + a[1] + a[2] + i)", "0240");
+        assertEquals(count(down, Opcodes.L2I), 0);
+        assertEquals(count(down, Opcodes.IINC), 1);
+
+        // guarded by an if statement
+        String branch = "var i: Int = 0 var n: Int = 0 "
+            + "while n < 5 { if i < 2 { i = i + 1 } n = n + 1 } ";
+        check(branch + "print(\"\" + i + n)", "25");
+        assertEquals(count(branch, Opcodes.IINC), 2);
+
+        // values that may not fit in 32 bits
+        check("var x: Int = 65536 var y: Int = x * x print(\"\" + y)", "4294967296");
+        check("var x: Int = 2147483647 x = x + 1 print(\"\" + x)", "2147483648");
+        check("var i: Int = 2147483646 var n: Int = 0 "
+            + "while i <= 2147483647 && n < 3 { i = i + 1 n = n + 1 } print(\"\" + i + \" \" + n)",
+            "2147483648 2");
+        // i is assigned between the condition and the increment
+        check("var a: Int[] = [0] var i: Int = 0 var n: Int = 0 "
+            + "while i < a.length && n < 1 { i = 2147483647 i = i + 1 n = n + 1 } "
+            + "print(\"\" + i)", "2147483648");
+        // captured variables keep their representation
+        check("var i: Int = 0 fun f () { i = i + 1 } while i < 3 { f() } print(\"\" + i)", "3");
+    }
+
     @Test public void testStructs() {
         check(makePair + "print(\"\" + x.x + \":\" + x.y)", "1:2.0");
         check(makePair + "x.x = 3; print(\"\" + x.x)", "3");
         check(makePair + "x.y = 3; print(\"\" + x.y)", "3.0");
     }
+
+    @Test public void testFuel() throws NoSuchMethodException {
+        // 3000 calls and 3000 back-edges, the latter charged by batches
+        Class<?> calls = compile(
+            "fun f (x: Int): Int { return x + 1 }" +
+            "var i: Int = 0 ; while i < 3000 { i = f(i) } return i", true, false);
+        CompilationResult.setFuel(calls, 6000);
+        assertEquals(CompilationResult.callRun(calls, new String[0]), 3000L);
+        assertEquals(CompilationResult.remainingFuel(calls), 0L);
+        CompilationResult.setFuel(calls, 5000);
+        assertOutOfFuel(calls);
+
+        // returning from the loop charges its back-edges
+        Class<?> loop = compile(
+            "fun f (): Int {" +
+            "  var i: Int = 0 ; while true { i = i + 1 ; if i == 100 return i }" +
+            "  return -1 }" +
+            "return f()", true, false);
+        CompilationResult.setFuel(loop, 1000);
+        assertEquals(CompilationResult.callRun(loop, new String[0]), 100L);
+        assertEquals(CompilationResult.remainingFuel(loop), 1000L - 1 - 99);
+
+        // exhausted when a batch is charged
+        Class<?> batches = compile("var i: Int = 0 ; while i < 3000 { i = i + 1 }", true, false);
+        CompilationResult.setFuel(batches, 2000);
+        assertOutOfFuel(batches);
+
+        // executions run one at a time, as the budget is a static field
+        assertTrue(Modifier.isSynchronized(calls.getMethod("run", String[].class).getModifiers()));
+    }
+
+    private void assertOutOfFuel (Class<?> mainClass) {
+        try {
+            CompilationResult.callRun(mainClass);
+            fail("expected OutOfFuelException");
+        } catch (NoStackException e) {
+            // wraps the InvocationTargetException
+            assertTrue(e.getCause().getCause() instanceof OutOfFuelException);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testAllocationQuota() {
+        // 40 bytes for the array, 32 for the struct, 44 for the string "a1"
+        Class<?> cls = compile(
+            "struct P { var x: Int ; var y: Int }" +
+            "var a: Int[] = [1, 2, 3] ; var p: P = $P(1, 2) ; var s: String = \"a\" + 1" +
+            "return a[0]", false, true);
+        CompilationResult.setAllocationQuota(cls, 116);
+        assertEquals(CompilationResult.callRun(cls, new String[0]), 1L);
+        assertEquals(CompilationResult.remainingAllocationQuota(cls), 0L);
+
+        CompilationResult.setAllocationQuota(cls, 115);
+        try {
+            CompilationResult.callRun(cls);
+            fail("expected AllocationQuotaExceededException");
+        } catch (NoStackException e) {
+            assertTrue(e.getCause().getCause() instanceof AllocationQuotaExceededException);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testOutputSink() {
+        Class<?> cls = compile(
+            "var i: Int = -1; while i < 2 { print(\"i=\" + i + \" \" + i * 1.5) ; i = i + 1 }" +
+            "return print(\"h\u00e9llo \" + true)", false, false);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompilationResult.setOutput(cls, new OutputSink(bytes, 8));
+        assertEquals(CompilationResult.callRun(cls, new String[0]), "h\u00e9llo true");
+        String sep = System.lineSeparator();
+        assertEquals(new String(bytes.toByteArray(), StandardCharsets.UTF_8),
+            "i=-1 -1.5" + sep + "i=0 0.0" + sep + "i=1 1.5" + sep + "h\u00e9llo true" + sep);
+
+        // the whole string is evaluated before it is printed
+        check("fun f (): Int { print(\"X\") return 1 } print(\"a\" + f())", "X\na1");
+        Class<?> failing = compile("var a: Int[] = [1] print(\"start \" + a[3])", false, false);
+        bytes.reset();
+        CompilationResult.setOutput(failing, new OutputSink(bytes, 8));
+        assertThrows(RuntimeException.class,
+            () -> CompilationResult.callRun(failing, new String[0]));
+        assertEquals(bytes.size(), 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testCompilationCache() throws IOException {
+        Path directory = Files.createTempDirectory("sigh-cache");
+        CompilationCache cache = new CompilationCache(directory);
+        String source = "struct P { var x: Int } return $P(42).x";
+        String key = CompilationCache.key("CachedRun", source);
+
+        assertNull(cache.load(key));
+        CompilationResult compiled = new SighRunner().compile("CachedRun", source, cache);
+        assertEquals(CompilationResult.callRun(compiled.load(new ByteArrayClassLoader()), new String[0]), 42L);
+
+        // a hit does not compile again
+        CompilationResult cached = cache.computeIfAbsent(key, () -> {
+            throw new AssertionError("compiled again");
+        });
+        assertEquals(cached.structures.size(), 1);
+        assertEquals(CompilationResult.callRun(cached.load(new ByteArrayClassLoader()), new String[0]), 42L);
+
+        // files without a manifest are misses
+        String foreign = CompilationCache.key("CachedRun", source, "foreign");
+        Files.write(directory.resolve(foreign + ".jar"), new byte[0]);
+        assertNull(cache.load(foreign));
+
+        assertNotEquals(CompilationCache.key("CachedRun", source + " "), key);
+        assertNotEquals(CompilationCache.key("CachedRun", source, "fuel"), key);
+    }
 }
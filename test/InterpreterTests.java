@@ -3,11 +3,26 @@ import norswap.autumn.Grammar;
 import norswap.autumn.Grammar.rule;
 import norswap.autumn.ParseResult;
 import norswap.autumn.positions.LineMapString;
+import norswap.sigh.AllocationQuotaExceededException;
+import norswap.sigh.OutOfFuelException;
+import norswap.sigh.OutputSink;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
+import norswap.sigh.SighRunner;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.RootNode;
 import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.WhileNode;
+import norswap.sigh.interpreter.ClosureInterpreter;
 import norswap.sigh.interpreter.Interpreter;
 import norswap.sigh.interpreter.Null;
+import norswap.sigh.interpreter.PreparedProgram;
+import norswap.sigh.interpreter.Profiler;
+import norswap.sigh.interpreter.TieredCompilation;
+import norswap.sigh.optimizer.Optimizer;
+import norswap.sigh.vm.VM;
+import norswap.sigh.vm.VMCompiler;
+import norswap.sigh.vm.VMProgram;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
 import norswap.utils.IO;
@@ -15,11 +30,21 @@ import norswap.utils.TestFixture;
 import norswap.utils.data.wrappers.Pair;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
-import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
+import static norswap.utils.Util.cast;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
 
 public final class InterpreterTests extends TestFixture {
 
@@ -39,6 +64,19 @@ public final class InterpreterTests extends TestFixture {
 
     private Grammar.rule rule;
 
+    /**
+     * Number of execution modes: {@link Interpreter}, {@link ClosureInterpreter}, {@link VM},
+     * {@link Interpreter} with {@link TieredCompilation} (compiling every function on first call)
+     * and {@link Interpreter} on the tree optimized by the {@link Optimizer}.
+     */
+    private static final int MODES = 5;
+
+    /** The tiered compilation policy used during the last check in tiered mode. */
+    private TieredCompilation tiers;
+
+    /** If non-negative, only check this execution mode (used to check expected exceptions). */
+    private int onlyMode = -1;
+
     // ---------------------------------------------------------------------------------------------
 
     private void check (String input, Object expectedReturn) {
@@ -66,7 +104,6 @@ public final class InterpreterTests extends TestFixture {
 
         Reactor reactor = new Reactor();
         Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        Interpreter interpreter = new Interpreter(reactor);
         walker.walk(root);
         reactor.run();
         Set<SemanticError> errors = reactor.errors();
@@ -81,9 +118,46 @@ public final class InterpreterTests extends TestFixture {
             throw new AssertionError(report);
         }
 
-        Pair<String, Object> result = IO.captureStdout(() -> interpreter.interpret(root));
-        assertEquals(result.b, expectedReturn);
-        if (expectedOutput != null) assertEquals(result.a, expectedOutput);
+        // All execution modes must agree.
+        for (int mode = 0; mode < MODES; ++mode) {
+            if (onlyMode >= 0 && mode != onlyMode) continue;
+            Pair<String, Object> result = IO.captureStdout(execute(mode, reactor, root));
+            assertEquals(result.b, expectedReturn);
+            if (expectedOutput != null) assertEquals(result.a, expectedOutput);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Supplier<Object> execute (int mode, Reactor reactor, SighNode root)
+    {
+        switch (mode) {
+            case 0:
+                Interpreter interpreter = new Interpreter(reactor);
+                return () -> interpreter.interpret(root);
+            case 1:
+                ClosureInterpreter closureInterpreter = new ClosureInterpreter(reactor);
+                return () -> closureInterpreter.interpret(cast(root));
+            case 2:
+                VMProgram program = new VMCompiler(reactor).compile(cast(root));
+                // run in small slices to exercise suspension
+                return () -> {
+                    VM vm = new VM();
+                    vm.start(program);
+                    while (!vm.resume(3));
+                    return vm.result();
+                };
+            case 3:
+                tiers = new TieredCompilation(reactor, 1, Runnable::run);
+                Interpreter tieredInterpreter = new Interpreter(reactor, tiers);
+                return () -> tieredInterpreter.interpret(root);
+            case 4:
+                RootNode optimized = Optimizer.optimize(reactor, cast(root));
+                Interpreter optimizedInterpreter = new Interpreter(Optimizer.analyze(optimized));
+                return () -> optimizedInterpreter.interpret(optimized);
+            default:
+                throw new Error("unknown mode " + mode);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -103,7 +177,9 @@ public final class InterpreterTests extends TestFixture {
     // ---------------------------------------------------------------------------------------------
 
     private void checkThrows (String input, Class<? extends Throwable> expected) {
-        assertThrows(expected, () -> check(input, null));
+        for (onlyMode = 0; onlyMode < MODES; ++onlyMode)
+            assertThrows(expected, () -> check(input, null));
+        onlyMode = -1;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -114,7 +190,7 @@ public final class InterpreterTests extends TestFixture {
         checkExpr("42.0", 42.0d);
         checkExpr("\"hello\"", "hello");
         checkExpr("(42)", 42L);
-        checkExpr("[1, 2, 3]", new Object[]{1L, 2L, 3L});
+        checkExpr("[1, 2, 3]", new long[]{1L, 2L, 3L});
         checkExpr("true", true);
         checkExpr("false", false);
         checkExpr("null", Null.INSTANCE);
@@ -178,6 +254,8 @@ public final class InterpreterTests extends TestFixture {
         checkExpr("1 + \"a\"", "1a");
         checkExpr("\"a\" + 1", "a1");
         checkExpr("\"a\" + true", "atrue");
+        checkExpr("\"a\" + 1 + \"b\" + 2.5 + null", "a1b2.5null");
+        checkExpr("1 + 2 + \"a\" + (1 + 2) + (\"b\" + 1)", "3a3b1");
 
         checkExpr("1 == 1", true);
         checkExpr("1 == 2", false);
@@ -231,6 +309,8 @@ public final class InterpreterTests extends TestFixture {
 
         check("print(\"a\")", null, "a\n");
         check("print(\"a\" + 1)", null, "a1\n");
+        // operands are evaluated before the string is printed
+        check("fun f (): Int { print(\"X\") ; return 1 } print(\"a\" + f())", null, "X\na1\n");
         check("print(\"a\"); print(\"b\")", null, "a\nb\n");
 
         check("{ print(\"a\"); print(\"b\") }", null, "a\nb\n");
@@ -251,16 +331,15 @@ public final class InterpreterTests extends TestFixture {
                 "return add(4, 7)",
             11L);
 
-        HashMap<String, Object> point = new HashMap<>();
-        point.put("x", 1L);
-        point.put("y", 2L);
-
         check(
             "struct Point { var x: Int; var y: Int }" +
-                "return $Point(1, 2)",
-            point);
+                "return \"\" + $Point(1, 2)",
+            "{x=1, y=2}");
 
         check("var str: String = null; return print(str + 1)", "null1", "null1\n");
+
+        // references to the same function are equal
+        check("fun id (x: Int): Int { return x } return id == [id][0]", true);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -277,6 +356,16 @@ public final class InterpreterTests extends TestFixture {
         // checkExpr("[].length", 0L);
         checkExpr("[1].length", 1L);
         checkExpr("[1, 2].length", 2L);
+        checkExpr("[true, false][1]", false);
+        checkExpr("[[1, 2], [3]][0][1]", 2L);
+        checkExpr("[1.0, 2.5].length", 2L);
+        check("print(\"\" + [1, 2]); print(\"\" + [1.5, 2.0]);" +
+            "print(\"\" + [[true], [false]])", null,
+            "[1, 2]\n[1.5, 2.0]\n[[true], [false]]\n");
+        check("var a: Float[] = [1.0, 2]; return a[1] + 0.5", 2.5d);
+        check("var a: Float[] = [1.0, 2.0]; a[0] = 3; return a[0]", 3.0d);
+        check("var a: Int[] = [1, 2]; a[0] = 3; return a[0]", 3L);
+        check("var b: Bool[] = [true]; b[0] = false; return b[0]", false);
 
         checkThrows("var array: Int[] = null; return array[0]", NullPointerException.class);
         checkThrows("var array: Int[] = null; return array.length", NullPointerException.class);
@@ -343,9 +432,399 @@ public final class InterpreterTests extends TestFixture {
 
     // ---------------------------------------------------------------------------------------------
 
+    @Test public void testFrames ()
+    {
+        rule = grammar.root;
+
+        // every invocation gets its own frame
+        check(
+            "fun fib (n: Int): Int { if (n <= 1) return n ; return fib(n - 1) + fib(n - 2) }" +
+            "return fib(10)",
+            55L);
+
+        // sibling blocks can reuse the same slots
+        check(
+            "var x: Int = 1;" +
+            "{ var y: Int = 2; print(\"\" + (x + y)) }" +
+            "{ var z: String = \"z\"; print(z + x) }" +
+            "return x",
+            1L, "3\nz1\n");
+
+        // functions can access top-level variables
+        check("var x: Int = 1; fun f(): Int { return x + 1 } x = 2; return f()", 3L);
+
+        // primitive slots, with implicit Int to Float conversion
+        check("var x: Float = 1; x = x + 1; return x", 2d);
+        check("fun f(x: Float): Float { return x / 2 } return f(3)", 1.5d);
+        check("var b: Bool = 1 < 2.5; var c: Bool = !b; return b && !c", true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSpecialization ()
+    {
+        rule = grammar.root;
+
+        // Float field holding a Double, then a Long: guard failure
+        check(
+            "struct P { var x: Float }" +
+            "var a: P[] = [$P(1.0), $P(3)];" +
+            "var s: Float = 0; var i: Int = 0;" +
+            "while (i < 2) { s = s + a[i].x; i = i + 1 }" +
+            "return s",
+            4.0d);
+
+        // Float array holding an Int value, then another Float array
+        check(
+            "var a: Float[] = [1.0, 2.0]; a[1] = 3;" +
+            "var s: Float = 0; var i: Int = 0;" +
+            "while (i < 2) { s = s + a[i]; a = [4.0, 5]; i = i + 1 }" +
+            "return s",
+            6.0d);
+
+        // concatenation operand that is a string, then null: guard failure
+        check(
+            "var t: String = \"x\"; var i: Int = 0;" +
+            "while (i < 2) { print(t + i); t = null; i = i + 1 }",
+            null, "x0\nnull1\n");
+
+        // constant subexpressions are folded after their first evaluation
+        check(
+            "var i: Int = 0; var s: String = \"\";" +
+            "while (i < 2 * 2 - 1) { s = s + (\"a\" + 1); i = i + 1 }" +
+            "return s",
+            "a1a1a1");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testPreparedProgram () throws Exception
+    {
+        // analyzed once, executed concurrently
+        PreparedProgram program = new SighRunner().prepare(
+            "fun fib (n: Int): Int { if n <= 1 return n; return fib(n - 1) + fib(n - 2) }" +
+            "var a: Int[] = [0, 0, 0]; var i: Int = 0;" +
+            "while (i < 3) { a[i] = fib(15 + i); i = i + 1 }" +
+            "return a[0] + a[1] + a[2]");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 16; ++i)
+                results.add(executor.submit(() -> new Interpreter(program).execute()));
+            for (Future<Object> result: results)
+                assertEquals(result.get(), 610L + 987L + 1597L);
+        } finally {
+            executor.shutdown();
+        }
+
+        // the interpreter can be reused
+        Interpreter interpreter = new Interpreter(program);
+        assertEquals(interpreter.execute(), interpreter.execute());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testFuel ()
+    {
+        // without optimizations, as the call would be inlined
+        SighRunner runner = new SighRunner();
+        runner.setOptimization(false);
+        PreparedProgram program = runner.prepare(
+            "fun f (x: Int): Int { return x + 1 }" +
+            "var i: Int = 0; while (i < 10) { i = f(i) } return i");
+        Interpreter interpreter = new Interpreter(program);
+
+        // 10 calls and 10 back-edges
+        interpreter.setFuel(20);
+        assertEquals(interpreter.execute(), 10L);
+        assertEquals(interpreter.remainingFuel(), 0L);
+
+        interpreter.setFuel(19);
+        assertThrows(OutOfFuelException.class, interpreter::execute);
+
+        interpreter.setFuel(Interpreter.UNLIMITED_FUEL);
+        assertEquals(interpreter.execute(), 10L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testAllocationQuota ()
+    {
+        PreparedProgram program = new SighRunner().prepare(
+            "struct P { var x: Int ; var y: Int }" +
+            "var a: Int[] = [1, 2, 3] ; var p: P = $P(1, 2) ; var s: String = \"a\" + a[0]" +
+            "return a[0]");
+        Interpreter interpreter = new Interpreter(program);
+
+        // 40 bytes for the array, 32 for the struct, 44 for the string "a1"
+        interpreter.setAllocationQuota(116);
+        assertEquals(interpreter.execute(), 1L);
+        assertEquals(interpreter.remainingAllocationQuota(), 0L);
+
+        interpreter.setAllocationQuota(115);
+        assertThrows(AllocationQuotaExceededException.class, interpreter::execute);
+
+        interpreter.setAllocationQuota(Interpreter.UNLIMITED_ALLOCATION);
+        assertEquals(interpreter.execute(), 1L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testOutputSink ()
+    {
+        String sep = System.lineSeparator();
+        // small capacity to exercise the buffer draining
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Object result = new SighRunner().run(
+            "var i: Int = -2; while (i < 2) { print(\"i=\" + i + \" \" + i * 1.5) ; i = i + 1 }" +
+            "print(\"\" + (-9223372036854775807 - 1)) ;" +
+            "return print(\"h\u00e9llo \" + 123456789012)",
+            new OutputSink(bytes, 8));
+        assertEquals(result, "h\u00e9llo 123456789012");
+        assertEquals(new String(bytes.toByteArray(), StandardCharsets.UTF_8),
+            "i=-2 -3.0" + sep + "i=-1 -1.5" + sep + "i=0 0.0" + sep + "i=1 1.5" + sep +
+            "-9223372036854775808" + sep + "h\u00e9llo 123456789012" + sep);
+
+        // the whole string is evaluated before it is printed
+        bytes.reset();
+        assertThrows(RuntimeException.class, () -> new SighRunner().run(
+            "var a: Int[] = [1] ; print(\"start \" + a[3])", new OutputSink(bytes, 8)));
+        assertEquals(bytes.size(), 0);
+
+        // compiled code sends its output to the sink of the current execution
+        autumnFixture.rule = grammar.root;
+        SighNode greet = autumnFixture.success(
+            "fun greet (): Int { print(\"hi\") ; return 1 } return greet()").topValue();
+        Reactor greetReactor = new Reactor();
+        SemanticAnalysis.createWalker(greetReactor).walk(greet);
+        greetReactor.run();
+        TieredCompilation tiers = new TieredCompilation(greetReactor, 1, Runnable::run);
+        Interpreter tieredInterpreter = new Interpreter(greetReactor, tiers);
+        for (int i = 0; i < 2; ++i) {
+            bytes.reset();
+            tieredInterpreter.setOutput(new OutputSink(bytes, 8));
+            assertEquals(tieredInterpreter.interpret(greet), 1L);
+            assertEquals(new String(bytes.toByteArray(), StandardCharsets.UTF_8), "hi" + sep);
+        }
+        assertEquals(tiers.compiledFunctions(), Arrays.asList("greet"));
+
+        // the other execution modes send their output to the sink as well
+        SighNode root = autumnFixture.success("print(\"a\") ; return print(\"b\")").topValue();
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+
+        bytes.reset();
+        ClosureInterpreter closureInterpreter = new ClosureInterpreter(reactor);
+        closureInterpreter.setOutput(new OutputSink(bytes, 8));
+        assertEquals(closureInterpreter.interpret(cast(root)), "b");
+        assertEquals(new String(bytes.toByteArray(), StandardCharsets.UTF_8),
+            "a" + sep + "b" + sep);
+
+        bytes.reset();
+        VM vm = new VM();
+        vm.setOutput(new OutputSink(bytes, 8));
+        assertEquals(vm.run(new VMCompiler(reactor).compile(cast(root))), "b");
+        assertEquals(new String(bytes.toByteArray(), StandardCharsets.UTF_8),
+            "a" + sep + "b" + sep);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testProfiler ()
+    {
+        String source =
+            "fun fib (n: Int): Int { if (n <= 1) return n ; return fib(n - 1) + fib(n - 2) }\n" +
+            "var i: Int = 0\n" +
+            "while (i < 3) { i = i + 1 }\n" +
+            "return fib(10)";
+        PreparedProgram program = new SighRunner().prepare(source);
+        FunDeclarationNode fib = (FunDeclarationNode) program.root.statements.get(0);
+        WhileNode loop = (WhileNode) program.root.statements.get(2);
+
+        Profiler profiler = new Profiler();
+        Interpreter interpreter = new Interpreter(program);
+        interpreter.setProfiler(profiler);
+        assertEquals(interpreter.execute(), 55L);
+
+        assertEquals(profiler.invocations(fib), 177L);
+        assertTrue(profiler.nanos(fib) > 0);
+        assertEquals(profiler.executions(loop), 1L);
+        assertEquals(profiler.executions(loop.body), 3L);
+        assertEquals(profiler.executions(fib.block.statements.get(1)), 88L);
+
+        LineMapString map = new LineMapString("<test>", source);
+        String stacks = profiler.collapsedStacks(map);
+        assertTrue(stacks.startsWith("main "));
+        assertTrue(stacks.contains("\nmain;fib@1:1 "));
+        assertTrue(stacks.contains("\nmain;fib@1:1;fib@1:1;fib@1:1 "));
+        assertTrue(profiler.report(map).contains("fib@1:1"));
+
+        // disabled again
+        interpreter.setProfiler(null);
+        profiler.clear();
+        assertEquals(interpreter.execute(), 55L);
+        assertEquals(profiler.invocations(fib), 0L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testDeepRecursion ()
+    {
+        rule = grammar.root;
+        onlyMode = 2; // the VM does not use the Java stack for calls
+
+        check(
+            "fun sum (n: Int): Int { if (n == 0) return 0 ; return n + sum(n - 1) }" +
+            "return sum(100000) + [sum][0](100000)",
+            10000100000L);
+
+        onlyMode = -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTieredCompilation ()
+    {
+        rule = grammar.root;
+        onlyMode = 3;
+
+        // hot function compiled, along with its callees
+        check(
+            "fun half (x: Float): Float { return x / 2 }" +
+            "fun fib (n: Int): Int { if (n <= 1) return n ; return fib(n - 1) + fib(n - 2) }" +
+            "fun f (n: Int): Float { return half(fib(n)) }" +
+            "return f(10) + f(11)",
+            72d);
+        assertEquals(tiers.compiledFunctions(), Arrays.asList("f"));
+
+        // string boundary conversions, void function
+        check(
+            "fun greet (s: String): String { print(\"hi \" + s) ; return s }" +
+            "fun g (): Void { greet(\"a\") }" +
+            "g() ; return greet(null)",
+            Null.INSTANCE, "hi a\nhi null\n");
+        assertEquals(tiers.compiledFunctions(), Arrays.asList("g", "greet"));
+
+        // ineligible functions stay interpreted
+        check(
+            "var x: Int = 1;" +
+            "fun global (): Int { return x }" +
+            "fun array (): Int[] { return [1] }" +
+            "fun isNull (s: String): Bool { return s == null }" +
+            "var r: Int = global() + array()[0]; if (isNull(null)) r = r + 1; return r",
+            3L);
+        assertEquals(tiers.compiledFunctions(), Arrays.asList());
+
+        // on-stack replacement of top-level loops, transferring variables both ways
+        check(
+            "fun sq (x: Int): Int { return x * x }" +
+            "var i: Int = 0; var s: Float = 0.5; var b: Bool = false; var t: String = null;" +
+            "while (i < 5) { var j: Int = sq(i); s = s + j; b = !b; t = \"\" + i; i = i + 1 }" +
+            "print(t); return \"\" + s + b",
+            "30.5true", "4\n");
+        assertEquals(tiers.compiledLoops(), 1);
+
+        // ineligible loops stay interpreted
+        check(
+            "var a: Int[] = [1, 2]; var i: Int = 0;" +
+            "while (i < 2) { a[i] = i; i = i + 1 }" +
+            "while (i < 4) { if (i == 3) return i ; i = i + 1 }",
+            3L);
+        assertEquals(tiers.compiledLoops(), 0);
+        check(
+            "var i: Int = 0;" +
+            "while (i < 5) { i = i + 1 ; if (i == 100) { return } }" +
+            "return i",
+            5L);
+        assertEquals(tiers.compiledLoops(), 0);
+
+        onlyMode = -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Test public void testUnconditionalReturn()
     {
         check("fun f(): Int { if (true) return 1 else return 2 } ; return f()", 1L);
+
+        // returns complete the enclosing loops and blocks, but not the caller
+        check(
+            "fun f(n: Int): Int { var i: Int = 0; while (true) { { if (i == n) return i } i = i + 1 } return -1 }" +
+            "fun g(): Void { print(\"a\"); if (true) { return } print(\"b\") }" +
+            "g(); var x: Int = f(3); while (true) { return x + f(2) } print(\"c\")",
+            5L, "a\n");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testInlining ()
+    {
+        // these calls are inlined when the program is optimized (mode 4)
+
+        check(
+            "fun find (a: Int[], x: Int): Int {" +
+            "    var i: Int = 0; while (i < a.length) { if (a[i] == x) return i; i = i + 1 }" +
+            "    return -1 }" +
+            "var a: Int = find([4, 5, 6], 6); var b: Int = find([4, 5, 6], 7); return \"\" + a + b",
+            "2-1");
+
+        check(
+            "fun f (x: Int): Int { if (x > 0) { print(\"pos\"); return 1 } print(\"neg\"); return 0 }" +
+            "var a: Int = f(1); a = a * 10; var b: Int = f(0); return a + b",
+            10L, "pos\nneg\n");
+
+        check(
+            "fun g (x: Int) { if (x == 0) { return } print(\"\" + x) }" +
+            "fun inc (a: Int[]) { a[0] = a[0] + 1 }" +
+            "g(0); g(5); var a: Int[] = [1]; inc(a); if (a[0] > 0) inc(a); return a[0]",
+            3L, "5\n");
+
+        check(
+            "fun half (x: Float): Float { return x / 2 }" +
+            "fun next (x: Int): Int { x = x + 1; return x }" +
+            "var x: Int = 1; var y: Float = half(next(x)); return \"\" + x + y",
+            "11.0");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testCodeMotion ()
+    {
+        // these expressions are moved when the program is optimized (mode 4), unless they can be
+        // modified by the loop
+
+        check(
+            "var a: Int[] = [1, 2, 3]; var s: Int = 0; var i: Int = 0;" +
+            "while (i < a.length) { a[i] = a.length; s = s + a[i]; i = i + 1 } return s",
+            9L);
+
+        check(
+            "var a: Int[] = [3, 0]; var b: Int[] = a; var i: Int = 0;" +
+            "while (i < a[0]) { b[0] = b[0] - 1; i = i + 1 } return i",
+            2L);
+
+        check(
+            "struct P { var x: Int } var p: P = $P(3); var q: P = p; var i: Int = 0;" +
+            "while (i < p.x) { q.x = q.x - 1; i = i + 1 } return i",
+            2L);
+
+        check(
+            "var n: Int = 3; fun dec () { n = n - 1 } var i: Int = 0;" +
+            "while (i < n * 1) { dec(); i = i + 1 } return i",
+            2L);
+
+        check(
+            "var a: Int[] = null; var b: Bool = false; var i: Int = 0;" +
+            "while (i < 0) { print(\"\" + a.length) } while (b && i < a.length) {}" +
+            "return i + 1",
+            1L);
+
+        check(
+            "struct P { var x: Int } var p: P = $P(2);" +
+            "return p.x * p.x + p.x",
+            6L);
     }
 
     // ---------------------------------------------------------------------------------------------
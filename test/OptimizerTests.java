@@ -0,0 +1,261 @@
+import norswap.autumn.Autumn;
+import norswap.autumn.ParseOptions;
+import norswap.autumn.ParseResult;
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.SighGrammar;
+import norswap.sigh.ast.FunCallNode;
+import norswap.sigh.ast.ArrayAccessNode;
+import norswap.sigh.ast.FieldAccessNode;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.RootNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.WhileNode;
+import norswap.sigh.optimizer.Optimizer;
+import norswap.sigh.optimizer.Optimizer.Pass;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import org.testng.annotations.Test;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+import static org.testng.Assert.assertEquals;
+
+public class OptimizerTests
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final SighGrammar grammar = new SighGrammar();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RootNode parse (String input) {
+        ParseResult result = Autumn.parse(grammar.root, input, ParseOptions.builder().get());
+        if (!result.fullMatch) throw new AssertionError(result.toString());
+        return result.topValue();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the input program optimized by the given passes, after checking that the optimized
+     * tree passes semantic analysis.
+     */
+    private RootNode optimize (String input, Set<Pass> passes)
+    {
+        RootNode root = parse(input);
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+        if (!reactor.errors().isEmpty())
+            throw new AssertionError(reactor.reportErrors(Object::toString));
+
+        RootNode optimized = Optimizer.optimize(reactor, root, passes);
+        Optimizer.analyze(optimized);
+        return optimized;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the input program is simplified by constant folding to the same tree as the
+     * {@code expected} program (ignoring positions).
+     */
+    private void check (String input, String expected) {
+        assertEquals(optimize(input, EnumSet.of(Pass.CONSTANT_FOLDING)), parse(expected));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that after all optimizations, the input program performs the expected number of calls
+     * outside of the top-level function declarations. The names introduced by inlining can't be
+     * parsed, so the behaviour of the inlined code is checked by {@code InterpreterTests} and
+     * {@code BytecodeTests}, which run optimized programs.
+     */
+    private void checkCalls (String input, int expected)
+    {
+        int[] calls = { 0 };
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, node -> {
+            if (node instanceof FunCallNode) ++calls[0];
+        });
+        RootNode root = optimize(input, EnumSet.allOf(Pass.class));
+        root.statements.stream()
+            .filter(it -> !(it instanceof FunDeclarationNode))
+            .forEach(walker::walk);
+        assertEquals(calls[0], expected);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that after code motion, the input program contains the expected number of nodes of
+     * the given class (only counting those in loops if {@code loops} is true).
+     */
+    private void checkCount (String input, Class<? extends SighNode> kind, boolean loops,
+            int expected)
+    {
+        int[] count = { 0 };
+        int[] depth = { 0 };
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT, POST_VISIT);
+        walker.registerFallback(PRE_VISIT, node -> {
+            if (kind.isInstance(node) && (!loops || depth[0] > 0)) ++count[0];
+        });
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.register(WhileNode.class, PRE_VISIT,  node -> ++depth[0]);
+        walker.register(WhileNode.class, POST_VISIT, node -> --depth[0]);
+        walker.walk(optimize(input, EnumSet.of(Pass.CODE_MOTION)));
+        assertEquals(count[0], expected);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testFolding ()
+    {
+        check("return 1 + 3 * 4 * (1 + 3) / 12", "return 5");
+        check("return 1 + 2.5", "return 3.5");
+        check("return 7 % 4 - 1.0", "return 2.0");
+        check("return 1 < 2", "return true");
+        check("return 2.0 == 2", "return true");
+        check("return !(1 >= 2)", "return true");
+        check("return true != false", "return true");
+        // division by zero must fail at run time
+        check("return 1 / 0", "return 1 / 0");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testShortCircuit ()
+    {
+        String f = "fun f (): Bool { return true } ";
+        check(f + "return false && f()", f + "return false");
+        check(f + "return true && f()", f + "return f()");
+        check(f + "return 1 == 1 || f()", f + "return true");
+        check(f + "return f() || true", f + "return f() || true");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testConcatenation ()
+    {
+        // strings are compared by identity, so concatenations must yield new strings
+        check("return \"a\" + 1 + 2.5 + true", "return \"a\" + 1 + 2.5 + true");
+        check("return 1 + 2 + \"a\"", "return 3 + \"a\"");
+        check("var x: String = \"a\" + 1 return x", "var x: String = \"a\" + 1 return x");
+        check("return \"a\" == \"a\"", "return \"a\" == \"a\"");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testPropagation ()
+    {
+        check("var x: Int = 2 * 3 return x * 7", "var x: Int = 6 return 42");
+        check("var x: Float = 1 return x / 2", "var x: Float = 1 return 0.5");
+        check("fun f (): Int { var x: Int = 4 fun g (): Int { return x } return g() } return f()",
+              "fun f (): Int { var x: Int = 4 fun g (): Int { return 4 } return g() } return f()");
+        // assigned variables are not propagated
+        check("var x: Int = 1 x = 2 return x", "var x: Int = 1 x = 2 return x");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testDeadCode ()
+    {
+        check("var debug: Bool = false if debug print(\"debug\") return 1",
+              "var debug: Bool = false return 1");
+        check("if 1 < 2 { print(\"a\") } else { print(\"b\") }", "{ print(\"a\") }");
+        check("while 1 > 2 { print(\"a\") } return 1", "return 1");
+        check("fun f (): Int { if true { return 1 } print(\"a\") return 2 }",
+              "fun f (): Int { { return 1 } }");
+        // functions can be called before their declaration
+        check("fun f (): Int { return g() print(\"a\") fun g (): Int { return 1 } }",
+              "fun f (): Int { return g() fun g (): Int { return 1 } }");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testShadowedBooleans ()
+    {
+        check("fun f (true: Bool): Bool { return !true && 1 < 2 }",
+              "fun f (true: Bool): Bool { return !true && 1 < 2 }");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testInlining ()
+    {
+        String add = "fun add (a: Int, b: Int): Int { return a + b } ";
+        checkCalls(add + "return add(1, 2)", 0);
+        checkCalls(add + "var x: Int = add(1, 2) x = add(x, 3) add(x, x) return x", 0);
+        // only calls that form a statement are inlined
+        checkCalls(add + "return add(1, 2) + 1", 1);
+        checkCalls(add + "var c: Bool = [true][0] "
+            + "if c return add(1, 2) else print(\"\" + add(3, 4))", 2);
+        // inlining is applied to inlined code
+        checkCalls(add + "fun add3 (a: Int, b: Int, c: Int): Int { var x: Int = add(a, b) "
+            + "return add(x, c) } return add3(1, 2, 3)", 0);
+        // recursive functions are not inlined
+        checkCalls("fun f (n: Int): Int { if n == 0 return 0 return g(n - 1) } "
+            + "fun g (n: Int): Int { return f(n) } return f(3)", 1);
+        // nor are functions declaring functions
+        checkCalls("fun f (): Int { fun g (): Int { return 1 } return g() } return f()", 1);
+        // the function's names must resolve to the same declarations at the call site
+        checkCalls("var x: Int = 1 fun f (): Int { return x } "
+            + "fun g (): Int { var x: Int = 2 return f() } return g()", 1);
+        // large functions are inlined only if they are called in few places
+        String large = "fun f (a: Int): Int { var x: Int = a * 2 + 1 var y: Int = x * x - a "
+            + "if y > 10 { return y } return x } ";
+        checkCalls(large + "var x: Int = f(1) x = f(2) x = f(3) return f(4)", 4);
+        checkCalls(large + "var x: Int = f(1) x = f(2) return f(3)", 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testCodeMotion ()
+    {
+        String sum = "var a: Int[] = [1, 2, 3] var i: Int = 0 var s: Int = 0 ";
+        checkCount(sum + "while i < a.length { s = s + a[i] i = i + 1 } return s",
+            FieldAccessNode.class, true, 0);
+        // lengths can't change, even if elements are written
+        checkCount(sum + "while i < a.length { a[i] = a.length * 2 i = i + 1 } return s",
+            FieldAccessNode.class, true, 0);
+        // a[0] may be written through b
+        checkCount(sum + "var b: Int[] = a while i < a[0] { b[0] = i i = i + 1 } return s",
+            ArrayAccessNode.class, true, 2);
+        checkCount(sum + "while i < a[0] { s = s + a[0] i = i + 1 } return s",
+            ArrayAccessNode.class, true, 0);
+        // a[0] might fail if the loop doesn't run, and is only evaluated after a print
+        checkCount(sum + "while i < 3 { print(\"\" + i) s = s + a[0] i = i + 1 } return s",
+            ArrayAccessNode.class, true, 1);
+
+        String point = "struct P { var x: Int var y: Int } var p: P = $P(1, 2) var q: P = p "
+            + "var i: Int = 0 ";
+        checkCount(point + "while i < p.x + p.y { i = i + 1 } return i",
+            FieldAccessNode.class, true, 0);
+        // p.x may be written through q (and p.y could only be hoisted if it followed p.x)
+        checkCount(point + "while i < p.x + p.y { q.x = q.x + 1 i = i + 1 } return i",
+            FieldAccessNode.class, true, 4);
+        checkCount(point + "while i < p.y + p.x { q.x = q.x + 1 i = i + 1 } return i",
+            FieldAccessNode.class, true, 3);
+        // the loop may call a function that writes p.y
+        checkCount(point + "fun f () { q.y = 5 } while i < p.y { f() i = i + 1 } return i",
+            FieldAccessNode.class, true, 1);
+
+        // common subexpressions
+        checkCount(point + "return p.x * p.x + p.x", FieldAccessNode.class, false, 1);
+        // p.y is evaluated after p.x, which may fail
+        checkCount(point + "return p.x * p.x + p.y * p.y", FieldAccessNode.class, false, 3);
+        // a[0] is first evaluated conditionally
+        checkCount(point + "var a: Int[] = [1] var b: Bool = [true][0] "
+            + "return b && a[0] > 0 && a[0] < 5", ArrayAccessNode.class, false, 3);
+        checkCount(point + "var z: Int = 0 z = p.y * p.y return z", FieldAccessNode.class, false, 1);
+        // the access to q.x may fail before the right side is evaluated
+        checkCount(point + "q.x = p.y * p.y return 1", FieldAccessNode.class, false, 3);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
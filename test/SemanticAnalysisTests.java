@@ -224,6 +224,15 @@ public final class SemanticAnalysisTests extends UraniumTestFixture
         successInput("var x: Int[] = [0, 1]; x[0] = 3; return x[0]");
         successInput("var x: Int[] = []; x[0] = 3; return x[0]");
         successInput("var x: Int[] = null; x[0] = 3");
+        successInput("var x: Float[] = [1.0, 2]; x[0] = 3");
+
+        // array types are invariant
+        failureInputWith("var x: Float[] = [1, 2]",
+            "incompatible initializer type provided for variable `x`: "
+                + "expected Float[] but got Int[]");
+        failureInputWith("var x: Int[][] = [[1]]; var y: Float[][] = x",
+            "incompatible initializer type provided for variable `y`: "
+                + "expected Float[][] but got Int[][]");
 
         successInput(
             "struct P { var x: Int; var y: Int }" +